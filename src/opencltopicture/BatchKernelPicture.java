@@ -0,0 +1,50 @@
+package opencltopicture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import opencltopicture.tools.BatchPipeline;
+import opencltopicture.tools.OpenCLBase;
+
+/**
+ * Applique doVigneting a toutes les images d'un repertoire.
+ *
+ * Usage : BatchKernelPicture repertoireEntree repertoireSortie [format]
+ * [threadsIO] [slotsDevice]
+ *
+ * @author durands
+ */
+public class BatchKernelPicture {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: BatchKernelPicture <input dir> <output dir> [format=png] [io threads] [device slots=3]");
+            return;
+        }
+        final File inputDir = new File(args[0]), outputDir = new File(args[1]);
+        final String format = args.length > 2 ? args[2] : "png";
+        final int ioThreads = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        final int slots = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        final File[] files = inputDir.listFiles((dir, name) -> name.matches("(?i).*\\.(jpe?g|png|bmp|gif)$"));
+        if (files == null) {
+            System.out.println("Not a directory: " + inputDir);
+            return;
+        }
+        Arrays.sort(files);
+        final List<File> inputs = new ArrayList<>(Arrays.asList(files));
+
+        // Sans device les kernels Java prennent le relai
+        OpenCLBase.createKernels(BatchKernelPicture.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl"));
+
+        final BatchPipeline pipeline = new BatchPipeline("doVigneting", format, ioThreads, slots);
+        final long t0 = System.nanoTime();
+        pipeline.process(inputs, outputDir);
+        System.out.print(pipeline.getReport((System.nanoTime() - t0) * 1e-9));
+        pipeline.shutdown();
+    }
+}
@@ -0,0 +1,159 @@
+package opencltopicture;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.Convolution;
+import opencltopicture.tools.Convolution.Border;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.ocl_buffer;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_event;
+
+/**
+ * Flou gaussien de differents rayons : Convolution (deux passes separables
+ * avec tuiles en memoire locale, puis une passe 2D avec tuiles) compare a un
+ * kernel 2D naif qui relit (2r+1)^2 pixels de l'image par pixel avec des
+ * poids lus en memoire globale.
+ *
+ * Sans device, seuls les chemins Java separable et 2D sont compares.
+ *
+ * Usage : BenchConvolution [cote de l'image]
+ *
+ * @author durands
+ */
+public class BenchConvolution {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int[] RADII = {1, 2, 4, 8, 16};
+    private static final int NB_ITER = 20;
+
+    private static final String NAIVE_SOURCE
+            = "const sampler_t naive_sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;\n"
+            + "__kernel void conv_naive(read_only image2d_t input, write_only image2d_t output, __global const float* weights, const int r) {\n"
+            + "    const int2 xy = (int2)(get_global_id(0), get_global_id(1)), res = get_image_dim(output);\n"
+            + "    if (xy.x >= res.x || xy.y >= res.y) return;\n"
+            + "    float4 sum = (float4)(0.f);\n"
+            + "    for (int dy = -r; dy <= r; dy++) {\n"
+            + "        for (int dx = -r; dx <= r; dx++) {\n"
+            + "            sum += weights[(dy + r) * (2 * r + 1) + dx + r] * convert_float4(read_imageui(input, naive_sampler, xy + (int2)(dx, dy)));\n"
+            + "        }\n"
+            + "    }\n"
+            + "    sum.w = read_imageui(input, naive_sampler, xy).w;\n"
+            + "    write_imageui(output, xy, convert_uint4_sat_rte(sum));\n"
+            + "}\n";
+
+    private static float[] gaussian(final int radius) {
+        final float sigma = Math.max(.5f, radius / 2.f);
+        final float[] g = new float[2 * radius + 1];
+        float sum = 0.f;
+        for (int i = -radius; i <= radius; i++) {
+            g[i + radius] = (float) Math.exp(-i * i / (2. * sigma * sigma));
+            sum += g[i + radius];
+        }
+        for (int i = 0; i < g.length; i++) {
+            g[i] /= sum;
+        }
+        return g;
+    }
+
+    /**
+     * @return ms par image
+     */
+    private static double time(final Runnable filter) {
+        filter.run(); // Chauffe et compilation
+        OpenCLBase.finish();
+        final long t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            filter.run();
+        }
+        OpenCLBase.finish();
+        return (System.nanoTime() - t0) * 1e-6 / NB_ITER;
+    }
+
+    private static int maxChannelDiff(final BufferedImage a, final BufferedImage b) {
+        int d = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                final int p = a.getRGB(x, y), q = b.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    d = Math.max(d, Math.abs(((p >> shift) & 0xff) - ((q >> shift) & 0xff)));
+                }
+            }
+        }
+        return d;
+    }
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = BenchConvolution.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final boolean device = OpenCLBase.isDeviceAvailable();
+        if (device) {
+            // Image agrandie pour occuper le device
+            final int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+            final BufferedImage big = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            final Graphics2D g = big.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(img, 0, 0, size, size, null);
+            g.dispose();
+            img = big;
+            OpenCLBase.createKernelsFromSource(NAIVE_SOURCE);
+        } else {
+            System.out.println("Pas de device OpenCL : chemins Java seulement, kernel qui serait genere pour r = 1 :");
+            System.out.println(Convolution.generateSource("conv_h", gaussian(1), 3, 1, Border.CLAMP, 16, true));
+        }
+        final int w = img.getWidth(), h = img.getHeight();
+        final ocl_image clInput = new ocl_image(img, true);
+        final ocl_image clOutput = ocl_image.create2DPicture(w, h);
+        final ocl_image clNaive = ocl_image.create2DPicture(w, h);
+        System.out.printf("Image %dx%d, %d iterations%n", w, h, NB_ITER);
+        System.out.println(device ? "rayon | separable | 2D tuiles | 2D naif | ecart max" : "rayon | separable | 2D | ecart max");
+
+        for (int r : RADII) {
+            if (!device && r > 8) {
+                break;
+            }
+            final float[] g = gaussian(r);
+            final Convolution separable = Convolution.separable(g, g, Border.CLAMP);
+            final Convolution direct = separable.as2D();
+            final BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            final BufferedImage reference = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+
+            final double tSeparable = time(() -> run(separable, clInput, clOutput));
+            OpenCLBase.query_picture(clOutput, null, result);
+            final double tDirect = time(() -> run(direct, clInput, clNaive));
+            if (!device) {
+                OpenCLBase.query_picture(clNaive, null, reference);
+                System.out.printf("%5d | %7.2f ms | %7.2f ms | %d%n", r, tSeparable, tDirect, maxChannelDiff(result, reference));
+                continue;
+            }
+            final float[] weights = new float[g.length * g.length];
+            for (int y = 0; y < g.length; y++) {
+                for (int x = 0; x < g.length; x++) {
+                    weights[y * g.length + x] = g[y] * g[x];
+                }
+            }
+            final ocl_buffer clWeights = ocl_buffer.create1DFloatInput(weights);
+            final double tNaive = time(() -> OpenCLBase.runWithArgs("conv_naive", new long[]{w, h}, null, clInput, clNaive, clWeights, r));
+            OpenCLBase.query_picture(clNaive, null, reference);
+            System.out.printf("%5d | %7.2f ms | %7.2f ms | %7.2f ms | %d%n", r, tSeparable, tDirect, tNaive, maxChannelDiff(result, reference));
+            clWeights.release();
+            separable.release();
+        }
+        clInput.release();
+        clOutput.release();
+        clNaive.release();
+    }
+
+    private static void run(final Convolution conv, final ocl_image input, final ocl_image output) {
+        final cl_event[][] event = {null};
+        conv.apply(input, output, event);
+        EventManager.release(event);
+    }
+}
@@ -0,0 +1,166 @@
+package opencltopicture;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.KernelInvocation;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.PixelConverter;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_kernel;
+
+/**
+ * Micro-benchmarks des chemins cote hote : conversions d'images, toFloat,
+ * upload (new ocl_image) et relecture (query_img puis conversion dans le type
+ * d'origine) pour chaque type d'image, query_picture et passage des arguments
+ * (OpenCLBase.args compare a KernelInvocation). Les types refuses par le
+ * device sont signales et ignores.
+ *
+ * Chaque mesure donne le temps moyen par operation et le nombre d'octets
+ * alloues par operation (comme le profiler GC de JMH, via
+ * com.sun.management.ThreadMXBean). Les benchmarks OpenCL sont ignores s'il
+ * n'y a pas de device.
+ *
+ * Usage : BenchHostPaths [taille1 taille2 ...] (defaut : 256 1024 2048)
+ *
+ * @author durands
+ */
+public class BenchHostPaths {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+
+    private static final int[] IMAGE_TYPES = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY};
+    private static final String[] IMAGE_TYPE_NAMES = {"3BYTE_BGR", "INT_RGB", "INT_ARGB", "BYTE_GRAY"};
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Evite que le JIT supprime le travail mesure
+    private static volatile Object sink;
+
+    /**
+     * Mesure une operation : phase de chauffe puis mesure sur une duree fixe
+     */
+    private static void bench(final String name, final Runnable op) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            op.run();
+        }
+        final long tid = Thread.currentThread().getId();
+        final long alloc0 = THREADS.getThreadAllocatedBytes(tid);
+        final long t0 = System.nanoTime();
+        long n = 0;
+        end = t0 + MEASURE_NANOS;
+        long t1;
+        do {
+            op.run();
+            n++;
+        } while ((t1 = System.nanoTime()) < end);
+        final long alloc = THREADS.getThreadAllocatedBytes(tid) - alloc0;
+        final double seconds = (t1 - t0) * 1e-9;
+        System.out.printf("%-40s %12.2f us/op %14d B/op %10.1f MB/s alloc%n",
+                name, seconds * 1e6 / n, alloc / n, alloc / seconds / (1024 * 1024));
+    }
+
+    private static BufferedImage createImage(final int size, final int type) {
+        final BufferedImage img = new BufferedImage(size, size, type);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                img.setRGB(x, y, 0xff000000 | (x * 255 / size) << 16 | (y * 255 / size) << 8 | ((x ^ y) & 0xff));
+            }
+        }
+        return img;
+    }
+
+    public static void main(String args[]) throws IOException {
+        int[] sizes = {256, 1024, 2048};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // ---------------------------------------------------------------------
+        //                  Benchmarks purement Java
+        // ---------------------------------------------------------------------
+        for (int size : sizes) {
+            for (int t = 0; t < IMAGE_TYPES.length; t++) {
+                final BufferedImage src = createImage(size, IMAGE_TYPES[t]);
+                bench("toBufferedImage " + IMAGE_TYPE_NAMES[t] + "->INT_ARGB " + size, () -> sink = Images2D.toBufferedImage(src, BufferedImage.TYPE_INT_ARGB));
+            }
+            final double[] d = new double[size * size];
+            final Double[] dd = new Double[size];
+            for (int i = 0; i < d.length; i++) {
+                d[i] = i * .5;
+            }
+            for (int i = 0; i < dd.length; i++) {
+                dd[i] = i * .5;
+            }
+            bench("toFloat(double[]) " + d.length, () -> sink = OpenCLBase.toFloat(d));
+            bench("toFloat(Double[]) " + dd.length, () -> sink = OpenCLBase.toFloat(dd));
+        }
+
+        // ---------------------------------------------------------------------
+        //                  Benchmarks avec device OpenCL
+        // ---------------------------------------------------------------------
+        final URL program = BenchHostPaths.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl");
+        if (!OpenCLBase.createKernels(program)) {
+            System.out.println("Pas de device OpenCL : benchmarks upload / readback / args ignores");
+            return;
+        }
+        // Kernel vide pour mesurer le passage de tous les types d'arguments
+        OpenCLBase.createKernelsFromSource("__kernel void benchArgs(read_only image2d_t in, write_only image2d_t out, int i, float f, float4 c, float2 p) {}\n");
+        final cl_kernel kernel = OpenCLBase.getKernel("benchArgs");
+        for (int size : sizes) {
+            for (int t = 0; t < IMAGE_TYPES.length; t++) {
+                final int type = IMAGE_TYPES[t];
+                final String name = IMAGE_TYPE_NAMES[t] + " " + size;
+                final BufferedImage typed = createImage(size, type);
+                final ocl_image clTyped = new ocl_image(typed, true);
+                if (clTyped.getMem() == null) {
+                    System.out.println("upload / readback " + name + " : format refuse par le device");
+                    continue;
+                }
+                bench("upload new ocl_image(" + name + ")", () -> new ocl_image(typed, true).release());
+                if (clTyped.query_img() == null) {
+                    System.out.println("readback " + name + " : format non relu par query_img");
+                } else {
+                    bench("readback query_img->" + name, () -> sink = PixelConverter.convert(clTyped.query_img(), type));
+                }
+                clTyped.release();
+            }
+            final BufferedImage src = createImage(size, BufferedImage.TYPE_INT_ARGB);
+
+            final ocl_image clOutput = ocl_image.create2DOutputPicture(size, size);
+            final BufferedImage imgOut = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            bench("query_picture " + size, () -> OpenCLBase.query_picture(clOutput, null, imgOut));
+
+            final ocl_image clInput = new ocl_image(src, true);
+            final Point2D pt = new Point2D.Float(1, 2);
+            bench("args(ocl_image, ocl_image, int, float, Color, Point2D)", () -> OpenCLBase.args(kernel, clInput, clOutput, 12, 1.5f, Color.ORANGE, pt));
+
+            // Lancement complet : les arguments sont identiques d'un appel a l'autre
+            final long[] one = {1};
+            bench("runWithArgs + finish", () -> {
+                OpenCLBase.runWithArgs(kernel, 1, null, one, null, null, clInput, clOutput, 12, 1.5f, Color.ORANGE, pt);
+                OpenCLBase.finish();
+            });
+            final KernelInvocation invocation = new KernelInvocation(kernel);
+            bench("KernelInvocation.run + finish", () -> {
+                invocation.setImage(0, clInput).setImage(1, clOutput).setInt(2, 12).setFloat(3, 1.5f)
+                        .setColor(4, Color.ORANGE).setPoint(5, pt).run(one, null);
+                OpenCLBase.finish();
+            });
+            System.out.printf("KernelInvocation: %d clSetKernelArg, %d skipped%n", invocation.getSetCount(), invocation.getSkipCount());
+            clInput.release();
+            clOutput.release();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package opencltopicture;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.PixelConverter;
+
+/**
+ * Compare la conversion de format par Graphics2D.drawImage (ancien
+ * Images2D.toBufferedImage) avec PixelConverter (copie directe des rasters,
+ * par bandes en parallele, destination reutilisee), et verifie que les
+ * pixels obtenus sont les memes.
+ *
+ * @author durands
+ */
+public class BenchPixelConversion {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int NB_ITER = 20;
+
+    private static final int[][] CONVERSIONS = {
+        {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB},
+        {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB},
+        {BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_ARGB},
+        {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR},
+        {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR},
+        {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY},
+        {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_ARGB}};
+
+    // Sources translucides vers des destinations opaques : drawImage compose
+    // les pixels sur le fond noir de l'image neuve
+    private static final int[][] TRANSLUCENT_CONVERSIONS = {
+        {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB},
+        {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR},
+        {BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR},
+        {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY}};
+
+    private static final String[] TYPE_NAMES = {"CUSTOM", "INT_RGB", "INT_ARGB", "INT_ARGB_PRE", "INT_BGR",
+        "3BYTE_BGR", "4BYTE_ABGR", "4BYTE_ABGR_PRE", "USHORT_565_RGB", "USHORT_555_RGB", "BYTE_GRAY"};
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = BenchPixelConversion.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        // Image JPEG telle que la rend ImageIO (TYPE_3BYTE_BGR)
+        final BufferedImage jpeg = ImageIO.read(urlImg);
+        System.out.println("mars.jpg : " + TYPE_NAMES[jpeg.getType()]);
+        bench(jpeg, BufferedImage.TYPE_INT_ARGB);
+
+        // Grande image aleatoire (opaque : drawImage ne compose rien)
+        final int size = 4096;
+        final Random rnd = new Random(42);
+        for (int[] c : CONVERSIONS) {
+            bench(randomImage(size, c[0], 0xff000000, rnd), c[1]);
+        }
+        // Alpha aleatoire, 0 et 255 compris
+        for (int[] c : TRANSLUCENT_CONVERSIONS) {
+            bench(randomImage(size, c[0], 0, rnd), c[1]);
+        }
+    }
+
+    private static BufferedImage randomImage(final int size, final int type, final int alphaMask, final Random rnd) {
+        final BufferedImage src = new BufferedImage(size, size, type);
+        final int[] row = new int[size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                row[x] = alphaMask | rnd.nextInt();
+            }
+            src.setRGB(0, y, size, 1, row, 0, size);
+        }
+        return src;
+    }
+
+    private static void bench(final BufferedImage src, final int type) {
+        final int w = src.getWidth(), h = src.getHeight();
+        final BufferedImage dst = new BufferedImage(w, h, type);
+        // Chauffe (compilation JIT des deux chemins)
+        for (int it = 0; it < 3; it++) {
+            final Graphics2D g2 = new BufferedImage(w, h, type).createGraphics();
+            g2.drawImage(src, null, null);
+            g2.dispose();
+            PixelConverter.convert(src, dst);
+        }
+        BufferedImage reference = null;
+        long t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            reference = new BufferedImage(w, h, type);
+            final Graphics2D g2 = reference.createGraphics();
+            g2.drawImage(src, null, null);
+            g2.dispose();
+        }
+        final double drawSeconds = (System.nanoTime() - t0) * 1e-9 / NB_ITER;
+
+        t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            PixelConverter.convert(src, dst);
+        }
+        final double convertSeconds = (System.nanoTime() - t0) * 1e-9 / NB_ITER;
+
+        final boolean same = Arrays.equals(reference.getRGB(0, 0, w, h, null, 0, w), dst.getRGB(0, 0, w, h, null, 0, w));
+        System.out.printf("%dx%d %s -> %s : drawImage %.2f ms, PixelConverter %.2f ms (x%.1f)%s%n",
+                w, h, TYPE_NAMES[src.getType()], TYPE_NAMES[type], drawSeconds * 1e3, convertSeconds * 1e3,
+                drawSeconds / convertSeconds, same ? "" : " PIXELS DIFFERENTS !");
+    }
+}
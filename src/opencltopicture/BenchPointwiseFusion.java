@@ -0,0 +1,120 @@
+package opencltopicture;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.PointwiseFusion;
+import opencltopicture.tools.PointwiseFusion.Stage;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_event;
+
+/**
+ * Compare N operations pixel a pixel lancees une par une (une lecture et une
+ * ecriture de l'image en memoire globale par operation) avec le kernel fusionne
+ * par PointwiseFusion (une lecture et une ecriture en tout).
+ *
+ * @author durands
+ */
+public class BenchPointwiseFusion {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int NB_ITER = 100;
+
+    private static final List<Stage> STAGES = Arrays.asList(
+            new Stage("gain", "col.xyz *= k;", "float k"),
+            new Stage("gamma", "col.xyz = native_powr(col.xyz, (float3)(1.f / g));", "float g"),
+            new Stage("saturation", "const float l = dot(col.xyz, (float3)(.299f, .587f, .114f));\n    col.xyz = mix((float3)(l), col.xyz, s);", "float s"),
+            new Stage("vignette", "col.xyz = mix((float3)(0.f, 0.f, 1.f), col.xyz, smoothstep(.01f, .02f, fabs(length(uv - (float2)(.5f)) - .3f)));"),
+            new Stage("invert", "col.xyz = 1.f - col.xyz;"));
+
+    private static final Object[][] STAGE_ARGS = {{1.2f}, {2.2f}, {.8f}, {}, {}};
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = BenchPointwiseFusion.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        if (!OpenCLBase.isDeviceAvailable()) {
+            System.out.println("Pas de device OpenCL, kernel qui serait genere :");
+            System.out.println(PointwiseFusion.generateSource("fused", STAGES));
+            return;
+        }
+        final ocl_image clInput = new ocl_image(img, true);
+        final ocl_image ping = ocl_image.create2DPicture(w, h);
+        final ocl_image pong = ocl_image.create2DPicture(w, h);
+        final Object[] allArgs = Arrays.stream(STAGE_ARGS).flatMap(Arrays::stream).toArray();
+
+        // Chauffe et compilation des kernels
+        for (Stage stage : STAGES) {
+            PointwiseFusion.getKernelName(Collections.singletonList(stage));
+        }
+        PointwiseFusion.getKernelName(STAGES);
+
+        // ---------------------------------------------------------------------
+        //              Une passe par operation
+        // ---------------------------------------------------------------------
+        final BufferedImage separate = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        long t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            final cl_event[][] event = {null};
+            ocl_image src = clInput, dst = ping;
+            for (int s = 0; s < STAGES.size(); s++) {
+                PointwiseFusion.run(src, dst, event, Collections.singletonList(STAGES.get(s)), STAGE_ARGS[s]);
+                src = dst;
+                dst = dst == ping ? pong : ping;
+            }
+            OpenCLBase.query_picture(src, event[0], separate);
+            EventManager.release(event);
+        }
+        final double separateSeconds = (System.nanoTime() - t0) * 1e-9 / NB_ITER;
+
+        // ---------------------------------------------------------------------
+        //              Une seule passe fusionnee
+        // ---------------------------------------------------------------------
+        final BufferedImage fused = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            final cl_event[][] event = {null};
+            PointwiseFusion.run(clInput, ping, event, STAGES, allArgs);
+            OpenCLBase.query_picture(ping, event[0], fused);
+            EventManager.release(event);
+        }
+        final double fusedSeconds = (System.nanoTime() - t0) * 1e-9 / NB_ITER;
+
+        // Trafic en memoire globale : une lecture et une ecriture RGBA 8 bits par passe
+        final long passBytes = 2L * w * h * 4;
+        System.out.printf("%d operations, image %dx%d%n", STAGES.size(), w, h);
+        System.out.printf("separees  : %.3f ms/image, %d octets lus+ecrits%n", separateSeconds * 1e3, passBytes * STAGES.size());
+        System.out.printf("fusionnees: %.3f ms/image, %d octets lus+ecrits%n", fusedSeconds * 1e3, passBytes);
+        System.out.printf("economie  : %d octets/image (%.1f Go/s a ce debit)%n", passBytes * (STAGES.size() - 1),
+                passBytes * (STAGES.size() - 1) / fusedSeconds * 1e-9);
+        int diff = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                diff = Math.max(diff, maxChannelDiff(separate.getRGB(x, y), fused.getRGB(x, y)));
+            }
+        }
+        // La fusion evite les arrondis sur 8 bits entre les etapes
+        System.out.println("Ecart max par canal : " + diff);
+
+        clInput.release();
+        ping.release();
+        pong.release();
+    }
+
+    private static int maxChannelDiff(final int a, final int b) {
+        int d = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            d = Math.max(d, Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)));
+        }
+        return d;
+    }
+}
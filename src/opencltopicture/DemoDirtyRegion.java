@@ -0,0 +1,95 @@
+package opencltopicture;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.DirtyRegion;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_event;
+
+/**
+ * Edition interactive simulee : a chaque trame quelques coups de pinceau
+ * modifient l'image, seules ces zones sont envoyees, filtrees et relues.
+ * Le resultat est compare avec un traitement complet de l'image finale.
+ *
+ * @author durands
+ */
+public class DemoDirtyRegion {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int NB_FRAMES = 50;
+    private static final int NB_STROKES = 3;
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoDirtyRegion.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        // Sans device les kernels Java prennent le relai
+        OpenCLBase.createKernels(DemoDirtyRegion.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl"));
+
+        final ocl_image clInput = new ocl_image(img, false);
+        final ocl_image clOutput = ocl_image.create2DOutputPicture(w, h);
+        final BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        final cl_event[][] event = {null};
+        OpenCLBase.runWithArgs("doVigneting", new long[]{w, h}, event, clInput, clOutput);
+        OpenCLBase.query_picture(clOutput, event[0], result);
+        EventManager.release(event);
+
+        final DirtyRegion dirty = new DirtyRegion(w, h);
+        final Random rnd = new Random(42);
+        final Graphics2D g = img.createGraphics();
+        long bytes = 0;
+        final long t0 = System.nanoTime();
+        for (int frame = 0; frame < NB_FRAMES; frame++) {
+            dirty.clear();
+            for (int i = 0; i < NB_STROKES; i++) {
+                final int x = rnd.nextInt(w), y = rnd.nextInt(h), s = 8 + rnd.nextInt(24);
+                g.setColor(new Color(rnd.nextInt()));
+                g.fillOval(x, y, s, s);
+                // Le sampler lineaire lit aussi le pixel voisin : 1 pixel de marge
+                dirty.add(x - 1, y - 1, s + 2, s + 2);
+            }
+            clInput.update(img, dirty);
+            OpenCLBase.runWithArgsOnRegion("doVigneting", dirty, event, clInput, clOutput);
+            OpenCLBase.query_picture(clOutput, event[0], result, dirty);
+            EventManager.release(event);
+            bytes += dirty.getUploadedBytes() + dirty.getDownloadedBytes();
+            if (frame == 0) {
+                System.out.println(dirty.getSummary());
+            }
+        }
+        final double seconds = (System.nanoTime() - t0) * 1e-9 / NB_FRAMES;
+        g.dispose();
+
+        // Reference : image finale traitee en entier
+        final ocl_image clFull = new ocl_image(img, true);
+        final ocl_image clFullOut = ocl_image.create2DOutputPicture(w, h);
+        final BufferedImage expected = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        OpenCLBase.runWithArgs("doVigneting", new long[]{w, h}, event, clFull, clFullOut);
+        OpenCLBase.query_picture(clFullOut, event[0], expected);
+        EventManager.release(event);
+
+        System.out.printf("%d trames : %.2f ms/trame, %d octets/trame transferes (image complete aller-retour : %d)%n",
+                NB_FRAMES, seconds * 1e3, bytes / NB_FRAMES, 2L * w * h * 4);
+        final boolean same = Arrays.equals(((DataBufferInt) result.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) expected.getRaster().getDataBuffer()).getData());
+        System.out.println(same ? "Resultats identiques" : "Resultats differents !");
+        System.out.println(EventManager.getSummary());
+
+        clInput.release();
+        clOutput.release();
+        clFull.release();
+        clFullOut.release();
+    }
+}
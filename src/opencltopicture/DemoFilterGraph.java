@@ -0,0 +1,87 @@
+package opencltopicture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.FilterGraph;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_event;
+
+/**
+ * Enchaine plusieurs filtres avec FilterGraph (images intermediaires gardees
+ * sur le device) et compare avec l'enchainement a la main qui relit l'image
+ * entre chaque filtre.
+ *
+ * @author durands
+ */
+public class DemoFilterGraph {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int NB_FILTERS = 6;
+    private static final int NB_ITER = 20;
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoFilterGraph.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        // Sans device les kernels Java prennent le relai
+        OpenCLBase.createKernels(DemoFilterGraph.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl"));
+
+        // ---------------------------------------------------------------------
+        //      A la main : une relecture et un upload entre chaque filtre
+        // ---------------------------------------------------------------------
+        BufferedImage manual = null;
+        long t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            manual = img;
+            for (int i = 0; i < NB_FILTERS; i++) {
+                final ocl_image clInput = new ocl_image(manual, true);
+                final ocl_image clOutput = ocl_image.create2DOutputPicture(w, h);
+                final cl_event[][] event = {null};
+                OpenCLBase.runWithArgs("doVigneting", new long[]{w, h}, event, clInput, clOutput);
+                manual = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+                OpenCLBase.query_picture(clOutput, event[0], manual);
+                EventManager.release(event);
+                clInput.release();
+                clOutput.release();
+            }
+        }
+        final double manualSeconds = (System.nanoTime() - t0) * 1e-9 / NB_ITER;
+
+        // ---------------------------------------------------------------------
+        //      Graphe : une chaine, plus une branche morte jamais executee
+        // ---------------------------------------------------------------------
+        final FilterGraph graph = new FilterGraph();
+        final FilterGraph.Node src = graph.input();
+        FilterGraph.Node last = src;
+        for (int i = 0; i < NB_FILTERS; i++) {
+            last = graph.node("doVigneting", last);
+            graph.node("doVigneting", last);
+        }
+        graph.output(last);
+        BufferedImage result = null;
+        t0 = System.nanoTime();
+        for (int it = 0; it < NB_ITER; it++) {
+            result = graph.run(img);
+        }
+        final double graphSeconds = (System.nanoTime() - t0) * 1e-9 / NB_ITER;
+
+        System.out.printf("a la main : %.2f ms/image%n", manualSeconds * 1e3);
+        System.out.printf("graphe    : %.2f ms/image%n", graphSeconds * 1e3);
+        System.out.println(graph.getSummary());
+        // Tous les evenements doivent avoir ete liberes
+        System.out.println(EventManager.getSummary());
+        final int[] a = ((DataBufferInt) manual.getRaster().getDataBuffer()).getData();
+        final int[] b = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        System.out.println(Arrays.equals(a, b) ? "Resultats identiques" : "Resultats differents !");
+        graph.release();
+    }
+}
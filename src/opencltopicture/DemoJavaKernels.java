@@ -0,0 +1,88 @@
+package opencltopicture;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.JavaKernels;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.ocl_image;
+import org.jocl.CL;
+import org.jocl.cl_event;
+
+/**
+ * Compare les kernels Java (JavaKernels) avec OpenCL : ecart maximum par
+ * canal et debit en Mpixels/s de chaque moteur.
+ *
+ * @author durands
+ */
+public class DemoJavaKernels {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    // Ecart toleré par canal (le filtrage lineaire des GPU est en virgule fixe)
+    private static final int TOLERANCE = 3;
+
+    private static final int NB_ITER = 20;
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoJavaKernels.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        // ---------------------------------------------------------------------
+        //                        Moteur Java
+        // ---------------------------------------------------------------------
+        final ocl_image javaInput = ocl_image.createHostPicture(img);
+        final ocl_image javaOutput = ocl_image.createHostPicture(w, h);
+        final long[] global_sz = new long[]{w, h};
+        JavaKernels.run("doVigneting", null, global_sz, javaInput, javaOutput); // Chauffe
+        long t0 = System.nanoTime();
+        for (int i = 0; i < NB_ITER; i++) {
+            JavaKernels.run("doVigneting", null, global_sz, javaInput, javaOutput);
+        }
+        final double javaSeconds = (System.nanoTime() - t0) * 1.0e-9 / NB_ITER;
+        System.out.printf("Java   : %.2f ms/image, %.1f Mpix/s%n", javaSeconds * 1e3, w * h * 1e-6 / javaSeconds);
+
+        // ---------------------------------------------------------------------
+        //                        Moteur OpenCL
+        // ---------------------------------------------------------------------
+        if (!OpenCLBase.createKernels(DemoJavaKernels.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl"))) {
+            System.out.println("OpenCL : pas de device, comparaison impossible");
+            return;
+        }
+        final ocl_image clInput = new ocl_image(img, true);
+        final ocl_image clOutput = new ocl_image(CL.CL_MEM_WRITE_ONLY, CL.CL_UNSIGNED_INT8, CL.CL_RGBA, w, h, null);
+        final int[] clPixels = new int[w * h];
+        cl_event[][] event = {null};
+        OpenCLBase.runWithArgs("doVigneting", global_sz, event, clInput, clOutput);
+        OpenCLBase.query_int(clOutput, event[0], clPixels); // Chauffe
+        t0 = System.nanoTime();
+        for (int i = 0; i < NB_ITER; i++) {
+            EventManager.release(event);
+            OpenCLBase.runWithArgs("doVigneting", global_sz, event, clInput, clOutput);
+            OpenCLBase.query_int(clOutput, event[0], clPixels);
+        }
+        final double clSeconds = (System.nanoTime() - t0) * 1.0e-9 / NB_ITER;
+        System.out.printf("OpenCL : %.2f ms/image, %.1f Mpix/s%n", clSeconds * 1e3, w * h * 1e-6 / clSeconds);
+
+        // ---------------------------------------------------------------------
+        //                        Parite des resultats
+        // ---------------------------------------------------------------------
+        final int[] javaPixels = javaOutput.getHostPixels();
+        int maxDiff = 0;
+        for (int i = 0; i < javaPixels.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                maxDiff = Math.max(maxDiff, Math.abs(((javaPixels[i] >>> shift) & 0xff) - ((clPixels[i] >>> shift) & 0xff)));
+            }
+        }
+        System.out.printf("Ecart max par canal : %d (%s)%n", maxDiff, maxDiff <= TOLERANCE ? "OK" : "KO");
+        clInput.release();
+        clOutput.release();
+        if (maxDiff > TOLERANCE) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package opencltopicture;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.KernelLibrary;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_event;
+
+/**
+ * Utilisation des kernels de KernelLibrary sur une image ARGB (swizzle,
+ * premultiplication, remplissage), verifies pixel par pixel. Avec un device,
+ * une image float est aussi relue apres normalisation sur le device.
+ *
+ * @author durands
+ */
+public class DemoKernelLibrary {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static int countDifferences(final ocl_image img, final int[] expected) {
+        final BufferedImage result = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        OpenCLBase.query_picture(img, null, result);
+        final int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+        int errors = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                // Arrondi du device a une unite pres
+                if (Math.abs(((pixels[i] >>> shift) & 0xff) - ((expected[i] >>> shift) & 0xff)) > 1) {
+                    errors++;
+                    break;
+                }
+            }
+        }
+        return errors;
+    }
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoKernelLibrary.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+        // Alpha variable pour la premultiplication
+        final int[] src = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < src.length; i++) {
+            src[i] = (src[i] & 0xffffff) | ((i % w * 255 / w) << 24);
+        }
+
+        final ocl_image clInput = new ocl_image(img, true);
+        final ocl_image clOutput = ocl_image.create2DPicture(w, h);
+        final cl_event[][] event = {null};
+        final int[] expected = new int[src.length];
+
+        KernelLibrary.swizzle(clInput, clOutput, event);
+        EventManager.release(event);
+        for (int i = 0; i < src.length; i++) {
+            final int p = src[i];
+            expected[i] = (p & 0xff00ff00) | ((p >> 16) & 0xff) | ((p & 0xff) << 16);
+        }
+        System.out.println("swizzle_rgba_bgra : " + countDifferences(clOutput, expected) + " pixels faux");
+
+        KernelLibrary.premultiply(clInput, clOutput, event);
+        EventManager.release(event);
+        for (int i = 0; i < src.length; i++) {
+            final Color c = new Color(src[i], true);
+            final float a = c.getAlpha() / 255.f;
+            expected[i] = new Color(Math.round(c.getRed() * a), Math.round(c.getGreen() * a), Math.round(c.getBlue() * a), c.getAlpha()).getRGB();
+        }
+        System.out.println("premultiply : " + countDifferences(clOutput, expected) + " pixels faux");
+
+        final Color fill = new Color(10, 120, 230, 200);
+        KernelLibrary.fill(clOutput, fill, event);
+        EventManager.release(event);
+        Arrays.fill(expected, fill.getRGB());
+        System.out.println("fill_image : " + countDifferences(clOutput, expected) + " pixels faux");
+
+        if (OpenCLBase.isDeviceAvailable()) {
+            // Rampe float entre -3 et 5 : relue telle quelle (saturee) puis normalisee
+            final float[] ramp = new float[w * h];
+            for (int i = 0; i < ramp.length; i++) {
+                ramp[i] = -3.f + 8.f * (i % w) / (w - 1);
+            }
+            final ocl_image clFloat = new ocl_image(ramp, w, h);
+            final BufferedImage raw = clFloat.query_img(), normalized = clFloat.query_img(true);
+            System.out.printf("Rampe float : bords %d..%d bruts, %d..%d normalises%n",
+                    raw.getRaster().getSample(0, 0, 0), raw.getRaster().getSample(w - 1, 0, 0),
+                    normalized.getRaster().getSample(0, 0, 0), normalized.getRaster().getSample(w - 1, 0, 0));
+            clFloat.release();
+        }
+        clInput.release();
+        clOutput.release();
+    }
+}
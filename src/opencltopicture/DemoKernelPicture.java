@@ -10,12 +10,12 @@ import java.awt.image.BufferedImage;
 import java.awt.image.VolatileImage;
 import java.io.IOException;
 import java.net.URL;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.WindowConstants;
-import opencltopicture.tools.Images2D;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.StripLoader;
 import org.jocl.CL;
 import static org.jocl.CL.CL_RGBA;
 import static org.jocl.CL.CL_UNSIGNED_INT8;
@@ -57,8 +57,6 @@ public class DemoKernelPicture {
         
     public static void main(String args[]) throws IOException {
         final URL urlImg = DemoKernelPicture.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
-        BufferedImage img = ImageIO.read(urlImg);
-        img = Images2D.toBufferedImage(img, BufferedImage.TYPE_INT_ARGB);
 
         // ---------------------------------------------------------------------
         //                  Chargement du Programme OpenCL 
@@ -68,11 +66,12 @@ public class DemoKernelPicture {
         // ---------------------------------------------------------------------
         //                  Creation des textures GPU
         // ---------------------------------------------------------------------
-        // Creation de l'image en tant que texture sur le GPU
-        ocl_image clTextureInput = new ocl_image(img, true);      // => [clCreateImage]
+        // Decodage de l'image par bandes envoyees directement sur le GPU
+        ocl_image clTextureInput = StripLoader.load(urlImg, 0);   // => [clCreateImage] + [clEnqueueWriteImage]
+        final int w = clTextureInput.getWidth(), h = clTextureInput.getHeight();
 
         // Creation d'une texture GPU pour le resultat
-        ocl_image clTextureOutput = new ocl_image(CL.CL_MEM_WRITE_ONLY, CL_UNSIGNED_INT8, CL_RGBA, img.getWidth(), img.getHeight(), null);
+        ocl_image clTextureOutput = new ocl_image(CL.CL_MEM_WRITE_ONLY, CL_UNSIGNED_INT8, CL_RGBA, w, h, null);
 
 
         // ---------------------------------------------------------------------
@@ -81,7 +80,7 @@ public class DemoKernelPicture {
         cl_event[][] event = {null};
         if (OpenCLBase.runWithArgs(                               // => [clEnqueueNDRangeKernel]
                 "doVigneting",                                    // Le nom de la fonction (Kernel)
-                new long[]{img.getWidth(), img.getHeight()},      // Les indexes vont aller de 0 a w pour gix et de 0 a h pour giy (2 boucles for imbiquees) 
+                new long[]{w, h},                                 // Les indexes vont aller de 0 a w pour gix et de 0 a h pour giy (2 boucles for imbiquees) 
                 event,                                            // Evenement de synchronisation
                 clTextureInput, clTextureOutput)) {               // Les arguments de la fonction
 
@@ -89,9 +88,11 @@ public class DemoKernelPicture {
         //                  Recuperation du resultat
         // ---------------------------------------------------------------------
             // On prepare une image Java classique
-            final BufferedImage imgOut = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            final BufferedImage imgOut = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
             // On transfert les pixels resultat du GPU vers le tableau des pixels de l'image
-            OpenCLBase.query_picture(clTextureOutput, null, imgOut); // => [clEnqueueReadImage]
+            OpenCLBase.query_picture(clTextureOutput, event[0], imgOut); // => [clEnqueueReadImage] apres la fin du kernel
+            // La chaine d'evenements n'est plus utile
+            EventManager.release(event);
 
         // ---------------------------------------------------------------------
         //         On libere l'espace GPU si on a finit de s'en servir
@@ -0,0 +1,92 @@
+package opencltopicture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.net.URL;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.MappedPicture;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.ocl_image;
+import org.jocl.cl_event;
+
+/**
+ * Compare la relecture classique (query_picture dans une nouvelle
+ * BufferedImage) avec la relecture sans copie par clEnqueueMapImage.
+ *
+ * @author durands
+ */
+public class DemoMappedReadback {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int NB_ITER = 50;
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoMappedReadback.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        if (!OpenCLBase.createKernels(DemoMappedReadback.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl"))) {
+            System.out.println("Pas de device OpenCL");
+            return;
+        }
+        final ocl_image clInput = new ocl_image(img, true);
+        final ocl_image clOutput = ocl_image.create2DOutputPicture(w, h);
+        final ocl_image clMapped = ocl_image.create2DMappedOutputPicture(w, h);
+        final long[] global_sz = new long[]{w, h};
+
+        // ---------------------------------------------------------------------
+        //              Relecture classique : allocation + copie
+        // ---------------------------------------------------------------------
+        long checksum = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < NB_ITER; i++) {
+            cl_event[][] event = {null};
+            OpenCLBase.runWithArgs("doVigneting", global_sz, event, clInput, clOutput);
+            final BufferedImage imgOut = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            OpenCLBase.query_picture(clOutput, event[0], imgOut);
+            EventManager.release(event);
+            final int[] pixels = ((DataBufferInt) imgOut.getRaster().getDataBuffer()).getData();
+            for (int p : pixels) {
+                checksum += p;
+            }
+        }
+        final double copySeconds = (System.nanoTime() - t0) * 1.0e-9 / NB_ITER;
+
+        // ---------------------------------------------------------------------
+        //              Relecture par mapping : ni allocation ni copie
+        // ---------------------------------------------------------------------
+        long checksumMapped = 0;
+        t0 = System.nanoTime();
+        // Une seule chaine : chaque kernel sur clMapped attend l'unmap precedent
+        final cl_event[][] event = {null};
+        for (int i = 0; i < NB_ITER; i++) {
+            OpenCLBase.runWithArgs("doVigneting", global_sz, event, clInput, clMapped);
+            try (MappedPicture mapped = OpenCLBase.map_picture(clMapped, event[0])) {
+                final DataBuffer pixels = mapped.getImage().getRaster().getDataBuffer();
+                final int stride = ((SinglePixelPackedSampleModel) mapped.getImage().getSampleModel()).getScanlineStride();
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        checksumMapped += pixels.getElem(y * stride + x);
+                    }
+                }
+                mapped.close(event);
+            }
+        }
+        EventManager.release(event);
+        final double mappedSeconds = (System.nanoTime() - t0) * 1.0e-9 / NB_ITER;
+
+        System.out.printf("query_picture : %.2f ms/image%n", copySeconds * 1e3);
+        System.out.printf("map_picture   : %.2f ms/image%n", mappedSeconds * 1e3);
+        System.out.println(checksum == checksumMapped ? "Resultats identiques" : "Resultats differents !");
+
+        clInput.release();
+        clOutput.release();
+        clMapped.release();
+    }
+}
@@ -0,0 +1,72 @@
+package opencltopicture;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.EventManager;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.RawFrameFile;
+import opencltopicture.tools.ocl_image;
+import org.jocl.CL;
+import org.jocl.cl_event;
+
+/**
+ * Resultat d'un kernel ecrit dans un fichier de trame brute puis recharge sur
+ * le device sans decodage ni tableau Java. Le temps de rechargement est
+ * compare au decodage du JPEG d'origine.
+ *
+ * @author durands
+ */
+public class DemoRawFrame {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoRawFrame.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        OpenCLBase.createKernels(DemoRawFrame.class.getClassLoader().getResource(RESOURCES_PATH + "DemoKernelPicture.cl"));
+
+        final ocl_image clInput = new ocl_image(img, true);
+        final ocl_image clOutput = ocl_image.create2DOutputPicture(w, h);
+        final cl_event[][] event = {null};
+        OpenCLBase.runWithArgs("doVigneting", new long[]{w, h}, event, clInput, clOutput);
+        final BufferedImage expected = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        OpenCLBase.query_picture(clOutput, event[0], expected);
+
+        final File f = File.createTempFile("frame", ".oclf");
+        f.deleteOnExit();
+        long t0 = System.nanoTime();
+        RawFrameFile.write(f, clOutput, event[0]);
+        System.out.printf("Ecriture de %s (%d octets) : %.1f ms%n", f.getName(), f.length(), (System.nanoTime() - t0) * 1e-6);
+        EventManager.release(event);
+
+        t0 = System.nanoTime();
+        final ocl_image reloaded;
+        try (RawFrameFile frame = RawFrameFile.open(f)) {
+            System.out.printf("Trame %dx%d, %d octets par pixel%n", frame.getWidth(), frame.getHeight(),
+                    Images2D.elementSizeOf(frame.getChannelOrder(), frame.getDataType()));
+            reloaded = frame.toImage(CL.CL_MEM_READ_ONLY);
+        }
+        System.out.printf("Rechargement : %.1f ms%n", (System.nanoTime() - t0) * 1e-6);
+        t0 = System.nanoTime();
+        ImageIO.read(urlImg);
+        System.out.printf("Decodage du JPEG : %.1f ms%n", (System.nanoTime() - t0) * 1e-6);
+
+        final BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        OpenCLBase.query_picture(reloaded, null, result);
+        final boolean same = Arrays.equals(((DataBufferInt) result.getRaster().getDataBuffer()).getData(),
+                ((DataBufferInt) expected.getRaster().getDataBuffer()).getData());
+        System.out.println(same ? "Resultats identiques" : "Resultats differents !");
+
+        clInput.release();
+        clOutput.release();
+        reloaded.release();
+    }
+}
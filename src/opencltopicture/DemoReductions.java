@@ -0,0 +1,56 @@
+package opencltopicture;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import opencltopicture.tools.Images2D;
+import opencltopicture.tools.Reductions;
+import opencltopicture.tools.ocl_image;
+
+/**
+ * Statistiques et histogramme d'une image calcules par Reductions, compares
+ * a un parcours Java de l'image.
+ *
+ * @author durands
+ */
+public class DemoReductions {
+
+    private static final String RESOURCES_PATH = "opencltopicture/";
+
+    private static final int BINS = 16;
+    // Canaux OpenCL des images ARGB (stockees en bgra)
+    private static final String[] CHANNELS = {"bleu", "vert", "rouge", "alpha"};
+
+    public static void main(String args[]) throws IOException {
+        final URL urlImg = DemoReductions.class.getClassLoader().getResource(RESOURCES_PATH + "mars.jpg");
+        final BufferedImage img = Images2D.toBufferedImage(ImageIO.read(urlImg), BufferedImage.TYPE_INT_ARGB);
+        final ocl_image clImg = new ocl_image(img, true);
+        final int[] pixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+
+        boolean same = true;
+        for (int c = 0; c < 4; c++) {
+            final long t0 = System.nanoTime();
+            final Reductions.Stats stats = Reductions.stats(clImg, c, null);
+            System.out.printf("%-5s : %s (%.2f ms)%n", CHANNELS[c], stats, (System.nanoTime() - t0) * 1e-6);
+            // Reference
+            final int shift = c == 3 ? 24 : 8 * c;
+            double sum = 0;
+            for (int p : pixels) {
+                sum += ((p >>> shift) & 0xff) / 255.;
+            }
+            same &= Math.abs(stats.getMean() - sum / pixels.length) < 1e-4;
+        }
+
+        final int[] hist = Reductions.histogram(clImg, 2, BINS, 0.f, 1.f, null);
+        final int[] expected = new int[BINS];
+        for (int p : pixels) {
+            expected[Math.min(BINS - 1, (int) (((p >>> 16) & 0xff) / 255.f * BINS))]++;
+        }
+        System.out.println("Histogramme du rouge : " + Arrays.toString(hist));
+        same &= Arrays.equals(hist, expected);
+        System.out.println(same ? "Resultats identiques" : "Resultats differents !");
+        clImg.release();
+    }
+}
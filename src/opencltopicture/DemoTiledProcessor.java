@@ -0,0 +1,135 @@
+package opencltopicture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import opencltopicture.tools.JavaKernels;
+import opencltopicture.tools.MappedArgbFile;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.TiledProcessor;
+import opencltopicture.tools.ocl_image;
+
+/**
+ * Flou moyenneur sur une image trop grande pour etre chargee d'un bloc : la
+ * source et le resultat sont des fichiers projetes en memoire et l'image
+ * passe sur le device par tuiles avec une marge egale au rayon du flou.
+ * Quelques pixels sont verifies par un calcul direct.
+ *
+ * Usage : DemoTiledProcessor [largeur hauteur [taille des tuiles]]
+ *
+ * @author durands
+ */
+public class DemoTiledProcessor {
+
+    private static final int RADIUS = 3;
+
+    private static final String BOX_BLUR_SOURCE
+            = "const sampler_t sampler_nearest = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;\n"
+            + "__kernel void boxBlur(read_only image2d_t input, write_only image2d_t output, int r) {\n"
+            + "    const int2 xy = (int2)(get_global_id(0), get_global_id(1));\n"
+            + "    if (xy.x >= get_image_width(output) || xy.y >= get_image_height(output)) return;\n"
+            + "    uint4 sum = (uint4)(0);\n"
+            + "    for (int dy = -r; dy <= r; dy++) {\n"
+            + "        for (int dx = -r; dx <= r; dx++) {\n"
+            + "            sum += read_imageui(input, sampler_nearest, xy + (int2)(dx, dy));\n"
+            + "        }\n"
+            + "    }\n"
+            + "    write_imageui(output, xy, sum / (uint)((2 * r + 1) * (2 * r + 1)));\n"
+            + "}\n";
+
+    /**
+     * Meme calcul que le kernel OpenCL, pour les machines sans device
+     */
+    private static void boxBlur(final int x0, final int y0, final int x1, final int y1, final Object[] args) {
+        final ocl_image in = (ocl_image) args[0], out = (ocl_image) args[1];
+        final int r = (Integer) args[2], w = in.getWidth(), h = in.getHeight();
+        final int[] src = in.getHostPixels(), dst = out.getHostPixels();
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                dst[y * w + x] = average(r, x, y, w, h, (px, py) -> src[py * w + px]);
+            }
+        }
+    }
+
+    private interface Pixels {
+
+        int get(int x, int y);
+    }
+
+    private static int average(final int r, final int x, final int y, final int w, final int h, final Pixels p) {
+        final int[] sum = new int[4];
+        for (int dy = -r; dy <= r; dy++) {
+            for (int dx = -r; dx <= r; dx++) {
+                final int c = p.get(Math.min(w - 1, Math.max(0, x + dx)), Math.min(h - 1, Math.max(0, y + dy)));
+                for (int k = 0; k < 4; k++) {
+                    sum[k] += (c >>> (8 * k)) & 0xff;
+                }
+            }
+        }
+        final int n = (2 * r + 1) * (2 * r + 1);
+        int res = 0;
+        for (int k = 0; k < 4; k++) {
+            res |= (sum[k] / n) << (8 * k);
+        }
+        return res;
+    }
+
+    public static void main(String args[]) throws IOException {
+        final int w = args.length > 1 ? Integer.parseInt(args[0]) : 6000;
+        final int h = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        final int tileSize = args.length > 2 ? Integer.parseInt(args[2]) : TiledProcessor.DEFAULT_TILE_SIZE;
+
+        JavaKernels.register("boxBlur", DemoTiledProcessor::boxBlur);
+        OpenCLBase.createKernelsFromSource(BOX_BLUR_SOURCE);
+        TiledProcessor.setFootprint("boxBlur", RADIUS);
+
+        final File srcFile = File.createTempFile("tiled-src", ".argb"), dstFile = File.createTempFile("tiled-dst", ".argb");
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+        try (MappedArgbFile src = MappedArgbFile.create(srcFile, w, h);
+                MappedArgbFile dst = MappedArgbFile.create(dstFile, w, h)) {
+            // Damier et degrades pour que chaque tuile soit differente
+            final IntBuffer row = IntBuffer.allocate(w);
+            for (int y = 0; y < h; y++) {
+                row.clear();
+                for (int x = 0; x < w; x++) {
+                    row.put(0xff000000 | ((x * 255 / w) << 16) | ((y * 255 / h) << 8) | (((x / 7 + y / 5) & 1) * 255));
+                }
+                row.flip();
+                src.writeRow(y, 0, w, row);
+            }
+
+            final TiledProcessor processor = new TiledProcessor("boxBlur", tileSize, RADIUS);
+            final long t0 = System.nanoTime();
+            final boolean ok = processor.process(src, dst);
+            final double seconds = (System.nanoTime() - t0) * 1e-9;
+            System.out.printf("%dx%d : %d tuile(s) de %d (marge %d) en %.2f s (%.1f Mpix/s)%s%n", w, h, processor.getTileCount(),
+                    processor.getTileSize(), processor.getHalo(), seconds, (double) w * h / seconds * 1e-6, ok ? "" : " ECHEC");
+
+            // Verification sur les bords des tuiles et les coins de l'image
+            int errors = 0;
+            final int step = processor.getTileSize();
+            for (int y : new int[]{0, step - 1, step, h / 2, h - 1}) {
+                for (int x : new int[]{0, step - 1, step, w / 2, w - 1}) {
+                    if (x < w && y < h) {
+                        final int expected = average(RADIUS, x, y, w, h, src::getRGB);
+                        final int got = dst.getRGB(x, y);
+                        if (maxChannelDiff(expected, got) > 1) {
+                            errors++;
+                            System.out.printf("(%d,%d) : %08x au lieu de %08x%n", x, y, got, expected);
+                        }
+                    }
+                }
+            }
+            System.out.println(errors == 0 ? "Resultats corrects" : errors + " pixel(s) faux");
+        }
+    }
+
+    private static int maxChannelDiff(final int a, final int b) {
+        int d = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            d = Math.max(d, Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)));
+        }
+        return d;
+    }
+}
@@ -0,0 +1,102 @@
+package opencltopicture;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import opencltopicture.tools.MappedVolume;
+import opencltopicture.tools.OpenCLBase;
+import opencltopicture.tools.VolumeProcessor;
+import org.jocl.CL;
+
+/**
+ * Moyenne en z sur un volume float brut projete en memoire : le volume passe
+ * sur le device par slabs de tranches avec RADIUS tranches de marge de chaque
+ * cote. Quelques voxels sont verifies par un calcul direct.
+ *
+ * Usage : DemoVolumeProcessor [largeur hauteur profondeur [tranches par slab]]
+ *
+ * @author durands
+ */
+public class DemoVolumeProcessor {
+
+    private static final int RADIUS = 2;
+
+    private static final String Z_AVERAGE_SOURCE
+            = "const sampler_t sampler_nearest = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;\n"
+            + "__kernel void zAverage(read_only image3d_t input, write_only image3d_t output, int r) {\n"
+            + "    const int4 p = (int4)(get_global_id(0), get_global_id(1), get_global_id(2), 0);\n"
+            + "    if (p.x >= get_image_width(output) || p.y >= get_image_height(output)) return;\n"
+            + "    float sum = 0.f;\n"
+            + "    for (int dz = -r; dz <= r; dz++) {\n"
+            + "        sum += read_imagef(input, sampler_nearest, p + (int4)(0, 0, dz, 0)).x;\n"
+            + "    }\n"
+            + "    write_imagef(output, p, (float4)(sum / (2 * r + 1)));\n"
+            + "}\n";
+
+    private static float value(final int x, final int y, final int z) {
+        return (x * 7 + y * 3 + z * z) % 101;
+    }
+
+    public static void main(String args[]) throws IOException {
+        final int w = args.length > 2 ? Integer.parseInt(args[0]) : 256;
+        final int h = args.length > 2 ? Integer.parseInt(args[1]) : 256;
+        final int d = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        final int slab = args.length > 3 ? Integer.parseInt(args[3]) : VolumeProcessor.DEFAULT_SLAB_DEPTH;
+
+        final File srcFile = File.createTempFile("volume-src", ".raw");
+        final File dstFile = File.createTempFile("volume-dst", ".raw");
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+
+        // Ecriture du volume tranche par tranche, sans tableau du volume entier
+        try (MappedVolume src = MappedVolume.create(srcFile, w, h, d, CL.CL_LUMINANCE, CL.CL_FLOAT)) {
+            for (int z = 0; z < d; z++) {
+                final FloatBuffer slice = src.slice(z).asFloatBuffer();
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        slice.put(value(x, y, z));
+                    }
+                }
+            }
+        }
+        System.out.printf("Volume %dx%dx%d : %d Mo%n", w, h, d, (long) w * h * d * 4 >> 20);
+
+        if (!OpenCLBase.isDeviceAvailable()) {
+            System.out.println("Pas de device OpenCL : les kernels 3D ne peuvent pas etre lances");
+            return;
+        }
+        OpenCLBase.createKernelsFromSource(Z_AVERAGE_SOURCE);
+        final VolumeProcessor processor = new VolumeProcessor("zAverage", slab, RADIUS, RADIUS);
+        final long t0 = System.nanoTime();
+        final boolean ok;
+        try (MappedVolume src = MappedVolume.open(srcFile, w, h, d, CL.CL_LUMINANCE, CL.CL_FLOAT);
+                MappedVolume dst = MappedVolume.create(dstFile, w, h, d, CL.CL_LUMINANCE, CL.CL_FLOAT)) {
+            ok = processor.process(src, dst);
+        }
+        System.out.printf("%s en %.1f ms : %d tranches envoyees, %d recopiees sur le device%n",
+                ok ? "Traite" : "ECHEC", (System.nanoTime() - t0) * 1e-6, processor.getUploadedSlices(), processor.getCopiedSlices());
+
+        // Verification de quelques voxels, dont ceux des bords et des jonctions de slabs
+        try (MappedVolume dst = MappedVolume.open(dstFile, w, h, d, CL.CL_LUMINANCE, CL.CL_FLOAT)) {
+            int errors = 0;
+            for (int z : new int[]{0, 1, slab - 1, slab, slab + 1, d / 2, d - 2, d - 1}) {
+                if (z < 0 || z >= d) {
+                    continue;
+                }
+                final FloatBuffer slice = dst.slice(z).asFloatBuffer();
+                for (int k = 0; k < 16; k++) {
+                    final int x = (k * 37) % w, y = (k * 53) % h;
+                    float expected = 0;
+                    for (int dz = -RADIUS; dz <= RADIUS; dz++) {
+                        expected += value(x, y, Math.min(d - 1, Math.max(0, z + dz)));
+                    }
+                    expected /= 2 * RADIUS + 1;
+                    if (Math.abs(slice.get(y * w + x) - expected) > 1e-3f) {
+                        errors++;
+                    }
+                }
+            }
+            System.out.println(errors == 0 ? "Resultats corrects" : errors + " voxels faux !");
+        }
+    }
+}
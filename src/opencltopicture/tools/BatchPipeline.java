@@ -0,0 +1,290 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import org.jocl.cl_event;
+
+/**
+ * Traitement d'un lot d'images par un pipeline en 5 etages :
+ * decodage -> upload -> kernel -> relecture -> encodage.
+ *
+ * Chaque etage a ses propres threads, les images du device sont recyclees
+ * (double ou triple buffering) si bien que le decodage de l'image N+2,
+ * l'upload de N+1, le calcul de N et l'encodage de N-1 se recouvrent. Le
+ * nombre d'images en cours est borne pour limiter la memoire.
+ *
+ * Le kernel doit avoir la signature (read_only image2d_t input, write_only
+ * image2d_t output, ...) comme doVigneting.
+ *
+ * @author durands
+ */
+public class BatchPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchPipeline.class.getName());
+
+    public static final String[] STAGES = {"decode", "upload", "compute", "download", "encode"};
+
+    private static final int DECODE = 0, UPLOAD = 1, COMPUTE = 2, DOWNLOAD = 3, ENCODE = 4;
+
+    /**
+     * Images du device reutilisees d'une image du lot a l'autre
+     */
+    private static class Slot {
+
+        ocl_image input, output;
+
+        void ensure(final BufferedImage img) {
+            final int w = img.getWidth(), h = img.getHeight();
+            if (input != null && input.getWidth() == w && input.getHeight() == h && input.getMem() != null) {
+                // Meme taille : on ecrit dans l'image existante
+                OpenCLBase.clEnqueueWriteImage(input.getMem(), true, new long[]{0, 0, 0}, new long[]{w, h, 1},
+                        (long) w * Images2D.pitchSizeOf(img), 0, Images2D.createRasterDataPointer(img), 0, null, null);
+                return;
+            }
+            release();
+            input = new ocl_image(img, true);
+            output = ocl_image.create2DOutputPicture(w, h);
+        }
+
+        void release() {
+            if (input != null) {
+                input.release();
+                output.release();
+                input = output = null;
+            }
+        }
+    }
+
+    /**
+     * Une image en cours de traitement
+     */
+    private static class Job {
+
+        final File source;
+        BufferedImage image;
+        Slot slot;
+        cl_event[][] event = {null};
+
+        Job(File source) {
+            this.source = source;
+        }
+    }
+
+    private final String kernelName;
+    private final Object[] kernelArgs;
+    private final String format;
+    private final int maxInFlight;
+
+    private final ExecutorService[] executors = new ExecutorService[STAGES.length];
+    private final AtomicInteger[] queued = new AtomicInteger[STAGES.length];
+    private final AtomicLong[] queuedSum = new AtomicLong[STAGES.length];
+    private final AtomicInteger[] queuedMax = new AtomicInteger[STAGES.length];
+    private final AtomicLong samples = new AtomicLong();
+    private final BlockingQueue<Slot> slots;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param kernelName kernel image -> image
+     * @param format format d'ecriture ("png", "jpg"...)
+     * @param ioThreads nombre de threads de decodage et d'encodage
+     * @param deviceSlots nombre de paires d'images sur le device (2 = double
+     * buffering, 3 = triple buffering)
+     * @param kernelArgs arguments passes apres les deux images
+     */
+    public BatchPipeline(final String kernelName, final String format, final int ioThreads, final int deviceSlots, final Object... kernelArgs) {
+        this.kernelName = kernelName;
+        this.kernelArgs = kernelArgs;
+        this.format = format;
+        this.maxInFlight = 2 * ioThreads + deviceSlots;
+        final int[] threads = {ioThreads, 1, 1, 1, ioThreads};
+        for (int i = 0; i < STAGES.length; i++) {
+            final String name = "batch-" + STAGES[i];
+            executors[i] = Executors.newFixedThreadPool(threads[i], r -> {
+                final Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+            queued[i] = new AtomicInteger();
+            queuedSum[i] = new AtomicLong();
+            queuedMax[i] = new AtomicInteger();
+        }
+        slots = new ArrayBlockingQueue<>(deviceSlots);
+        for (int i = 0; i < deviceSlots; i++) {
+            slots.add(new Slot());
+        }
+    }
+
+    private void enter(final int stage) {
+        final int n = queued[stage].incrementAndGet();
+        queuedMax[stage].accumulateAndGet(n, Math::max);
+    }
+
+    private void leave(final int stage) {
+        queued[stage].decrementAndGet();
+    }
+
+    private void sampleQueues() {
+        samples.incrementAndGet();
+        for (int i = 0; i < STAGES.length; i++) {
+            queuedSum[i].addAndGet(queued[i].get());
+        }
+    }
+
+    private <T> CompletableFuture<T> stage(final CompletableFuture<Job> previous, final int stage, final Function<Job, T> fn) {
+        return previous.thenApplyAsync(job -> {
+            leave(stage);
+            return fn.apply(job);
+        }, executors[stage]);
+    }
+
+    /**
+     * Traite toutes les images et les ecrit dans outputDir
+     *
+     * @param inputs
+     * @param outputDir
+     * @return nombre d'images traitees avec succes
+     * @throws InterruptedException
+     */
+    public int process(final List<File> inputs, final File outputDir) throws InterruptedException {
+        outputDir.mkdirs();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final long t0 = System.nanoTime();
+        for (File file : inputs) {
+            inFlight.acquire();
+            sampleQueues();
+            final Job job0 = new Job(file);
+            enter(DECODE);
+            final CompletableFuture<Job> decoded = CompletableFuture.supplyAsync(() -> {
+                leave(DECODE);
+                try {
+                    job0.image = Images2D.toBufferedImage(ImageIO.read(job0.source), BufferedImage.TYPE_INT_ARGB);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (job0.image == null) {
+                    throw new IllegalArgumentException("Unreadable image " + job0.source);
+                }
+                enter(UPLOAD);
+                return job0;
+            }, executors[DECODE]);
+            final CompletableFuture<Job> uploaded = stage(decoded, UPLOAD, job -> {
+                try {
+                    job.slot = slots.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                job.slot.ensure(job.image);
+                enter(COMPUTE);
+                return job;
+            });
+            final CompletableFuture<Job> computed = stage(uploaded, COMPUTE, job -> {
+                final Object[] args = new Object[kernelArgs.length + 2];
+                args[0] = job.slot.input;
+                args[1] = job.slot.output;
+                System.arraycopy(kernelArgs, 0, args, 2, kernelArgs.length);
+                if (!OpenCLBase.runWithArgs(kernelName, new long[]{job.image.getWidth(), job.image.getHeight()}, job.event, args)) {
+                    throw new IllegalStateException(kernelName + " failed on " + job.source);
+                }
+                enter(DOWNLOAD);
+                return job;
+            });
+            final CompletableFuture<Job> downloaded = stage(computed, DOWNLOAD, job -> {
+                // On reutilise l'image decodee pour recevoir le resultat
+                OpenCLBase.query_picture(job.slot.output, job.event[0], job.image);
+                EventManager.release(job.event);
+                slots.add(job.slot);
+                job.slot = null;
+                enter(ENCODE);
+                return job;
+            });
+            stage(downloaded, ENCODE, job -> {
+                final String name = job.source.getName().replaceFirst("\\.[^.]*$", "") + "." + format;
+                // Le JPEG ne gere pas la transparence
+                final BufferedImage out = format.startsWith("jp") ? Images2D.toBufferedImage(job.image, BufferedImage.TYPE_INT_RGB) : job.image;
+                try {
+                    if (!ImageIO.write(out, format, new File(outputDir, name))) {
+                        throw new IllegalArgumentException("No writer for " + format);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return job;
+            }).whenComplete((job, ex) -> {
+                if (ex != null) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "{0}: {1}", new Object[]{file, ex.getMessage()});
+                    // Le slot n'a pas ete rendu si l'erreur est survenue sur le device
+                    if (job0.slot != null) {
+                        slots.add(job0.slot);
+                        job0.slot = null;
+                    }
+                } else {
+                    done.incrementAndGet();
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        final double seconds = (System.nanoTime() - t0) * 1e-9;
+        LOGGER.fine(getReport(seconds));
+        return done.get();
+    }
+
+    /**
+     * Debit et profondeur moyenne / max des files de chaque etage
+     *
+     * @param seconds duree du traitement
+     * @return
+     */
+    public String getReport(final double seconds) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d image(s) in %.2f s (%.1f images/s), %d failed%n", done.get(), seconds, seconds == 0 ? 0. : done.get() / seconds, failed.get()));
+        final long n = Math.max(1, samples.get());
+        for (int i = 0; i < STAGES.length; i++) {
+            sb.append(String.format("  %-8s queue avg %.2f max %d%n", STAGES[i], (double) queuedSum[i].get() / n, queuedMax[i].get()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Libere les threads et les images du device
+     */
+    public void shutdown() {
+        for (ExecutorService e : executors) {
+            e.shutdown();
+            try {
+                e.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Slot slot : slots) {
+            slot.release();
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_event;
+import org.jocl.cl_kernel;
+
+/**
+ * Convolution d'une image par un noyau quelconque (flou, nettete, contours).
+ *
+ * Un noyau de rang 1 (produit d'une colonne et d'une ligne : gaussienne,
+ * boite, Sobel...) est applique en deux passes, horizontale puis verticale,
+ * soit kw + kh lectures par pixel au lieu de kw x kh. Chaque work-group
+ * charge sa tuile et ses bords (apron) en memoire __local, puis chaque
+ * work-item lit ses voisins dans cette tuile. Les poids sont ecrits comme
+ * constantes dans le kernel genere (boucles deroulees, poids nuls omis), un
+ * kernel est compile par noyau et par bord et garde dans le ProgramCache.
+ *
+ * Les bords sont geres en coordonnees entieres (CLAMP, MIRROR, WRAP). Le
+ * canal w (alpha des images ARGB) du pixel central est conserve. Si la tuile
+ * ne tient pas en memoire locale, ou si le kernel compile n'accepte pas des
+ * work-groups de cette taille (CL_KERNEL_WORK_GROUP_SIZE), une tuile de 8x8
+ * est essayee, puis le kernel lit directement l'image.
+ *
+ * Les noyaux separables passent par une image intermediaire propre a
+ * l'instance : sur une queue out-of-order, la passe horizontale d'un appel
+ * attend la passe verticale de l'appel precedent.
+ *
+ * <pre>
+ * Convolution blur = Convolution.gaussian(4, 2.f, Convolution.Border.MIRROR);
+ * blur.apply(input, output, event);
+ * blur.release();
+ * </pre>
+ *
+ * Sans device, les images ARGB sont convoluees en Java.
+ *
+ * @author durands
+ */
+public class Convolution {
+
+    private static final Logger LOGGER = Logger.getLogger(Convolution.class.getName());
+
+    /**
+     * Pixels lus hors de l'image
+     */
+    public enum Border {
+        // Pixel du bord repete
+        CLAMP("return clamp(x, 0, n - 1);"),
+        // Symetrie autour du bord (le pixel du bord est repete : ... 1 0 | 0 1 ...)
+        MIRROR("const int p = 2 * n;\n    x %= p;\n    if (x < 0) x += p;\n    return x < n ? x : p - 1 - x;"),
+        // Image periodique
+        WRAP("x %= n;\n    return x < 0 ? x + n : x;");
+
+        final String body;
+
+        Border(final String body) {
+            this.body = body;
+        }
+
+        int apply(final int x, final int n) {
+            switch (this) {
+                case CLAMP:
+                    return x < 0 ? 0 : (x >= n ? n - 1 : x);
+                case WRAP:
+                    return Math.floorMod(x, n);
+                default:
+                    final int m = Math.floorMod(x, 2 * n);
+                    return m < n ? m : 2 * n - 1 - m;
+            }
+        }
+    }
+
+    /**
+     * Kernel compile pour une passe
+     */
+    private static class Pass {
+
+        final String kernelName;
+        // Cote des work-groups, 0 pour le kernel a lectures directes
+        final int tile;
+
+        Pass(String kernelName, int tile) {
+            this.kernelName = kernelName;
+            this.tile = tile;
+        }
+    }
+
+    // Prefixe, noyau et bord => passe compilee (le source n'est genere qu'a la compilation)
+    private static final Map<String, Pass> compiled = new ConcurrentHashMap<>();
+
+    private static final int MIN_TILE = 8;
+
+    // Cote des tuiles (work-groups de tile x tile), 0 tant que le device n'est pas interroge
+    private static int tile;
+    private static long localMemSize;
+    // Incremente par reset() : les images intermediaires d'avant sont perdues
+    private static int generation;
+
+    private final float[] weights;
+    private final int kw, kh;
+    private final Border border;
+    // Facteurs du noyau s'il est de rang 1, null sinon
+    private final float[] row, col;
+
+    // Resultat de la passe horizontale (float), cree dans le contexte intermediateGeneration
+    private ocl_image intermediate;
+    private int intermediateGeneration;
+    // Derniere passe verticale qui lit intermediate (queue out-of-order), ou null
+    private cl_event[] intermediateRead;
+
+    /**
+     * @param kernel poids kernel[y][x], dimensions impaires, centre au milieu
+     * @param border
+     */
+    public Convolution(final float[][] kernel, final Border border) {
+        this(flatten(kernel), kernel[0].length, kernel.length, border, true);
+    }
+
+    private Convolution(final float[] weights, final int kw, final int kh, final Border border, final boolean detectSeparable) {
+        if (kw % 2 == 0 || kh % 2 == 0 || weights.length != kw * kh) {
+            throw new IllegalArgumentException("Kernel of " + kw + "x" + kh + " must have odd dimensions");
+        }
+        this.weights = weights;
+        this.kw = kw;
+        this.kh = kh;
+        this.border = border;
+        final float[][] factors = detectSeparable ? factorize(weights, kw, kh) : null;
+        this.row = factors == null ? null : factors[0];
+        this.col = factors == null ? null : factors[1];
+    }
+
+    private static float[] flatten(final float[][] kernel) {
+        final int kw = kernel[0].length;
+        final float[] weights = new float[kernel.length * kw];
+        for (int y = 0; y < kernel.length; y++) {
+            if (kernel[y].length != kw) {
+                throw new IllegalArgumentException("Kernel rows of different lengths");
+            }
+            System.arraycopy(kernel[y], 0, weights, y * kw, kw);
+        }
+        return weights;
+    }
+
+    /**
+     * Cherche ligne et colonne telles que weights = colonne x ligne
+     *
+     * @return {ligne, colonne}, null si le noyau n'est pas de rang 1
+     */
+    private static float[][] factorize(final float[] weights, final int kw, final int kh) {
+        // Pivot : le plus grand coefficient
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                pivot = i;
+            }
+        }
+        final float p = weights[pivot];
+        if (p == 0.f || kw == 1 || kh == 1) {
+            return null;
+        }
+        final int px = pivot % kw, py = pivot / kw;
+        final float[] row = new float[kw], col = new float[kh];
+        for (int x = 0; x < kw; x++) {
+            row[x] = weights[py * kw + x] / p;
+        }
+        for (int y = 0; y < kh; y++) {
+            col[y] = weights[y * kw + px];
+        }
+        final float eps = 1e-6f * Math.abs(p);
+        for (int y = 0; y < kh; y++) {
+            for (int x = 0; x < kw; x++) {
+                if (Math.abs(col[y] * row[x] - weights[y * kw + x]) > eps) {
+                    return null;
+                }
+            }
+        }
+        return new float[][]{row, col};
+    }
+
+    // -------------------------------------------------------------------------
+    //                    Noyaux usuels
+    // -------------------------------------------------------------------------
+    /**
+     * Noyau produit d'une colonne et d'une ligne
+     */
+    public static Convolution separable(final float[] row, final float[] col, final Border border) {
+        final float[] weights = new float[row.length * col.length];
+        for (int y = 0; y < col.length; y++) {
+            for (int x = 0; x < row.length; x++) {
+                weights[y * row.length + x] = col[y] * row[x];
+            }
+        }
+        return new Convolution(weights, row.length, col.length, border, true);
+    }
+
+    public static Convolution gaussian(final int radius, final float sigma, final Border border) {
+        final float[] g = new float[2 * radius + 1];
+        float sum = 0.f;
+        for (int i = -radius; i <= radius; i++) {
+            g[i + radius] = (float) Math.exp(-i * i / (2. * sigma * sigma));
+            sum += g[i + radius];
+        }
+        for (int i = 0; i < g.length; i++) {
+            g[i] /= sum;
+        }
+        return separable(g, g, border);
+    }
+
+    public static Convolution box(final int radius, final Border border) {
+        final float[] b = new float[2 * radius + 1];
+        Arrays.fill(b, 1.f / b.length);
+        return separable(b, b, border);
+    }
+
+    public static Convolution sharpen(final Border border) {
+        return new Convolution(new float[][]{{0, -1, 0}, {-1, 5, -1}, {0, -1, 0}}, border);
+    }
+
+    public static Convolution laplacian(final Border border) {
+        return new Convolution(new float[][]{{0, 1, 0}, {1, -4, 1}, {0, 1, 0}}, border);
+    }
+
+    public static Convolution sobelX(final Border border) {
+        return separable(new float[]{-1, 0, 1}, new float[]{1, 2, 1}, border);
+    }
+
+    /**
+     * Meme noyau applique en une seule passe 2D (pour comparer)
+     */
+    public Convolution as2D() {
+        return new Convolution(weights, kw, kh, border, false);
+    }
+
+    public boolean isSeparable() {
+        return row != null;
+    }
+
+    public int getRadiusX() {
+        return kw / 2;
+    }
+
+    public int getRadiusY() {
+        return kh / 2;
+    }
+
+    public Border getBorder() {
+        return border;
+    }
+
+    // -------------------------------------------------------------------------
+    //                    Kernels generes
+    // -------------------------------------------------------------------------
+    /**
+     * Le contexte a ete libere (OpenCLBase.releaseAll)
+     */
+    static synchronized void reset() {
+        compiled.clear();
+        tile = 0;
+        localMemSize = 0;
+        generation++;
+    }
+
+    private static synchronized int getGeneration() {
+        return generation;
+    }
+
+    private static synchronized void queryDevice() {
+        if (tile == 0) {
+            tile = OpenCLBase.getDeviceLong(CL.CL_DEVICE_MAX_WORK_GROUP_SIZE) >= 256 ? 16 : 8;
+            localMemSize = OpenCLBase.getDeviceLong(CL.CL_DEVICE_LOCAL_MEM_SIZE);
+        }
+    }
+
+    /**
+     * Tuile et apron en float4, avec une marge pour les variables locales du
+     * compilateur
+     */
+    private static boolean fitsInLocalMemory(final int rx, final int ry, final int tile, final long localMemSize) {
+        return (long) (tile + 2 * rx) * (tile + 2 * ry) * 16 <= localMemSize - 1024;
+    }
+
+    /**
+     * Source du kernel (input, output, inScale, outScale) qui applique un
+     * noyau kw x kh
+     *
+     * @param kernelName
+     * @param weights
+     * @param kw
+     * @param kh
+     * @param border
+     * @param tile cote des work-groups
+     * @param useLocal tuile en memoire locale ou lectures directes
+     * @return
+     */
+    public static String generateSource(final String kernelName, final float[] weights, final int kw, final int kh, final Border border,
+            final int tile, final boolean useLocal) {
+        final int rx = kw / 2, ry = kh / 2;
+        final StringBuilder sb = new StringBuilder();
+        sb.append("const sampler_t conv_sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;\n\n");
+        sb.append("inline int conv_border(int x, const int n) {\n    ").append(border.body).append("\n}\n\n");
+        sb.append("inline float4 conv_read(read_only image2d_t img, const int x, const int y, const int2 res, const float scale) {\n");
+        sb.append("    const int2 xy = (int2)(conv_border(x, res.x), conv_border(y, res.y));\n");
+        sb.append("    return scale > 0.f ? convert_float4(read_imageui(img, conv_sampler, xy)) * scale : read_imagef(img, conv_sampler, xy);\n");
+        sb.append("}\n\n");
+        sb.append("__kernel void ").append(kernelName)
+                .append("(read_only image2d_t input, write_only image2d_t output, const float inScale, const float outScale) {\n");
+        sb.append("    const int2 res = get_image_dim(input);\n");
+        sb.append("    const int x = get_global_id(0), y = get_global_id(1);\n");
+        if (useLocal) {
+            final int tw = tile + 2 * rx, th = tile + 2 * ry;
+            sb.append("    __local float4 tile[").append(th).append("][").append(tw).append("];\n");
+            sb.append("    const int lx = get_local_id(0), ly = get_local_id(1);\n");
+            sb.append("    const int x0 = get_group_id(0) * ").append(tile).append(" - ").append(rx)
+                    .append(", y0 = get_group_id(1) * ").append(tile).append(" - ").append(ry).append(";\n");
+            // Tous les work-items chargent la tuile avant le test de sortie (barriere)
+            sb.append("    for (int j = ly; j < ").append(th).append("; j += ").append(tile).append(") {\n");
+            sb.append("        for (int i = lx; i < ").append(tw).append("; i += ").append(tile).append(") {\n");
+            sb.append("            tile[j][i] = conv_read(input, x0 + i, y0 + j, res, inScale);\n");
+            sb.append("        }\n    }\n");
+            sb.append("    barrier(CLK_LOCAL_MEM_FENCE);\n");
+        }
+        sb.append("    if (x >= res.x || y >= res.y) return;\n");
+        sb.append("    float4 sum = (float4)(0.f);\n");
+        for (int dy = -ry; dy <= ry; dy++) {
+            for (int dx = -rx; dx <= rx; dx++) {
+                final float wgt = weights[(dy + ry) * kw + dx + rx];
+                if (wgt == 0.f) {
+                    continue;
+                }
+                sb.append("    sum += ").append(Float.toString(wgt)).append("f * ");
+                if (useLocal) {
+                    sb.append("tile[ly + ").append(ry + dy).append("][lx + ").append(rx + dx).append("];\n");
+                } else {
+                    sb.append("conv_read(input, x + ").append(dx).append(", y + ").append(dy).append(", res, inScale);\n");
+                }
+            }
+        }
+        sb.append("    sum.w = ").append(useLocal ? "tile[ly + " + ry + "][lx + " + rx + "].w" : "conv_read(input, x, y, res, inScale).w").append(";\n");
+        sb.append("    if (outScale > 0.f) {\n");
+        sb.append("        write_imageui(output, (int2)(x, y), convert_uint4_sat_rte(sum / outScale));\n");
+        sb.append("    } else {\n");
+        sb.append("        write_imagef(output, (int2)(x, y), sum);\n");
+        sb.append("    }\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Compile (une seule fois) le kernel d'une passe : tuile la plus grande
+     * que la memoire locale et le kernel compile acceptent, lectures directes
+     * sinon
+     *
+     * @return null en cas d'erreur
+     */
+    private static Pass getPass(final String prefix, final float[] weights, final int kw, final int kh, final Border border) {
+        final String key = prefix + "|" + kw + "x" + kh + "|" + border + "|" + Arrays.toString(weights);
+        final Pass known = compiled.get(key);
+        if (known != null) {
+            return known;
+        }
+        synchronized (compiled) {
+            if (compiled.containsKey(key)) {
+                return compiled.get(key);
+            }
+            Pass pass = null;
+            for (int t = tile; t >= MIN_TILE && pass == null; t /= 2) {
+                if (!fitsInLocalMemory(kw / 2, kh / 2, t, localMemSize)) {
+                    continue;
+                }
+                final String kernelName = build(prefix, weights, kw, kh, border, t, true);
+                if (kernelName == null) {
+                    return null;
+                }
+                final long maxSize = getKernelWorkGroupSize(kernelName);
+                if (maxSize >= (long) t * t) {
+                    pass = new Pass(kernelName, t);
+                } else {
+                    LOGGER.log(Level.INFO, "{0}: work-groups of {1}x{1} exceed CL_KERNEL_WORK_GROUP_SIZE ({2})", new Object[]{kernelName, t, maxSize});
+                }
+            }
+            if (pass == null) {
+                final String kernelName = build(prefix, weights, kw, kh, border, tile, false);
+                if (kernelName == null) {
+                    return null;
+                }
+                pass = new Pass(kernelName, 0);
+            }
+            compiled.put(key, pass);
+            return pass;
+        }
+    }
+
+    /**
+     * @return nom du kernel compile, null en cas d'erreur
+     */
+    private static String build(final String prefix, final float[] weights, final int kw, final int kh, final Border border, final int tile, final boolean useLocal) {
+        final String signature = generateSource(prefix, weights, kw, kh, border, tile, useLocal);
+        final String kernelName = prefix + "_" + ProgramCache.key(signature, "", "").substring(0, 8);
+        if (!OpenCLBase.createKernelsFromSource(generateSource(kernelName, weights, kw, kh, border, tile, useLocal))) {
+            LOGGER.log(Level.WARNING, "Convolution {0} cannot be built", kernelName);
+            return null;
+        }
+        return kernelName;
+    }
+
+    private static long getKernelWorkGroupSize(final String kernelName) {
+        final long[] value = {0};
+        final cl_kernel kernel = KernelPool.checkout(kernelName);
+        if (kernel == null) {
+            return 0;
+        }
+        try {
+            CL.clGetKernelWorkGroupInfo(kernel, OpenCLBase.getDeviceId(), CL.CL_KERNEL_WORK_GROUP_SIZE,
+                    Sizeof.size_t, Pointer.to(value), null);
+        } finally {
+            KernelPool.checkin(kernelName, kernel);
+        }
+        return value[0];
+    }
+
+    private boolean pass(final String prefix, final float[] w, final int kw, final int kh, final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        final Pass pass = getPass(prefix, w, kw, kh, border);
+        if (pass == null) {
+            return false;
+        }
+        final long gw = output.getWidth(), gh = output.getHeight(), t = pass.tile;
+        final long[] global = t > 0 ? new long[]{(gw + t - 1) / t * t, (gh + t - 1) / t * t} : new long[]{gw, gh};
+        return OpenCLBase.runWithArgs(pass.kernelName, 2, null, global, t > 0 ? new long[]{t, t} : null, event,
+                input, output, KernelLibrary.scaleOf(input), KernelLibrary.scaleOf(output));
+    }
+
+    /**
+     * Convolue input dans output (meme taille)
+     *
+     * @param input
+     * @param output
+     * @param event chaine d'evenements (peut etre null)
+     * @return false si un format n'est pas gere (voir KernelLibrary) ou en cas
+     * d'erreur
+     */
+    public boolean apply(final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        if (input.getWidth() != output.getWidth() || input.getHeight() != output.getHeight()) {
+            throw new IllegalArgumentException("Input and output of different sizes");
+        }
+        if (input.getHostPixels() != null && output.getHostPixels() != null) {
+            applyHost(input.getHostPixels(), output.getHostPixels(), input.getWidth(), input.getHeight());
+            return true;
+        }
+        if (!OpenCLBase.isDeviceAvailable() || !KernelLibrary.isSupported(input) || !KernelLibrary.isSupported(output)) {
+            return false;
+        }
+        queryDevice();
+        if (row == null) {
+            return pass("conv2d", weights, kw, kh, input, output, event);
+        }
+        return applySeparable(input, output, event);
+    }
+
+    /**
+     * Passes horizontale puis verticale a travers l'image intermediaire. Sur
+     * une queue out-of-order, la passe horizontale attend aussi la passe
+     * verticale de l'appel precedent, qui lit peut-etre encore cette image.
+     */
+    private synchronized boolean applySeparable(final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        final ocl_image tmp = getIntermediate(input);
+        if (!OpenCLBase.isOutOfOrder()) {
+            return pass("conv_h", row, kw, 1, input, tmp, event)
+                    && pass("conv_v", col, 1, kh, tmp, output, event);
+        }
+        // Branche de la chaine de l'appelant, qui prend aussi la reference sur la lecture precedente
+        final cl_event[][] chain = EventManager.fork(event);
+        chain[0] = concat(chain[0], intermediateRead);
+        intermediateRead = null;
+        final boolean ok = pass("conv_h", row, kw, 1, input, tmp, chain)
+                && pass("conv_v", col, 1, kh, tmp, output, chain);
+        if (ok) {
+            EventManager.retain(chain[0]);
+            intermediateRead = chain[0];
+        }
+        if (event != null) {
+            // Les references de la branche passent a l'appelant
+            final cl_event[] old = event[0];
+            event[0] = chain[0];
+            EventManager.release(old);
+        } else {
+            EventManager.release(chain);
+        }
+        return ok;
+    }
+
+    private static cl_event[] concat(final cl_event[] a, final cl_event[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        final cl_event[] all = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return all;
+    }
+
+    private synchronized ocl_image getIntermediate(final ocl_image input) {
+        final int order = Images2D.channelCountOf(input.image_format.image_channel_order) == 1 ? OpenCLBase.SINGLE_CHANNEL_ORDER : CL.CL_RGBA;
+        if (intermediate != null && intermediateGeneration != getGeneration()) {
+            // Memoire et evenements d'un contexte libere
+            intermediate = null;
+            intermediateRead = null;
+        }
+        if (intermediate != null && (intermediate.getWidth() != input.getWidth() || intermediate.getHeight() != input.getHeight()
+                || intermediate.image_format.image_channel_order != order)) {
+            intermediate.release();
+            intermediate = null;
+        }
+        if (intermediate == null) {
+            intermediate = new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_FLOAT, order, input.getWidth(), input.getHeight(), null);
+            intermediateGeneration = getGeneration();
+        }
+        return intermediate;
+    }
+
+    /**
+     * Libere l'image intermediaire des noyaux separables
+     */
+    public synchronized void release() {
+        EventManager.release(intermediateRead);
+        intermediateRead = null;
+        if (intermediate != null) {
+            intermediate.release();
+            intermediate = null;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    //                    Sans device : images ARGB
+    // -------------------------------------------------------------------------
+    private void applyHost(final int[] src, final int[] dst, final int w, final int h) {
+        if (row == null) {
+            final int rx = kw / 2, ry = kh / 2;
+            IntStream.range(0, h).parallel().forEach(y -> {
+                for (int x = 0; x < w; x++) {
+                    float b = 0, g = 0, r = 0;
+                    for (int dy = -ry; dy <= ry; dy++) {
+                        final int yy = border.apply(y + dy, h) * w;
+                        for (int dx = -rx; dx <= rx; dx++) {
+                            final float wgt = weights[(dy + ry) * kw + dx + rx];
+                            final int p = src[yy + border.apply(x + dx, w)];
+                            b += wgt * (p & 0xff);
+                            g += wgt * ((p >> 8) & 0xff);
+                            r += wgt * ((p >> 16) & 0xff);
+                        }
+                    }
+                    dst[y * w + x] = (src[y * w + x] & 0xff000000) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+                }
+            });
+            return;
+        }
+        // Passe horizontale en float (b, g, r) puis verticale
+        final float[] tmp = new float[3 * w * h];
+        final int rx = kw / 2, ry = kh / 2;
+        IntStream.range(0, h).parallel().forEach(y -> {
+            for (int x = 0; x < w; x++) {
+                float b = 0, g = 0, r = 0;
+                for (int dx = -rx; dx <= rx; dx++) {
+                    final int p = src[y * w + border.apply(x + dx, w)];
+                    b += row[dx + rx] * (p & 0xff);
+                    g += row[dx + rx] * ((p >> 8) & 0xff);
+                    r += row[dx + rx] * ((p >> 16) & 0xff);
+                }
+                final int i = 3 * (y * w + x);
+                tmp[i] = b;
+                tmp[i + 1] = g;
+                tmp[i + 2] = r;
+            }
+        });
+        IntStream.range(0, h).parallel().forEach(y -> {
+            for (int x = 0; x < w; x++) {
+                float b = 0, g = 0, r = 0;
+                for (int dy = -ry; dy <= ry; dy++) {
+                    final int i = 3 * (border.apply(y + dy, h) * w + x);
+                    b += col[dy + ry] * tmp[i];
+                    g += col[dy + ry] * tmp[i + 1];
+                    r += col[dy + ry] * tmp[i + 2];
+                }
+                dst[y * w + x] = (src[y * w + x] & 0xff000000) | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+            }
+        });
+    }
+
+    private static int toByte(final float v) {
+        return v >= 255.f ? 255 : (v > 0.f ? Math.round(v) : 0);
+    }
+}
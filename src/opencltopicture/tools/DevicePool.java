@@ -0,0 +1,375 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_command_queue;
+import org.jocl.cl_context;
+import org.jocl.cl_context_properties;
+import org.jocl.cl_device_id;
+import org.jocl.cl_device_partition_property;
+import org.jocl.cl_image_desc;
+import org.jocl.cl_image_format;
+import org.jocl.cl_kernel;
+import org.jocl.cl_mem;
+import org.jocl.cl_platform_id;
+import org.jocl.cl_program;
+import org.jocl.cl_queue_properties;
+
+/**
+ * Pool de tous les devices OpenCL de la machine.
+ *
+ * Chaque device (ou sous-device CPU obtenu par clCreateSubDevices) a son
+ * propre contexte, sa queue, ses kernels compiles et un thread de soumission.
+ * Les images sont envoyees au device dont le cout estime est le plus faible :
+ * (travaux en attente + 1) x temps moyen mesure par pixel. Un device pas
+ * encore mesure prend la moyenne des autres ; tant qu'aucun ne l'est, seul le
+ * nombre de travaux en attente compte.
+ *
+ * @author durands
+ */
+public class DevicePool {
+
+    private static final Logger LOGGER = Logger.getLogger(DevicePool.class.getName());
+
+    /**
+     * Un device du pool
+     */
+    public static class Worker {
+
+        final String name;
+        final cl_device_id device_id;
+        // Sous-device cree par clCreateSubDevices, a liberer avec le worker
+        final boolean subDevice;
+        final cl_context context;
+        final cl_command_queue queue;
+        final Map<String, cl_kernel> kernels = new HashMap<>();
+        final ExecutorService executor;
+
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong jobs = new AtomicLong();
+        final AtomicLong pixels = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        // Moyenne glissante du temps par pixel (0 tant que rien n'est mesure)
+        volatile double nanosPerPixel = 0;
+
+        Worker(final String name, final cl_platform_id platform_id, final cl_device_id device_id, final boolean subDevice) {
+            this.name = name;
+            this.device_id = device_id;
+            this.subDevice = subDevice;
+            cl_context_properties contextProperties = new cl_context_properties();
+            contextProperties.addProperty(CL.CL_CONTEXT_PLATFORM, platform_id);
+            context = CL.clCreateContext(contextProperties, 1, new cl_device_id[]{device_id}, null, null, null);
+            try {
+                queue = CL.clCreateCommandQueueWithProperties(context, device_id, new cl_queue_properties(), null);
+            } catch (CLException e) {
+                CL.clReleaseContext(context);
+                throw e;
+            }
+            executor = Executors.newSingleThreadExecutor(r -> {
+                final Thread t = new Thread(r, "opencl-" + name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /**
+         * @param prior temps par pixel moyen du pool, pris tant que ce device
+         * n'est pas mesure (0 si aucun device ne l'est : le cout est alors le
+         * nombre de travaux en attente pour tous)
+         */
+        double estimatedCost(final long nbPixels, final double prior) {
+            final double perPixel = nanosPerPixel == 0 ? prior : nanosPerPixel;
+            return perPixel == 0 ? pending.get() : (pending.get() + 1) * perPixel * nbPixels;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getPending() {
+            return pending.get();
+        }
+
+        public long getJobCount() {
+            return jobs.get();
+        }
+
+        /**
+         * Attend la fin des travaux deja soumis avant de liberer les objets
+         * OpenCL qu'ils utilisent. S'il est interrompu, le worker garde ses
+         * objets (fuite plutot que kernels ou queue liberes en cours
+         * d'utilisation).
+         */
+        void release() {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    LOGGER.log(Level.WARNING, "Attente des travaux de {0}", name);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.WARNING, "Interrompu, {0} n'est pas libere", name);
+                return;
+            }
+            for (cl_kernel k : kernels.values()) {
+                CL.clReleaseKernel(k);
+            }
+            CL.clReleaseCommandQueue(queue);
+            CL.clReleaseContext(context);
+            if (subDevice) {
+                CL.clReleaseDevice(device_id);
+            }
+        }
+    }
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Cree le pool et compile les programmes sur chaque device
+     *
+     * @param cpuUnitsPerSubDevice si > 0 les devices CPU sont decoupes en
+     * sous-devices de ce nombre de compute units
+     * @param programs sources .cl
+     * @throws IOException
+     */
+    public DevicePool(final int cpuUnitsPerSubDevice, final URL... programs) throws IOException {
+        CL.setExceptionsEnabled(true);
+        final List<String> sources = new ArrayList<>();
+        for (URL url : programs) {
+            sources.add(new String(OpenCLBase.toByteArray(url), StandardCharsets.UTF_8));
+        }
+        int index = 0;
+        for (OpenCLDeviceQuery.Device dev : OpenCLDeviceQuery.getDevices()) {
+            if (OpenCLBase.getLong(dev.device_id, CL.CL_DEVICE_IMAGE_SUPPORT) == 0) {
+                continue;
+            }
+            final String deviceName = OpenCLBase.getString(dev.device_id, CL.CL_DEVICE_NAME).trim();
+            final List<cl_device_id> ids = new ArrayList<>();
+            if (cpuUnitsPerSubDevice > 0 && (OpenCLBase.getLong(dev.device_id, CL.CL_DEVICE_TYPE) & CL.CL_DEVICE_TYPE_CPU) != 0) {
+                ids.addAll(createSubDevices(dev.device_id, cpuUnitsPerSubDevice));
+            }
+            final boolean subDevices = !ids.isEmpty();
+            if (!subDevices) {
+                ids.add(dev.device_id);
+            }
+            for (cl_device_id id : ids) {
+                final String name = "#" + (index++) + " " + deviceName;
+                final Worker worker;
+                try {
+                    worker = new Worker(name, dev.platform_id, id, subDevices);
+                } catch (CLException e) {
+                    // Device inutilisable (contexte ou queue refuses) : on passe au suivant
+                    LOGGER.log(Level.WARNING, "Device ignore {0}: {1}", new Object[]{name, e.getMessage()});
+                    if (subDevices) {
+                        CL.clReleaseDevice(id);
+                    }
+                    continue;
+                }
+                if (buildKernels(worker, sources)) {
+                    workers.add(worker);
+                    LOGGER.log(Level.INFO, "Device ajoute au pool: {0}", worker.name);
+                } else {
+                    worker.release();
+                }
+            }
+        }
+    }
+
+    private static List<cl_device_id> createSubDevices(final cl_device_id device_id, final int units) {
+        final List<cl_device_id> ids = new ArrayList<>();
+        try {
+            final cl_device_partition_property properties = new cl_device_partition_property();
+            properties.addProperty(CL.CL_DEVICE_PARTITION_EQUALLY, units);
+            final int[] nb = {0};
+            CL.clCreateSubDevices(device_id, properties, 0, null, nb);
+            if (nb[0] > 1) {
+                final cl_device_id[] subDevices = new cl_device_id[nb[0]];
+                CL.clCreateSubDevices(device_id, properties, nb[0], subDevices, null);
+                Collections.addAll(ids, subDevices);
+            }
+        } catch (CLException e) {
+            // Partitionnement non supporte (OpenCL < 1.2) => on garde le device entier
+            LOGGER.log(Level.INFO, "clCreateSubDevices: {0}", e.getMessage());
+        }
+        return ids;
+    }
+
+    private static boolean buildKernels(final Worker worker, final List<String> sources) {
+        for (String source : sources) {
+            final cl_program program = OpenCLBase.buildProgramFromSource(worker.context, worker.device_id, source, "");
+            if (program == null) {
+                return false;
+            }
+            final Map<String, cl_kernel> kernels = OpenCLBase.createKernelMap(program);
+            CL.clReleaseProgram(program);
+            if (kernels == null) {
+                return false;
+            }
+            worker.kernels.putAll(kernels);
+        }
+        return true;
+    }
+
+    public List<Worker> getWorkers() {
+        return Collections.unmodifiableList(workers);
+    }
+
+    /**
+     * Choisit le device le moins charge
+     */
+    private Worker selectWorker(final long nbPixels) {
+        double sum = 0;
+        int measured = 0;
+        for (Worker w : workers) {
+            if (w.nanosPerPixel != 0) {
+                sum += w.nanosPerPixel;
+                measured++;
+            }
+        }
+        final double prior = measured == 0 ? 0 : sum / measured;
+        Worker best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (Worker w : workers) {
+            final double cost = w.estimatedCost(nbPixels, prior);
+            if (cost < bestCost) {
+                best = w;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Applique un kernel image -> image sur le device le moins charge. Le
+     * kernel doit avoir la signature (read_only image2d_t input, write_only
+     * image2d_t output, ...) comme doVigneting.
+     *
+     * @param kernelName
+     * @param img
+     * @param args arguments supplementaires passes apres les deux images
+     * @return l'image resultat (TYPE_INT_ARGB)
+     */
+    public CompletableFuture<BufferedImage> submit(final String kernelName, final BufferedImage img, final Object... args) {
+        final Worker worker = selectWorker((long) img.getWidth() * img.getHeight());
+        if (worker == null) {
+            final CompletableFuture<BufferedImage> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("No OpenCL device available"));
+            return failed;
+        }
+        worker.pending.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return process(worker, kernelName, img, args);
+            } finally {
+                worker.pending.decrementAndGet();
+            }
+        }, worker.executor);
+    }
+
+    private static BufferedImage process(final Worker worker, final String kernelName, final BufferedImage src, final Object... args) {
+        final cl_kernel kernel = worker.kernels.get(kernelName);
+        if (kernel == null) {
+            throw new IllegalArgumentException("Unknown kernel " + kernelName);
+        }
+        final long t0 = System.nanoTime();
+        final BufferedImage img = Images2D.toBufferedImage(src, BufferedImage.TYPE_INT_ARGB);
+        final int w = img.getWidth(), h = img.getHeight();
+
+        final cl_mem input = Images2D.create(worker.context, Images2D.createRasterDataPointer(img), CL.CL_MEM_READ_ONLY | CL.CL_MEM_COPY_HOST_PTR,
+                Images2D.createImageFormatFrom(img), Images2D.createImageDescFrom(img), null);
+        final cl_image_format format = new cl_image_format();
+        format.image_channel_order = CL.CL_RGBA;
+        format.image_channel_data_type = CL.CL_UNSIGNED_INT8;
+        final cl_image_desc desc = new cl_image_desc();
+        desc.image_type = CL.CL_MEM_OBJECT_IMAGE2D;
+        desc.image_width = w;
+        desc.image_height = h;
+        final cl_mem output = CL.clCreateImage(worker.context, CL.CL_MEM_WRITE_ONLY, format, desc, null, null);
+        try {
+            final Object[] params = new Object[args.length + 2];
+            params[0] = input;
+            params[1] = output;
+            System.arraycopy(args, 0, params, 2, args.length);
+            OpenCLBase.args(kernel, params);
+            CL.clEnqueueNDRangeKernel(worker.queue, kernel, 2, null, new long[]{w, h}, null, 0, null, null);
+
+            final BufferedImage imgOut = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            final int[] pixels = ((DataBufferInt) imgOut.getRaster().getDataBuffer()).getData();
+            CL.clEnqueueReadImage(worker.queue, output, true, new long[]{0, 0, 0}, new long[]{w, h, 1}, w * Sizeof.cl_uint, 0, Pointer.to(pixels), 0, null, null);
+            return imgOut;
+        } finally {
+            CL.clReleaseMemObject(input);
+            CL.clReleaseMemObject(output);
+            final long dt = System.nanoTime() - t0;
+            worker.jobs.incrementAndGet();
+            worker.pixels.addAndGet((long) w * h);
+            worker.busyNanos.addAndGet(dt);
+            final double perPixel = (double) dt / ((long) w * h);
+            worker.nanosPerPixel = worker.nanosPerPixel == 0 ? perPixel : .8 * worker.nanosPerPixel + .2 * perPixel;
+        }
+    }
+
+    /**
+     * Taux d'occupation d'un device depuis la creation du pool (0..1)
+     *
+     * @param worker
+     * @return
+     */
+    public double getUtilisation(final Worker worker) {
+        final long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : Math.min(1., (double) worker.busyNanos.get() / elapsed);
+    }
+
+    /**
+     * Resume de l'utilisation de chaque device
+     *
+     * @return
+     */
+    public String getReport() {
+        final StringBuilder sb = new StringBuilder();
+        for (Worker w : workers) {
+            final double seconds = w.busyNanos.get() * 1.0e-9;
+            sb.append(String.format("%s: %d job(s), %d pending, %.1f%% busy, %.1f Mpix/s%n",
+                    w.name, w.jobs.get(), w.pending.get(), 100. * getUtilisation(w),
+                    seconds == 0 ? 0. : w.pixels.get() * 1.0e-6 / seconds));
+        }
+        return sb.toString();
+    }
+
+    public void release() {
+        // Plus de nouveaux travaux sur aucun device pendant les attentes
+        for (Worker w : workers) {
+            w.executor.shutdown();
+        }
+        for (Worker w : workers) {
+            w.release();
+        }
+        workers.clear();
+    }
+}
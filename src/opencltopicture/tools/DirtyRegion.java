@@ -0,0 +1,188 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Zones modifiees d'une image pendant une trame (edition interactive, capture
+ * d'ecran...), pour ne transferer et ne recalculer que ces zones.
+ *
+ * Les rectangles sont limites a l'image puis regroupes : deux rectangles sont
+ * fusionnes quand leur union ne coute pas beaucoup plus de pixels que les deux
+ * separement (un transfert de plus coute plus cher que quelques pixels), et
+ * leur nombre est borne. Les volumes transferes par les fonctions qui
+ * utilisent la region sont comptes pour la trame en cours.
+ *
+ * @author durands
+ */
+public class DirtyRegion {
+
+    // Pixels ajoutes acceptes pour economiser un transfert
+    private static final int MERGE_SLACK_PIXELS = 32 * 32;
+    private static final int MAX_RECTANGLES = 32;
+
+    private final int w, h;
+    private final List<Rectangle> rects = new ArrayList<>();
+    private boolean coalesced = true;
+
+    private long uploadedBytes, downloadedBytes, transfers, frameBytes;
+
+    /**
+     * @param w largeur de l'image
+     * @param h hauteur de l'image
+     */
+    public DirtyRegion(final int w, final int h) {
+        this.w = w;
+        this.h = h;
+    }
+
+    public DirtyRegion add(final int x, final int y, final int rw, final int rh) {
+        return add(new Rectangle(x, y, rw, rh));
+    }
+
+    public synchronized DirtyRegion add(final Rectangle r) {
+        final Rectangle clipped = r.intersection(new Rectangle(0, 0, w, h));
+        if (!clipped.isEmpty()) {
+            rects.add(clipped);
+            coalesced = false;
+        }
+        return this;
+    }
+
+    /**
+     * Toute l'image est a mettre a jour
+     */
+    public synchronized DirtyRegion addAll() {
+        rects.clear();
+        rects.add(new Rectangle(0, 0, w, h));
+        coalesced = true;
+        return this;
+    }
+
+    public synchronized boolean isEmpty() {
+        return rects.isEmpty();
+    }
+
+    /**
+     * @return les rectangles regroupes
+     */
+    public synchronized List<Rectangle> getRectangles() {
+        if (!coalesced) {
+            coalesce();
+            coalesced = true;
+        }
+        return Collections.unmodifiableList(new ArrayList<>(rects));
+    }
+
+    private static long area(final Rectangle r) {
+        return (long) r.width * r.height;
+    }
+
+    /**
+     * Pixels traites en trop si on fusionne a et b
+     */
+    private static long waste(final Rectangle a, final Rectangle b) {
+        final Rectangle inter = a.intersection(b);
+        final long overlap = inter.isEmpty() ? 0 : area(inter);
+        return area(a.union(b)) - (area(a) + area(b) - overlap);
+    }
+
+    private void coalesce() {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < rects.size() && !merged; i++) {
+                for (int j = i + 1; j < rects.size(); j++) {
+                    final Rectangle a = rects.get(i), b = rects.get(j);
+                    if (a.contains(b) || b.contains(a) || waste(a, b) <= MERGE_SLACK_PIXELS) {
+                        rects.set(i, a.union(b));
+                        rects.remove(j);
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+        }
+        // Trop de rectangles : on fusionne ceux qui coutent le moins
+        while (rects.size() > MAX_RECTANGLES) {
+            int bi = 0, bj = 1;
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < rects.size(); i++) {
+                for (int j = i + 1; j < rects.size(); j++) {
+                    final long c = waste(rects.get(i), rects.get(j));
+                    if (c < best) {
+                        best = c;
+                        bi = i;
+                        bj = j;
+                    }
+                }
+            }
+            rects.set(bi, rects.get(bi).union(rects.get(bj)));
+            rects.remove(bj);
+        }
+    }
+
+    /**
+     * Nouvelle trame : vide la region et remet les compteurs a zero
+     */
+    public synchronized void clear() {
+        rects.clear();
+        coalesced = true;
+        uploadedBytes = 0;
+        downloadedBytes = 0;
+        transfers = 0;
+        frameBytes = 0;
+    }
+
+    synchronized void countUpload(final long bytes, final long fullBytes) {
+        uploadedBytes += bytes;
+        transfers++;
+        frameBytes = fullBytes;
+    }
+
+    synchronized void countDownload(final long bytes, final long fullBytes) {
+        downloadedBytes += bytes;
+        transfers++;
+        frameBytes = fullBytes;
+    }
+
+    public int getWidth() {
+        return w;
+    }
+
+    public int getHeight() {
+        return h;
+    }
+
+    public synchronized long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public synchronized long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /**
+     * @return nombre de clEnqueueWriteImage / clEnqueueReadImage de la trame
+     */
+    public synchronized long getTransferCount() {
+        return transfers;
+    }
+
+    /**
+     * Volumes de la trame, compares a un transfert complet de l'image
+     */
+    public synchronized String getSummary() {
+        final List<Rectangle> r = getRectangles();
+        return String.format("dirty region: %d rect(s), %d bytes up, %d bytes down in %d transfer(s) (%.1f%% of full frame)",
+                r.size(), uploadedBytes, downloadedBytes, transfers,
+                frameBytes == 0 ? 0. : 100. * Math.max(uploadedBytes, downloadedBytes) / frameBytes);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.cl_event;
+
+/**
+ * Compteurs de references des cl_event crees par OpenCLBase.run().
+ *
+ * Un tableau cl_event[][] passe a runWithArgs possede une reference sur les
+ * evenements qu'il contient. Quand run() met le nouvel evenement a la place
+ * des anciens, ceux-ci sont rendus : OpenCL garde lui-meme ce qu'il faut pour
+ * les commandes deja en attente, l'evenement est donc libere des que plus
+ * personne ne le reference. Les evenements qui ne viennent pas de run()
+ * (crees par l'appelant) ne sont jamais liberes ici.
+ *
+ * Pour utiliser les memes evenements dans plusieurs chaines (branches d'un
+ * graphe), il faut prendre une reference supplementaire avec retain() ou
+ * fork(), et rendre la derniere avec release(event) quand la chaine est
+ * terminee.
+ *
+ * @author durands
+ */
+public class EventManager {
+
+    private static final Map<cl_event, Integer> refs = new IdentityHashMap<>();
+
+    private static long created, released;
+
+    /**
+     * Enregistre un evenement cree par OpenCLBase (une reference)
+     */
+    static synchronized cl_event track(final cl_event evt) {
+        refs.put(evt, 1);
+        created++;
+        return evt;
+    }
+
+    public static synchronized boolean isTracked(final cl_event evt) {
+        return refs.containsKey(evt);
+    }
+
+    /**
+     * Prend une reference supplementaire sur chaque evenement suivi
+     *
+     * @param events peut etre null
+     */
+    public static synchronized void retain(final cl_event... events) {
+        if (events == null) {
+            return;
+        }
+        for (cl_event evt : events) {
+            final Integer n = refs.get(evt);
+            if (n != null) {
+                refs.put(evt, n + 1);
+            }
+        }
+    }
+
+    /**
+     * Rend une reference sur chaque evenement suivi, et libere ceux qui n'en
+     * ont plus
+     *
+     * @param events peut etre null
+     */
+    public static synchronized void release(final cl_event... events) {
+        if (events == null) {
+            return;
+        }
+        for (cl_event evt : events) {
+            final Integer n = refs.get(evt);
+            if (n == null) {
+                continue;
+            }
+            if (n > 1) {
+                refs.put(evt, n - 1);
+                continue;
+            }
+            refs.remove(evt);
+            released++;
+            try {
+                CL.clReleaseEvent(evt);
+            } catch (CLException e) {
+                // Deja libere par l'appelant
+            }
+        }
+    }
+
+    /**
+     * Rend les evenements d'une chaine terminee
+     *
+     * @param event tableau passe a runWithArgs, vide au retour
+     */
+    public static void release(final cl_event[][] event) {
+        if (event != null && event[0] != null) {
+            final cl_event[] old = event[0];
+            event[0] = null;
+            release(old);
+        }
+    }
+
+    /**
+     * Remplace les evenements d'une chaine par le nouveau
+     */
+    static void replace(final cl_event[][] event, final cl_event next) {
+        final cl_event[] old = event[0];
+        event[0] = new cl_event[]{next};
+        release(old);
+    }
+
+    /**
+     * Nouvelle chaine qui depend des memes evenements
+     *
+     * @param event
+     * @return
+     */
+    public static cl_event[][] fork(final cl_event[][] event) {
+        final cl_event[] copy = event == null || event[0] == null ? null : event[0].clone();
+        retain(copy);
+        return new cl_event[][]{copy};
+    }
+
+    /**
+     * Libere tous les evenements suivis, quelles que soient leurs references
+     * (fin du contexte OpenCL, appele par OpenCLBase.releaseAll). Les chaines
+     * en cours ne doivent plus etre utilisees ensuite.
+     */
+    public static void releaseAll() {
+        final List<cl_event> all;
+        synchronized (EventManager.class) {
+            all = new ArrayList<>(refs.keySet());
+            refs.clear();
+        }
+        for (cl_event evt : all) {
+            try {
+                CL.clReleaseEvent(evt);
+            } catch (CLException e) {
+                // Deja libere
+            }
+        }
+    }
+
+    /**
+     * @return nombre d'evenements encore references
+     */
+    public static synchronized int getLiveCount() {
+        return refs.size();
+    }
+
+    public static synchronized long getCreatedCount() {
+        return created;
+    }
+
+    public static synchronized long getReleasedCount() {
+        return released;
+    }
+
+    public static synchronized String getSummary() {
+        return String.format("events: %d created, %d released, %d live", created, released, refs.size());
+    }
+
+    private EventManager() {
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jocl.cl_event;
+
+/**
+ * Graphe de filtres (DAG) execute entierement sur le device.
+ *
+ * Chaque noeud est un kernel charge par createKernels, de signature
+ * (entree1, ..., entreeN, sortie, args...). Les images intermediaires sont
+ * allouees automatiquement et seules les sorties sont relues. Chaque kernel
+ * attend les evenements de ses predecesseurs ; une image dont tous les
+ * lecteurs sont passes est reutilisee par les noeuds suivants (aliasing), ce
+ * qui limite la memoire du device. Les noeuds qui ne menent a aucune sortie ne
+ * sont pas executes.
+ *
+ * <pre>
+ * FilterGraph g = new FilterGraph();
+ * FilterGraph.Node src = g.input();
+ * g.output(g.node("doVigneting", g.node("blur", src, 2.f)));
+ * BufferedImage out = g.run(img);
+ * </pre>
+ *
+ * @author durands
+ */
+public class FilterGraph {
+
+    public static class Node {
+
+        final int index;
+        final String kernelName;
+        final Node[] inputs;
+        final Object[] args;
+        int w = -1, h = -1;
+        boolean output;
+
+        Node(int index, String kernelName, Node[] inputs, Object[] args) {
+            this.index = index;
+            this.kernelName = kernelName;
+            this.inputs = inputs;
+            this.args = args;
+        }
+
+        /**
+         * Taille de l'image produite (par defaut celle de la premiere entree)
+         *
+         * @param w
+         * @param h
+         * @return
+         */
+        public Node setSize(final int w, final int h) {
+            this.w = w;
+            this.h = h;
+            return this;
+        }
+
+        public String getKernelName() {
+            return kernelName;
+        }
+
+        public boolean isInput() {
+            return kernelName == null;
+        }
+    }
+
+    /**
+     * Image du device partagee par les noeuds dont les durees de vie ne se
+     * recouvrent pas
+     */
+    private static class Slot {
+
+        final ocl_image image;
+        // Evenements des kernels qui utilisent le contenu courant
+        final List<cl_event> pending = new ArrayList<>();
+
+        Slot(ocl_image image) {
+            this.image = image;
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    // Images intermediaires, gardees d'une execution a l'autre
+    private final List<Slot> slots = new ArrayList<>();
+    private int lastNodeCount;
+
+    public synchronized Node input() {
+        final Node node = new Node(nodes.size(), null, new Node[0], new Object[0]);
+        nodes.add(node);
+        return node;
+    }
+
+    public Node node(final String kernelName, final Node input, final Object... args) {
+        return node(kernelName, new Node[]{input}, args);
+    }
+
+    /**
+     * Ajoute un kernel au graphe. Les entrees doivent deja faire partie du
+     * graphe, l'ordre de creation est donc un ordre topologique.
+     *
+     * @param kernelName
+     * @param inputs
+     * @param args arguments passes apres l'image de sortie
+     * @return
+     */
+    public synchronized Node node(final String kernelName, final Node[] inputs, final Object... args) {
+        if (inputs.length == 0) {
+            throw new IllegalArgumentException(kernelName + ": a node needs at least one input");
+        }
+        for (Node in : inputs) {
+            if (in.index >= nodes.size() || nodes.get(in.index) != in) {
+                throw new IllegalArgumentException(kernelName + ": input does not belong to this graph");
+            }
+        }
+        final Node node = new Node(nodes.size(), kernelName, inputs.clone(), args);
+        nodes.add(node);
+        return node;
+    }
+
+    public synchronized FilterGraph output(final Node node) {
+        node.output = true;
+        return this;
+    }
+
+    /**
+     * Execute un graphe a une entree et une sortie
+     *
+     * @param img
+     * @return
+     */
+    public BufferedImage run(final BufferedImage img) {
+        final List<Node> inputs = new ArrayList<>(), outputs = new ArrayList<>();
+        for (Node n : nodes) {
+            if (n.isInput()) {
+                inputs.add(n);
+            }
+            if (n.output) {
+                outputs.add(n);
+            }
+        }
+        if (inputs.size() != 1 || outputs.size() != 1) {
+            throw new IllegalStateException("run(BufferedImage) needs exactly one input and one output");
+        }
+        return run(Collections.singletonMap(inputs.get(0), img)).get(outputs.get(0));
+    }
+
+    /**
+     * Execute le graphe
+     *
+     * @param inputs image de chaque noeud d'entree
+     * @return image de chaque noeud de sortie
+     */
+    public synchronized Map<Node, BufferedImage> run(final Map<Node, BufferedImage> inputs) {
+        final int n = nodes.size();
+
+        // Noeuds utiles (qui menent a une sortie) et derniere utilisation de chaque image
+        final boolean[] needed = new boolean[n];
+        final int[] lastUse = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            final Node node = nodes.get(i);
+            if (node.output) {
+                needed[i] = true;
+                lastUse[i] = Integer.MAX_VALUE;
+            }
+            if (needed[i]) {
+                for (Node in : node.inputs) {
+                    needed[in.index] = true;
+                    lastUse[in.index] = Math.max(lastUse[in.index], i);
+                }
+            }
+        }
+
+        final ocl_image[] images = new ocl_image[n];
+        final Slot[] owner = new Slot[n];
+        final cl_event[][] done = new cl_event[n][];
+        final List<Slot> free = new ArrayList<>(slots);
+        final List<cl_event[]> created = new ArrayList<>();
+        final List<ocl_image> uploaded = new ArrayList<>();
+        final Map<Node, BufferedImage> results = new LinkedHashMap<>();
+        int executed = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                final Node node = nodes.get(i);
+                if (!needed[i]) {
+                    continue;
+                }
+                if (node.isInput()) {
+                    final BufferedImage img = inputs.get(node);
+                    if (img == null) {
+                        throw new IllegalArgumentException("Missing image for input node " + i);
+                    }
+                    images[i] = new ocl_image(Images2D.toBufferedImage(img, BufferedImage.TYPE_INT_ARGB), true);
+                    uploaded.add(images[i]);
+                    continue;
+                }
+                final int w = node.w > 0 ? node.w : images[node.inputs[0].index].getWidth();
+                final int h = node.h > 0 ? node.h : images[node.inputs[0].index].getHeight();
+                final Slot slot = take(free, w, h);
+                owner[i] = slot;
+                images[i] = slot.image;
+
+                // Attente des predecesseurs et des anciens utilisateurs de l'image (ecriture apres lecture)
+                final List<cl_event> wait = new ArrayList<>(slot.pending);
+                for (Node in : node.inputs) {
+                    if (done[in.index] != null) {
+                        Collections.addAll(wait, done[in.index]);
+                    }
+                }
+                final Object[] args = new Object[node.inputs.length + 1 + node.args.length];
+                for (int k = 0; k < node.inputs.length; k++) {
+                    args[k] = images[node.inputs[k].index];
+                }
+                args[node.inputs.length] = slot.image;
+                System.arraycopy(node.args, 0, args, node.inputs.length + 1, node.args.length);
+
+                final cl_event[] waitList = wait.isEmpty() ? null : wait.toArray(new cl_event[0]);
+                // run() rend les evenements attendus : on prend une reference pour cette chaine
+                EventManager.retain(waitList);
+                final cl_event[][] event = {waitList};
+                final boolean ok = OpenCLBase.runWithArgs(node.kernelName, 2, null, new long[]{w, h}, null, event, args);
+                if (event[0] != waitList) {
+                    done[i] = event[0];
+                    created.add(event[0]);
+                } else {
+                    // Pas de nouvel evenement (echec ou kernel Java)
+                    EventManager.release(waitList);
+                }
+                if (!ok) {
+                    throw new IllegalStateException("Kernel " + node.kernelName + " failed (node " + i + ")");
+                }
+                executed++;
+                slot.pending.clear();
+                if (done[i] != null) {
+                    Collections.addAll(slot.pending, done[i]);
+                }
+                // Les images lues pour la derniere fois sont rendues
+                for (Node in : node.inputs) {
+                    final Slot s = owner[in.index];
+                    if (s != null && done[i] != null) {
+                        Collections.addAll(s.pending, done[i]);
+                    }
+                    if (s != null && lastUse[in.index] == i && !free.contains(s)) {
+                        free.add(s);
+                    }
+                }
+            }
+
+            // Relecture des seules sorties
+            for (int i = 0; i < n; i++) {
+                final Node node = nodes.get(i);
+                if (node.output) {
+                    final BufferedImage out = new BufferedImage(images[i].getWidth(), images[i].getHeight(), BufferedImage.TYPE_INT_ARGB);
+                    OpenCLBase.query_picture(images[i], done[i], out);
+                    results.put(node, out);
+                }
+            }
+        } finally {
+            OpenCLBase.finish();
+            for (Slot slot : slots) {
+                slot.pending.clear();
+            }
+            for (cl_event[] evts : created) {
+                EventManager.release(evts);
+            }
+            for (ocl_image img : uploaded) {
+                img.release();
+            }
+            lastNodeCount = executed;
+        }
+        return results;
+    }
+
+    private Slot take(final List<Slot> free, final int w, final int h) {
+        for (int k = 0; k < free.size(); k++) {
+            final Slot slot = free.get(k);
+            if (slot.image.getWidth() == w && slot.image.getHeight() == h) {
+                return free.remove(k);
+            }
+        }
+        final Slot slot = new Slot(ocl_image.create2DPicture(w, h));
+        slots.add(slot);
+        return slot;
+    }
+
+    /**
+     * @return nombre d'images intermediaires allouees sur le device
+     */
+    public synchronized int getImageCount() {
+        return slots.size();
+    }
+
+    /**
+     * @return taille totale des images intermediaires (RGBA 8 bits)
+     */
+    public synchronized long getDeviceBytes() {
+        long bytes = 0;
+        for (Slot slot : slots) {
+            bytes += (long) slot.image.getWidth() * slot.image.getHeight() * 4;
+        }
+        return bytes;
+    }
+
+    public synchronized String getSummary() {
+        return String.format("filter graph: %d kernel(s) run, %d device image(s), %d bytes", lastNodeCount, slots.size(), getDeviceBytes());
+    }
+
+    /**
+     * Libere les images intermediaires
+     */
+    public synchronized void release() {
+        for (Slot slot : slots) {
+            slot.image.release();
+        }
+        slots.clear();
+    }
+
+    /**
+     * @return les noeuds dans l'ordre d'execution
+     */
+    public synchronized List<Node> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+/**
+ * Conversion float <-> half (IEEE 754 binary16, format CL_HALF_FLOAT) cote
+ * hote : arrondi au plus proche pair comme vstore_half_rte, denormaux,
+ * infinis et NaN conserves.
+ *
+ * @author durands
+ */
+public class HalfFloat {
+
+    /**
+     * @param f
+     * @return les 16 bits du half le plus proche
+     */
+    public static short toHalf(final float f) {
+        final int bits = Float.floatToRawIntBits(f);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int exp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+        if (exp == 0xff) {
+            // Infini ou NaN (on garde un bit de mantisse pour le NaN)
+            return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 | (mant >>> 13) : 0));
+        }
+        final int e = exp - 127 + 15;
+        if (e >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (e <= 0) {
+            if (e < -10) {
+                // Plus petit que la moitie du plus petit denormal
+                return (short) sign;
+            }
+            // Denormal : la mantisse avec son 1 implicite est decalee
+            mant |= 0x800000;
+            final int shift = 14 - e;
+            int half = mant >>> shift;
+            final int rest = mant & ((1 << shift) - 1), halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (e << 10) | (mant >>> 13);
+        final int rest = mant & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            // La retenue peut passer a l'exposant (et jusqu'a l'infini)
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * @param h les 16 bits d'un half
+     * @return
+     */
+    public static float toFloat(final short h) {
+        final int bits = h & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int exp = (bits >>> 10) & 0x1f;
+        final int mant = bits & 0x3ff;
+        if (exp == 0) {
+            // Zero ou denormal : mant * 2^-24
+            final float f = mant * 5.9604645e-8f;
+            return sign != 0 ? -f : f;
+        }
+        if (exp == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mant << 13));
+    }
+
+    public static short[] toHalf(final float[] src, short[] dst) {
+        if (dst == null || dst.length < src.length) {
+            dst = new short[src.length];
+        }
+        for (int i = 0; i < src.length; i++) {
+            dst[i] = toHalf(src[i]);
+        }
+        return dst;
+    }
+
+    public static float[] toFloat(final short[] src, float[] dst) {
+        if (dst == null || dst.length < src.length) {
+            dst = new float[src.length];
+        }
+        for (int i = 0; i < src.length; i++) {
+            dst[i] = toFloat(src[i]);
+        }
+        return dst;
+    }
+
+    private HalfFloat() {
+    }
+}
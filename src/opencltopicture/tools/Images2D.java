@@ -19,6 +19,7 @@ import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.ImageObserver;
 import static java.awt.image.ImageObserver.ALLBITS;
 import java.awt.image.VolatileImage;
@@ -128,6 +129,102 @@ public class Images2D {
         }
     }
 
+    /**
+     * Same as createImageFormatFrom() but with normalized data types
+     * (CL_UNORM_INT8 / CL_UNORM_INT16) : kernels read the channels with
+     * read_imagef() as floats between 0 and 1, with the memory footprint of
+     * the integer image.
+     *
+     * @param image
+     * @return (the cl_image_format or null)
+     */
+    public static cl_image_format createNormalizedImageFormatFrom(BufferedImage image) {
+        final cl_image_format format = createImageFormatFrom(image);
+        if (format == null) {
+            return null;
+        }
+        switch (format.image_channel_data_type) {
+            case CL.CL_UNSIGNED_INT8:
+                format.image_channel_data_type = CL.CL_UNORM_INT8;
+                return format;
+            case CL.CL_UNSIGNED_INT16:
+                format.image_channel_data_type = CL.CL_UNORM_INT16;
+                return format;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Give the number of channels of a cl_channel_order.
+     *
+     * @param channel_order
+     * @return (number of channels or 0 if unknown)
+     */
+    public static int channelCountOf(int channel_order) {
+        switch (channel_order) {
+            case CL.CL_R:
+            case CL.CL_A:
+            case CL.CL_INTENSITY:
+            case CL.CL_LUMINANCE:
+            case CL.CL_Rx:
+                return 1;
+            case CL.CL_RG:
+            case CL.CL_RA:
+            case CL.CL_RGx:
+                return 2;
+            case CL.CL_RGB:
+            case CL.CL_RGBx:
+                return 3;
+            case CL.CL_RGBA:
+            case CL.CL_BGRA:
+            case CL.CL_ARGB:
+            case CL.CL_ABGR:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Give the size in bytes of one pixel of an image (or of one element of a
+     * buffer) of the given format.
+     *
+     * The packed types (CL_UNORM_SHORT_565, CL_UNORM_SHORT_555,
+     * CL_UNORM_INT_101010) hold all the channels of a pixel.
+     *
+     * @param channel_order
+     * @param data_type
+     * @return (size in bytes or 0 if the format is unsupported)
+     */
+    public static int elementSizeOf(int channel_order, int data_type) {
+        final int channels = channelCountOf(channel_order);
+        switch (data_type) {
+            case CL.CL_UNORM_SHORT_565:
+            case CL.CL_UNORM_SHORT_555:
+                return Sizeof.cl_ushort;
+            case CL.CL_UNORM_INT_101010:
+                return Sizeof.cl_uint;
+            case CL.CL_SNORM_INT8:
+            case CL.CL_UNORM_INT8:
+            case CL.CL_SIGNED_INT8:
+            case CL.CL_UNSIGNED_INT8:
+                return channels * Sizeof.cl_uchar;
+            case CL.CL_SNORM_INT16:
+            case CL.CL_UNORM_INT16:
+            case CL.CL_SIGNED_INT16:
+            case CL.CL_UNSIGNED_INT16:
+            case CL.CL_HALF_FLOAT:
+                return channels * Sizeof.cl_ushort;
+            case CL.CL_SIGNED_INT32:
+            case CL.CL_UNSIGNED_INT32:
+            case CL.CL_FLOAT:
+                return channels * Sizeof.cl_float;
+            default:
+                return 0;
+        }
+    }
+
     /**
      * Create a new cl_image_desc struct in correlation to a given
      * BufferedImage. This method return the new cl_image_desc or null if the
@@ -177,6 +274,10 @@ public class Images2D {
                 return Pointer.to(dataSrc);
             }
             case Sizeof.cl_ushort: {
+                // TYPE_USHORT_GRAY est un DataBufferUShort
+                if (image.getRaster().getDataBuffer() instanceof DataBufferUShort) {
+                    return Pointer.to(((DataBufferUShort) image.getRaster().getDataBuffer()).getData());
+                }
                 DataBufferShort dataBufferSrc = (DataBufferShort) image.getRaster().getDataBuffer();
                 short dataSrc[] = dataBufferSrc.getData();
                 return Pointer.to(dataSrc);
@@ -284,6 +385,10 @@ public class Images2D {
         if (image instanceof VolatileImage) {
             return ((VolatileImage) image).getSnapshot();
         }
+        if (image instanceof BufferedImage) {
+            // Copie directe des rasters, en parallele (voir PixelConverter)
+            return PixelConverter.convert((BufferedImage) image, type);
+        }
         loadImage(image);
         final BufferedImage buffImg = new BufferedImage(image.getWidth(null), image.getHeight(null), type);
         final Graphics2D g2 = buffImg.createGraphics();
@@ -0,0 +1,247 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Implementations Java des kernels, utilisees par OpenCLBase.runWithArgs()
+ * quand aucun device OpenCL n'est disponible.
+ *
+ * Les images sont alors des ocl_image "host" : un int[] ARGB (meme
+ * organisation que CL_RGBA / CL_UNSIGNED_INT8 lu depuis un TYPE_INT_ARGB).
+ * Le domaine global est decoupe en tuiles traitees sur le ForkJoinPool commun
+ * et les kernels ecrivent directement dans le int[] de sortie.
+ *
+ * @author durands
+ */
+public class JavaKernels {
+
+    /**
+     * Un kernel execute sur la zone [x0,x1[ x [y0,y1[ du domaine global
+     */
+    public interface JavaKernel {
+
+        void run(int x0, int y0, int x1, int y1, Object[] args);
+    }
+
+    // Taille (en pixels) en dessous de laquelle une tuile n'est plus decoupee
+    private static final int TILE_AREA = 64 * 64;
+
+    private static final Map<String, JavaKernel> mapKernels = new ConcurrentHashMap<>();
+
+    static {
+        register("doVigneting", JavaKernels::doVigneting);
+        register("copy_image", JavaKernels::copyImage);
+        register("swizzle_rgba_bgra", JavaKernels::swizzleRgbaBgra);
+        register("premultiply", JavaKernels::premultiply);
+        register("fill_image", JavaKernels::fillImage);
+    }
+
+    public static void register(final String kernelName, final JavaKernel kernel) {
+        mapKernels.put(kernelName, kernel);
+    }
+
+    public static boolean contains(final String kernelName) {
+        return mapKernels.containsKey(kernelName);
+    }
+
+    /**
+     * Execute le kernel sur tout le domaine, decoupe en tuiles
+     *
+     * @param kernelName
+     * @param global_offset peut etre null
+     * @param global_sz taille du domaine (1 ou 2 dimensions)
+     * @param args
+     * @return false si le kernel n'existe pas en Java
+     */
+    public static boolean run(final String kernelName, final long[] global_offset, final long[] global_sz, final Object... args) {
+        final JavaKernel kernel = mapKernels.get(kernelName);
+        if (kernel == null) {
+            return false;
+        }
+        final int x0 = global_offset == null ? 0 : (int) global_offset[0];
+        final int y0 = global_offset == null || global_offset.length < 2 ? 0 : (int) global_offset[1];
+        final int x1 = x0 + (int) global_sz[0];
+        final int y1 = y0 + (global_sz.length < 2 ? 1 : (int) global_sz[1]);
+        ForkJoinPool.commonPool().invoke(new TileTask(kernel, x0, y0, x1, y1, args));
+        return true;
+    }
+
+    private static class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final JavaKernel kernel;
+        final int x0, y0, x1, y1;
+        final Object[] args;
+
+        TileTask(JavaKernel kernel, int x0, int y0, int x1, int y1, Object[] args) {
+            this.kernel = kernel;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.args = args;
+        }
+
+        @Override
+        protected void compute() {
+            final int w = x1 - x0, h = y1 - y0;
+            if ((long) w * h <= TILE_AREA) {
+                kernel.run(x0, y0, x1, y1, args);
+            } else if (w >= h) {
+                final int xm = x0 + w / 2;
+                invokeAll(new TileTask(kernel, x0, y0, xm, y1, args), new TileTask(kernel, xm, y0, x1, y1, args));
+            } else {
+                final int ym = y0 + h / 2;
+                invokeAll(new TileTask(kernel, x0, y0, x1, ym, args), new TileTask(kernel, x0, ym, x1, y1, args));
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    //                    Equivalents des fonctions OpenCL
+    // -------------------------------------------------------------------------
+    static float clamp(final float x, final float a, final float b) {
+        return x < a ? a : (x > b ? b : x);
+    }
+
+    static float mix(final float a, final float b, final float t) {
+        return a + (b - a) * t;
+    }
+
+    static float smoothstep(final float e0, final float e1, final float x) {
+        final float t = clamp((x - e0) / (e1 - e0), 0.f, 1.f);
+        return t * t * (3.f - 2.f * t);
+    }
+
+    /**
+     * Equivalent de read_imagef(img, sampler_linear, (float2)(u,v)) avec
+     * sampler_linear = CLK_NORMALIZED_COORDS_TRUE | CLK_ADDRESS_CLAMP_TO_EDGE |
+     * CLK_FILTER_LINEAR. Le resultat (canaux ARGB entre 0 et 1) est ecrit dans
+     * out pour ne rien allouer.
+     *
+     * @param pixels image ARGB
+     * @param w
+     * @param h
+     * @param u
+     * @param v
+     * @param out float[4] : a, r, g, b
+     */
+    static void sampleLinear(final int[] pixels, final int w, final int h, final float u, final float v, final float[] out) {
+        final float x = u * w - .5f, y = v * h - .5f;
+        final float fx = (float) Math.floor(x), fy = (float) Math.floor(y);
+        final float ax = x - fx, ay = y - fy;
+        final int i0 = clampIndex((int) fx, w), i1 = clampIndex((int) fx + 1, w);
+        final int j0 = clampIndex((int) fy, h), j1 = clampIndex((int) fy + 1, h);
+        final int p00 = pixels[j0 * w + i0], p10 = pixels[j0 * w + i1],
+                p01 = pixels[j1 * w + i0], p11 = pixels[j1 * w + i1];
+        for (int c = 0, shift = 24; c < 4; c++, shift -= 8) {
+            final float c00 = (p00 >>> shift) & 0xff, c10 = (p10 >>> shift) & 0xff,
+                    c01 = (p01 >>> shift) & 0xff, c11 = (p11 >>> shift) & 0xff;
+            out[c] = ((1 - ax) * (1 - ay) * c00 + ax * (1 - ay) * c10 + (1 - ax) * ay * c01 + ax * ay * c11) / 255.f;
+        }
+    }
+
+    private static int clampIndex(final int i, final int n) {
+        return i < 0 ? 0 : (i >= n ? n - 1 : i);
+    }
+
+    static int toARGB(final float a, final float r, final float g, final float b) {
+        return (Math.round(clamp(a, 0.f, 1.f) * 255.f) << 24)
+                | (Math.round(clamp(r, 0.f, 1.f) * 255.f) << 16)
+                | (Math.round(clamp(g, 0.f, 1.f) * 255.f) << 8)
+                | Math.round(clamp(b, 0.f, 1.f) * 255.f);
+    }
+
+    // -------------------------------------------------------------------------
+    //                    Kernels de DemoKernelPicture.cl
+    // -------------------------------------------------------------------------
+    private static void doVigneting(final int x0, final int y0, final int x1, final int y1, final Object[] args) {
+        final ocl_image input = (ocl_image) args[0], output = (ocl_image) args[1];
+        final int[] src = input.getHostPixels(), dst = output.getHostPixels();
+        final int wIn = input.getWidth(), hIn = input.getHeight();
+        final int resX = output.getWidth(), resY = output.getHeight();
+        final float[] col = new float[4];
+        for (int y = y0; y < Math.min(y1, resY); y++) {
+            final float v = (float) y / (float) resY;
+            for (int x = x0; x < Math.min(x1, resX); x++) {
+                final float u = (float) x / (float) resX;
+                sampleLinear(src, wIn, hIn, u, v, col);
+                final float du = u - .5f, dv = v - .5f;
+                final float t = smoothstep(.01f, .02f, Math.abs((float) Math.sqrt(du * du + dv * dv) - .3f));
+                // mix((float3)(0,0,1), fCol, t)
+                dst[y * resX + x] = toARGB(1.f, mix(0.f, col[1], t), mix(0.f, col[2], t), mix(1.f, col[3], t));
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    //                    Kernels de KernelLibrary.cl
+    // -------------------------------------------------------------------------
+    private static void copyImage(final int x0, final int y0, final int x1, final int y1, final Object[] args) {
+        final ocl_image input = (ocl_image) args[0], output = (ocl_image) args[1];
+        final int[] src = input.getHostPixels(), dst = output.getHostPixels();
+        final int w = output.getWidth();
+        for (int y = y0; y < Math.min(y1, output.getHeight()); y++) {
+            final int xEnd = Math.min(x1, w);
+            if (xEnd > x0) {
+                System.arraycopy(src, y * w + x0, dst, y * w + x0, xEnd - x0);
+            }
+        }
+    }
+
+    private static void swizzleRgbaBgra(final int x0, final int y0, final int x1, final int y1, final Object[] args) {
+        final ocl_image input = (ocl_image) args[0], output = (ocl_image) args[1];
+        final int[] src = input.getHostPixels(), dst = output.getHostPixels();
+        final int w = output.getWidth();
+        for (int y = y0; y < Math.min(y1, output.getHeight()); y++) {
+            for (int x = x0; x < Math.min(x1, w); x++) {
+                final int p = src[y * w + x];
+                dst[y * w + x] = (p & 0xff00ff00) | ((p >>> 16) & 0xff) | ((p & 0xff) << 16);
+            }
+        }
+    }
+
+    private static void premultiply(final int x0, final int y0, final int x1, final int y1, final Object[] args) {
+        final ocl_image input = (ocl_image) args[0], output = (ocl_image) args[1];
+        final int[] src = input.getHostPixels(), dst = output.getHostPixels();
+        final int w = output.getWidth();
+        for (int y = y0; y < Math.min(y1, output.getHeight()); y++) {
+            for (int x = x0; x < Math.min(x1, w); x++) {
+                final int p = src[y * w + x], a = p >>> 24;
+                int q = p & 0xff000000;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    q |= Math.round(((p >>> shift) & 0xff) * a / 255.f) << shift;
+                }
+                dst[y * w + x] = q;
+            }
+        }
+    }
+
+    private static void fillImage(final int x0, final int y0, final int x1, final int y1, final Object[] args) {
+        final ocl_image output = (ocl_image) args[0];
+        final float[] xyzw = (float[]) args[2];
+        final int[] dst = output.getHostPixels();
+        final int w = output.getWidth();
+        // Composantes x, y, z, w => b, g, r, a
+        final int argb = toARGB(xyzw[3], xyzw[2], xyzw[1], xyzw[0]);
+        for (int y = y0; y < Math.min(y1, output.getHeight()); y++) {
+            final int xEnd = Math.min(x1, w);
+            if (xEnd > x0) {
+                Arrays.fill(dst, y * w + x0, y * w + xEnd, argb);
+            }
+        }
+    }
+
+    private JavaKernels() {
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_event;
+import org.jocl.cl_kernel;
+import org.jocl.cl_mem;
+import org.jocl.cl_program;
+
+/**
+ * Passage des arguments d'un kernel sans allocation.
+ *
+ * Contrairement a OpenCLBase.args(), la signature du kernel est lue une seule
+ * fois (clGetKernelArgInfo), les valeurs sont ecrites dans un buffer direct
+ * reutilise et clSetKernelArg n'est appele que pour les arguments qui ont
+ * change depuis le dernier lancement. Une boucle qui relance le meme kernel
+ * n'alloue donc rien en regime etabli (run() avec event null).
+ *
+ * L'instance cl_kernel est reservee a cet objet (empruntee au KernelPool et
+ * rendue par release()) : personne d'autre ne modifie ses arguments.
+ *
+ * Sans device, les arguments sont gardes tels quels et run() passe par les
+ * kernels Java.
+ *
+ * Un programme recharge depuis ProgramCache n'a plus d'infos sur ses
+ * arguments : elles sont enregistrees avec le binaire (encodeArgInfo) et
+ * reprises au chargement (registerArgInfo).
+ *
+ * @author durands
+ */
+public class KernelInvocation {
+
+    private static final Logger LOGGER = Logger.getLogger(KernelInvocation.class.getName());
+
+    // Taille max d'un argument par valeur (double16)
+    private static final int MAX_ARG_BYTES = 128;
+    private static final int MAX_HOST_ARGS = 32;
+
+    private static final int KIND_UNKNOWN = 0, KIND_VALUE = 1, KIND_MEM = 2, KIND_LOCAL = 3;
+
+    /**
+     * Types et qualificateurs d'adresse des arguments d'un kernel
+     */
+    private static class Signature {
+
+        final String[] typeNames;
+        final int[] qualifiers;
+
+        Signature(String[] typeNames, int[] qualifiers) {
+            this.typeNames = typeNames;
+            this.qualifiers = qualifiers;
+        }
+    }
+
+    // Signatures des kernels des programmes charges depuis ProgramCache
+    private static final Map<String, Signature> cachedSignatures = new ConcurrentHashMap<>();
+    private static final AtomicBoolean warned = new AtomicBoolean();
+
+    private final String kernelName;
+    private final cl_kernel kernel;
+    private final boolean pooled;
+    private final int nbArgs;
+
+    // Signature lue sur le kernel (KIND_UNKNOWN si -cl-kernel-arg-info absent)
+    private final String[] typeNames;
+    private final int[] kinds;
+    private final int[] expectedSizes;
+
+    // Valeurs courantes : un emplacement de MAX_ARG_BYTES par argument
+    private final ByteBuffer values;
+    private final Pointer[] pointers;
+    private final int[] sizes;
+    private final cl_mem[] mems;
+    private final Pointer[] memPointers;
+    private final boolean[] localArgs;
+    private final boolean[] assigned;
+    private final boolean[] dirty;
+
+    // Mode sans device
+    private final Object[] hostArgs;
+    private int hostCount;
+
+    private long setCount, skipCount;
+
+    /**
+     * Reserve une instance du kernel
+     *
+     * @param kernelName
+     */
+    public KernelInvocation(final String kernelName) {
+        this(kernelName, OpenCLBase.isDeviceAvailable() ? KernelPool.checkout(kernelName) : null, true);
+        if (OpenCLBase.isDeviceAvailable() && kernel == null) {
+            throw new IllegalArgumentException("Unknown kernel " + kernelName);
+        }
+    }
+
+    /**
+     * Utilise un kernel deja cree. Ses arguments ne doivent pas etre modifies
+     * par ailleurs.
+     *
+     * @param kernel
+     */
+    public KernelInvocation(final cl_kernel kernel) {
+        this(OpenCLBase.getKernelName(kernel), kernel, false);
+    }
+
+    private KernelInvocation(final String kernelName, final cl_kernel kernel, final boolean pooled) {
+        this.kernelName = kernelName;
+        this.kernel = kernel;
+        this.pooled = pooled;
+        this.nbArgs = kernel == null ? MAX_HOST_ARGS : getArgCount(kernel);
+        typeNames = new String[nbArgs];
+        kinds = new int[nbArgs];
+        expectedSizes = new int[nbArgs];
+        values = ByteBuffer.allocateDirect(nbArgs * MAX_ARG_BYTES).order(ByteOrder.nativeOrder());
+        pointers = new Pointer[nbArgs];
+        sizes = new int[nbArgs];
+        mems = new cl_mem[nbArgs];
+        memPointers = new Pointer[nbArgs];
+        localArgs = new boolean[nbArgs];
+        assigned = new boolean[nbArgs];
+        dirty = new boolean[nbArgs];
+        hostArgs = kernel == null ? new Object[nbArgs] : null;
+        final Pointer base = Pointer.to(values);
+        for (int i = 0; i < nbArgs; i++) {
+            pointers[i] = base.withByteOffset(i * MAX_ARG_BYTES);
+        }
+        if (kernel != null) {
+            Signature signature = readSignature(kernel, nbArgs);
+            if (signature == null) {
+                signature = cachedSignatures.get(kernelName);
+            }
+            if (signature != null && signature.typeNames.length == nbArgs) {
+                for (int i = 0; i < nbArgs; i++) {
+                    setArgInfo(i, signature.typeNames[i], signature.qualifiers[i]);
+                }
+            } else if (warned.compareAndSet(false, true)) {
+                LOGGER.log(Level.WARNING, "No argument info for {0} (built without -cl-kernel-arg-info?): argument checks disabled", kernelName);
+            }
+        }
+    }
+
+    private static int getArgCount(final cl_kernel kernel) {
+        final int[] n = {0};
+        CL.clGetKernelInfo(kernel, CL.CL_KERNEL_NUM_ARGS, Sizeof.cl_uint, Pointer.to(n), null);
+        return n[0];
+    }
+
+    /**
+     * Signature lue sur le driver
+     *
+     * @return null si le programme n'a pas d'infos sur les arguments
+     * (compile sans -cl-kernel-arg-info ou charge depuis un binaire)
+     */
+    private static Signature readSignature(final cl_kernel kernel, final int nbArgs) {
+        final String[] typeNames = new String[nbArgs];
+        final int[] qualifiers = new int[nbArgs];
+        try {
+            for (int i = 0; i < nbArgs; i++) {
+                final long[] size = {0};
+                if (CL.clGetKernelArgInfo(kernel, i, CL.CL_KERNEL_ARG_TYPE_NAME, 0, null, size) != CL.CL_SUCCESS) {
+                    return null;
+                }
+                final byte[] name = new byte[(int) size[0]];
+                CL.clGetKernelArgInfo(kernel, i, CL.CL_KERNEL_ARG_TYPE_NAME, name.length, Pointer.to(name), null);
+                final int[] qualifier = {0};
+                CL.clGetKernelArgInfo(kernel, i, CL.CL_KERNEL_ARG_ADDRESS_QUALIFIER, Sizeof.cl_uint, Pointer.to(qualifier), null);
+                typeNames[i] = new String(name, 0, Math.max(0, name.length - 1)).trim();
+                qualifiers[i] = qualifier[0];
+            }
+        } catch (CLException e) {
+            // CL_KERNEL_ARG_INFO_NOT_AVAILABLE
+            return null;
+        }
+        return new Signature(typeNames, qualifiers);
+    }
+
+    private void setArgInfo(final int i, final String typeName, final int qualifier) {
+        typeNames[i] = typeName;
+        if (qualifier == CL.CL_KERNEL_ARG_ADDRESS_LOCAL) {
+            kinds[i] = KIND_LOCAL;
+        } else if (typeName.endsWith("*") || typeName.startsWith("image") || qualifier == CL.CL_KERNEL_ARG_ADDRESS_GLOBAL) {
+            kinds[i] = KIND_MEM;
+        } else {
+            expectedSizes[i] = sizeOfType(typeName);
+            kinds[i] = expectedSizes[i] > 0 ? KIND_VALUE : KIND_UNKNOWN;
+        }
+    }
+
+    /**
+     * Signatures de tous les kernels d'un programme compile depuis le source,
+     * a garder avec son binaire (voir ProgramCache)
+     *
+     * @param program
+     * @return null si le programme n'a pas d'infos sur ses arguments
+     */
+    static byte[] encodeArgInfo(final cl_program program) {
+        final Map<String, cl_kernel> kernels = OpenCLBase.createKernelMap(program);
+        if (kernels == null) {
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(kernels.size());
+            for (Map.Entry<String, cl_kernel> e : kernels.entrySet()) {
+                final Signature signature = readSignature(e.getValue(), getArgCount(e.getValue()));
+                if (signature == null) {
+                    return null;
+                }
+                out.writeUTF(e.getKey());
+                out.writeInt(signature.typeNames.length);
+                for (int i = 0; i < signature.typeNames.length; i++) {
+                    out.writeUTF(signature.typeNames[i]);
+                    out.writeInt(signature.qualifiers[i]);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Impossible en memoire
+            throw new IllegalStateException(e);
+        } finally {
+            for (cl_kernel k : kernels.values()) {
+                CL.clReleaseKernel(k);
+            }
+        }
+    }
+
+    /**
+     * Reprend les signatures gardees avec un binaire (voir encodeArgInfo)
+     *
+     * @param data peut etre null
+     */
+    static void registerArgInfo(final byte[] data) {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            final int nbKernels = in.readInt();
+            for (int k = 0; k < nbKernels; k++) {
+                final String name = in.readUTF();
+                final int n = in.readInt();
+                if (n < 0 || n > data.length) {
+                    throw new IOException("Invalid argument count " + n);
+                }
+                final String[] typeNames = new String[n];
+                final int[] qualifiers = new int[n];
+                for (int i = 0; i < n; i++) {
+                    typeNames[i] = in.readUTF();
+                    qualifiers[i] = in.readInt();
+                }
+                cachedSignatures.put(name, new Signature(typeNames, qualifiers));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Invalid cached argument info: {0}", e.toString());
+        }
+    }
+
+    /**
+     * Taille d'un type scalaire ou vecteur OpenCL ("float4", "uint"...)
+     *
+     * @param type
+     * @return 0 si le type n'est pas connu (struct, sampler...)
+     */
+    static int sizeOfType(final String type) {
+        int end = type.length();
+        while (end > 0 && Character.isDigit(type.charAt(end - 1))) {
+            end--;
+        }
+        final String base = type.substring(0, end);
+        final int n = end == type.length() ? 1 : Integer.parseInt(type.substring(end));
+        final int size;
+        switch (base) {
+            case "char":
+            case "uchar":
+            case "bool":
+                size = 1;
+                break;
+            case "short":
+            case "ushort":
+            case "half":
+                size = 2;
+                break;
+            case "int":
+            case "uint":
+            case "float":
+                size = 4;
+                break;
+            case "long":
+            case "ulong":
+            case "double":
+                size = 8;
+                break;
+            default:
+                return 0;
+        }
+        // Un vecteur de 3 occupe la place de 4
+        return size * (n == 3 ? 4 : n);
+    }
+
+    private void checkIndex(final int i) {
+        if (i < 0 || i >= nbArgs) {
+            throw new IndexOutOfBoundsException(kernelName + " has " + nbArgs + " argument(s), got index " + i);
+        }
+    }
+
+    /**
+     * Prepare l'emplacement d'un argument par valeur
+     *
+     * @return la position dans le buffer
+     */
+    private int value(final int i, final int bytes) {
+        checkIndex(i);
+        if (kinds[i] == KIND_MEM || kinds[i] == KIND_LOCAL
+                || (kinds[i] == KIND_VALUE && expectedSizes[i] != bytes)) {
+            throw new IllegalArgumentException(kernelName + " argument " + i + " is " + typeNames[i] + ", not a " + bytes + " bytes value");
+        }
+        if (!assigned[i] || sizes[i] != bytes || mems[i] != null || localArgs[i]) {
+            assigned[i] = true;
+            sizes[i] = bytes;
+            mems[i] = null;
+            localArgs[i] = false;
+            dirty[i] = true;
+        }
+        return i * MAX_ARG_BYTES;
+    }
+
+    private void putInt(final int i, final int pos, final int v) {
+        if (values.getInt(pos) != v) {
+            values.putInt(pos, v);
+            dirty[i] = true;
+        }
+    }
+
+    private void putFloat(final int i, final int pos, final float v) {
+        putInt(i, pos, Float.floatToRawIntBits(v));
+    }
+
+    private KernelInvocation host(final int i, final Object value) {
+        checkIndex(i);
+        hostArgs[i] = value;
+        hostCount = Math.max(hostCount, i + 1);
+        return this;
+    }
+
+    public KernelInvocation setInt(final int i, final int v) {
+        if (kernel == null) {
+            return host(i, v);
+        }
+        putInt(i, value(i, Sizeof.cl_int), v);
+        return this;
+    }
+
+    public KernelInvocation setInt2(final int i, final int x, final int y) {
+        if (kernel == null) {
+            return host(i, new int[]{x, y});
+        }
+        final int pos = value(i, 2 * Sizeof.cl_int);
+        putInt(i, pos, x);
+        putInt(i, pos + 4, y);
+        return this;
+    }
+
+    public KernelInvocation setInt4(final int i, final int x, final int y, final int z, final int w) {
+        if (kernel == null) {
+            return host(i, new int[]{x, y, z, w});
+        }
+        final int pos = value(i, 4 * Sizeof.cl_int);
+        putInt(i, pos, x);
+        putInt(i, pos + 4, y);
+        putInt(i, pos + 8, z);
+        putInt(i, pos + 12, w);
+        return this;
+    }
+
+    public KernelInvocation setBoolean(final int i, final boolean v) {
+        if (kernel == null) {
+            return host(i, v);
+        }
+        return setInt(i, v ? 1 : 0);
+    }
+
+    public KernelInvocation setFloat(final int i, final float v) {
+        if (kernel == null) {
+            return host(i, v);
+        }
+        putFloat(i, value(i, Sizeof.cl_float), v);
+        return this;
+    }
+
+    public KernelInvocation setFloat2(final int i, final float x, final float y) {
+        if (kernel == null) {
+            return host(i, new float[]{x, y});
+        }
+        final int pos = value(i, 2 * Sizeof.cl_float);
+        putFloat(i, pos, x);
+        putFloat(i, pos + 4, y);
+        return this;
+    }
+
+    public KernelInvocation setFloat4(final int i, final float x, final float y, final float z, final float w) {
+        if (kernel == null) {
+            return host(i, new float[]{x, y, z, w});
+        }
+        final int pos = value(i, 4 * Sizeof.cl_float);
+        putFloat(i, pos, x);
+        putFloat(i, pos + 4, y);
+        putFloat(i, pos + 8, z);
+        putFloat(i, pos + 12, w);
+        return this;
+    }
+
+    /**
+     * Vecteur (float2, float3, float4, float8, float16) a partir d'un tableau.
+     * Un float3 occupe la place d'un float4.
+     */
+    public KernelInvocation setFloats(final int i, final float[] v) {
+        if (kernel == null) {
+            return host(i, v);
+        }
+        final int n = vectorLength(v.length);
+        if (n * Sizeof.cl_float > MAX_ARG_BYTES) {
+            throw new IllegalArgumentException("Too many values for argument " + i + ": " + v.length);
+        }
+        final int pos = value(i, n * Sizeof.cl_float);
+        for (int k = 0; k < n; k++) {
+            putFloat(i, pos + 4 * k, k < v.length ? v[k] : 0.f);
+        }
+        return this;
+    }
+
+    /**
+     * Vecteur (int2, int3, int4, int8, int16) a partir d'un tableau. Un int3
+     * occupe la place d'un int4.
+     */
+    public KernelInvocation setInts(final int i, final int[] v) {
+        if (kernel == null) {
+            return host(i, v);
+        }
+        final int n = vectorLength(v.length);
+        if (n * Sizeof.cl_int > MAX_ARG_BYTES) {
+            throw new IllegalArgumentException("Too many values for argument " + i + ": " + v.length);
+        }
+        final int pos = value(i, n * Sizeof.cl_int);
+        for (int k = 0; k < n; k++) {
+            putInt(i, pos + 4 * k, k < v.length ? v[k] : 0);
+        }
+        return this;
+    }
+
+    /**
+     * Nombre de composantes en memoire (voir sizeOfType)
+     */
+    private static int vectorLength(final int n) {
+        return n == 3 ? 4 : n;
+    }
+
+    /**
+     * Couleur en float4 normalise, comme OpenCLBase.args()
+     */
+    public KernelInvocation setColor(final int i, final Color c) {
+        if (kernel == null) {
+            return host(i, c);
+        }
+        return setFloat4(i, c.getRed() / 255.f, c.getGreen() / 255.f, c.getBlue() / 255.f, c.getAlpha() / 255.f);
+    }
+
+    /**
+     * Point en float2
+     */
+    public KernelInvocation setPoint(final int i, final Point2D pt) {
+        if (kernel == null) {
+            return host(i, pt);
+        }
+        return setFloat2(i, (float) pt.getX(), (float) pt.getY());
+    }
+
+    public KernelInvocation setMem(final int i, final cl_mem mem) {
+        if (kernel == null) {
+            return host(i, mem);
+        }
+        checkIndex(i);
+        if (kinds[i] == KIND_VALUE || kinds[i] == KIND_LOCAL) {
+            throw new IllegalArgumentException(kernelName + " argument " + i + " is " + typeNames[i] + ", not a memory object");
+        }
+        if (mems[i] != mem) {
+            // Seule allocation : quand l'objet memoire change
+            mems[i] = mem;
+            memPointers[i] = Pointer.to(mem);
+            localArgs[i] = false;
+            assigned[i] = true;
+            sizes[i] = Sizeof.cl_mem;
+            dirty[i] = true;
+        }
+        return this;
+    }
+
+    public KernelInvocation setImage(final int i, final ocl_image img) {
+        if (kernel == null) {
+            return host(i, img);
+        }
+        return setMem(i, img.mem);
+    }
+
+    public KernelInvocation setBuffer(final int i, final ocl_buffer buf) {
+        if (kernel == null) {
+            return host(i, buf);
+        }
+        return setMem(i, buf.mem);
+    }
+
+    /**
+     * Memoire __local de la taille donnee
+     *
+     * @param i
+     * @param bytes
+     * @return
+     */
+    public KernelInvocation setLocal(final int i, final long bytes) {
+        if (kernel == null) {
+            return host(i, null);
+        }
+        checkIndex(i);
+        if (kinds[i] == KIND_VALUE || kinds[i] == KIND_MEM) {
+            throw new IllegalArgumentException(kernelName + " argument " + i + " is " + typeNames[i] + ", not __local");
+        }
+        if (!assigned[i] || sizes[i] != bytes || !localArgs[i]) {
+            assigned[i] = true;
+            sizes[i] = (int) bytes;
+            mems[i] = null;
+            localArgs[i] = true;
+            dirty[i] = true;
+        }
+        return this;
+    }
+
+    /**
+     * Affectation d'un argument quelconque, avec les memes conversions que
+     * OpenCLBase.args()
+     *
+     * @param i
+     * @param p
+     * @return
+     */
+    public KernelInvocation set(final int i, final Object p) {
+        if (kernel == null) {
+            return host(i, p);
+        }
+        if (p instanceof cl_mem) {
+            return setMem(i, (cl_mem) p);
+        } else if (p instanceof ocl_image) {
+            return setImage(i, (ocl_image) p);
+        } else if (p instanceof ocl_buffer) {
+            return setBuffer(i, (ocl_buffer) p);
+        } else if (p instanceof Integer) {
+            return setInt(i, (Integer) p);
+        } else if (p instanceof Float) {
+            return setFloat(i, (Float) p);
+        } else if (p instanceof Double) {
+            return setFloat(i, ((Double) p).floatValue());
+        } else if (p instanceof double[]) {
+            return setFloats(i, OpenCLBase.toFloat((double[]) p));
+        } else if (p instanceof Double[]) {
+            return setFloats(i, OpenCLBase.toFloat((Double[]) p));
+        } else if (p instanceof float[]) {
+            return setFloats(i, (float[]) p);
+        } else if (p instanceof int[]) {
+            return setInts(i, (int[]) p);
+        } else if (p instanceof Color) {
+            return setColor(i, (Color) p);
+        } else if (p instanceof Boolean) {
+            return setBoolean(i, (Boolean) p);
+        } else if (p instanceof Point2D) {
+            return setPoint(i, (Point2D) p);
+        }
+        throw new IllegalArgumentException("Unsupported argument type " + (p == null ? "null" : p.getClass().getName()));
+    }
+
+    /**
+     * Affecte tous les arguments a partir de l'indice 0
+     *
+     * @param params
+     * @return
+     */
+    public KernelInvocation setAll(final Object... params) {
+        for (int i = 0; i < params.length; i++) {
+            set(i, params[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Transmet a OpenCL les arguments modifies
+     */
+    private void flush() {
+        for (int i = 0; i < nbArgs; i++) {
+            if (!assigned[i]) {
+                throw new IllegalStateException(kernelName + " argument " + i + " is not set");
+            }
+            if (!dirty[i]) {
+                skipCount++;
+                continue;
+            }
+            final int err;
+            if (mems[i] != null) {
+                err = CL.clSetKernelArg(kernel, i, Sizeof.cl_mem, memPointers[i]);
+            } else if (localArgs[i]) {
+                err = CL.clSetKernelArg(kernel, i, sizes[i], null);
+            } else {
+                err = CL.clSetKernelArg(kernel, i, sizes[i], pointers[i]);
+            }
+            OpenCLBase.checkError(err);
+            dirty[i] = false;
+            setCount++;
+        }
+    }
+
+    public boolean run(final long[] global_sz, final cl_event[][] event) {
+        return run(null, global_sz, null, event);
+    }
+
+    /**
+     * Lance le kernel
+     *
+     * @param global_offset peut etre null
+     * @param global_sz
+     * @param local_sz null pour la taille reglee par WorkGroupTuner (ou celle
+     * du pilote)
+     * @param event null pour ne pas creer d'evenement
+     * @return
+     */
+    public boolean run(final long[] global_offset, final long[] global_sz, final long[] local_sz, final cl_event[][] event) {
+        if (kernel == null) {
+            return JavaKernels.run(kernelName, global_offset, global_sz, Arrays.copyOf(hostArgs, hostCount));
+        }
+        flush();
+        if (local_sz == null) {
+            return OpenCLBase.runTuned(kernelName, kernel, global_offset, global_sz, event);
+        }
+        return OpenCLBase.run(kernelName, kernel, global_sz.length, global_offset, global_sz, local_sz, event);
+    }
+
+    public String getKernelName() {
+        return kernelName;
+    }
+
+    public int getArgCount() {
+        return kernel == null ? hostCount : nbArgs;
+    }
+
+    /**
+     * @param i
+     * @return le type declare de l'argument, null s'il n'est pas connu
+     */
+    public String getArgTypeName(final int i) {
+        checkIndex(i);
+        return typeNames[i];
+    }
+
+    /**
+     * @return nombre d'appels a clSetKernelArg
+     */
+    public long getSetCount() {
+        return setCount;
+    }
+
+    /**
+     * @return nombre d'arguments inchanges (clSetKernelArg evite)
+     */
+    public long getSkipCount() {
+        return skipCount;
+    }
+
+    /**
+     * Rend le kernel au KernelPool
+     */
+    public void release() {
+        if (pooled && kernel != null) {
+            KernelPool.checkin(kernelName, kernel);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Kernels utilitaires charges par KernelLibrary au premier usage.
+ * KERNEL_LIBRARY_VERSION doit etre egal a KernelLibrary.VERSION : a changer
+ * des qu'une signature change.
+ *
+ * Les images entieres (UNSIGNED_INT8/16) sont lues et ecrites entre 0 et 1
+ * avec le facteur scale (1/255 ou 1/65535) ; scale = 0 pour les formats
+ * normalises et float. Les images entieres signees ou UNSIGNED_INT32 ne sont
+ * pas gerees (refusees par KernelLibrary).
+ */
+#define KERNEL_LIBRARY_VERSION 2
+
+const sampler_t lib_sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+inline float4 lib_read(read_only image2d_t img, const int2 xy, const float scale) {
+    return scale > 0.f ? convert_float4(read_imageui(img, lib_sampler, xy)) * scale : read_imagef(img, lib_sampler, xy);
+}
+
+inline void lib_write(write_only image2d_t img, const int2 xy, const float4 c, const float scale) {
+    if (scale > 0.f) {
+        write_imageui(img, xy, convert_uint4_sat_rte(c / scale));
+    } else {
+        write_imagef(img, xy, c);
+    }
+}
+
+// Coordonnee du work-item, sortie si elle est hors de l'image
+#define LIB_XY(img) \
+    const int2 xy = (int2)(get_global_id(0), get_global_id(1)); \
+    if (xy.x >= get_image_width(img) || xy.y >= get_image_height(img)) return;
+
+// -----------------------------------------------------------------------------
+//      Conversion vers une image normalisee (UNORM_INT8 ou UNORM_INT16, le
+//      format de sortie est celui de l'image) : (v + add) * mult entre 0 et 1
+// -----------------------------------------------------------------------------
+__kernel void convert_to_unorm(read_only image2d_t input, write_only image2d_t output, const float inScale, const float add, const float mult) {
+    LIB_XY(output)
+    write_imagef(output, xy, clamp((lib_read(input, xy, inScale) + add) * mult, 0.f, 1.f));
+}
+
+// -----------------------------------------------------------------------------
+//      Conversions entre images de meme taille
+// -----------------------------------------------------------------------------
+__kernel void copy_image(read_only image2d_t input, write_only image2d_t output, const float inScale, const float outScale) {
+    LIB_XY(output)
+    lib_write(output, xy, lib_read(input, xy, inScale), outScale);
+}
+
+// rgba <=> bgra
+__kernel void swizzle_rgba_bgra(read_only image2d_t input, write_only image2d_t output, const float inScale, const float outScale) {
+    LIB_XY(output)
+    lib_write(output, xy, lib_read(input, xy, inScale).zyxw, outScale);
+}
+
+__kernel void gray_to_rgba(read_only image2d_t input, write_only image2d_t output, const float inScale, const float outScale) {
+    LIB_XY(output)
+    const float v = lib_read(input, xy, inScale).x;
+    lib_write(output, xy, (float4)(v, v, v, 1.f), outScale);
+}
+
+__kernel void premultiply(read_only image2d_t input, write_only image2d_t output, const float inScale, const float outScale) {
+    LIB_XY(output)
+    const float4 c = lib_read(input, xy, inScale);
+    lib_write(output, xy, (float4)(c.xyz * c.w, c.w), outScale);
+}
+
+// -----------------------------------------------------------------------------
+//      Remplissages
+// -----------------------------------------------------------------------------
+__kernel void fill_image(write_only image2d_t output, const float outScale, const float4 color) {
+    LIB_XY(output)
+    lib_write(output, xy, color, outScale);
+}
+
+__kernel void fill_buffer(__global float* output, const int n, const float value) {
+    // @pad-safe (voir WorkGroupTuner) : rien n'est ecrit au dela de n
+    const int i = get_global_id(0);
+    if (i < n) output[i] = value;
+}
+
+// -----------------------------------------------------------------------------
+//      Images <=> buffers de float (1 ou 4 float par pixel)
+// -----------------------------------------------------------------------------
+__kernel void image_to_buffer(read_only image2d_t input, const float inScale, __global float* output, const int channels) {
+    LIB_XY(input)
+    const int i = xy.y * get_image_width(input) + xy.x;
+    const float4 c = lib_read(input, xy, inScale);
+    if (channels == 1) {
+        output[i] = c.x;
+    } else {
+        vstore4(c, i, output);
+    }
+}
+
+__kernel void buffer_to_image(__global const float* input, const int channels, write_only image2d_t output, const float outScale) {
+    LIB_XY(output)
+    const int i = xy.y * get_image_width(output) + xy.x;
+    const float4 c = channels == 1 ? (float4)(input[i], input[i], input[i], 1.f) : vload4(i, input);
+    lib_write(output, xy, c, outScale);
+}
@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jocl.CL;
+import org.jocl.cl_event;
+
+/**
+ * Kernels utilitaires livres avec OpenCLBase (KernelLibrary.cl) : conversions
+ * de format, swizzle, gris vers rgba, premultiplication, remplissages et
+ * copies image / buffer.
+ *
+ * La bibliotheque est compilee une seule fois par contexte, au premier appel
+ * (le binaire est garde par ProgramCache). Sans device, les kernels utiles aux
+ * images ARGB (copie, swizzle, premultiplication, remplissage) passent par
+ * JavaKernels.
+ *
+ * @author durands
+ */
+public class KernelLibrary {
+
+    private static final Logger LOGGER = Logger.getLogger(KernelLibrary.class.getName());
+
+    // Doit correspondre a KERNEL_LIBRARY_VERSION dans KernelLibrary.cl
+    public static final int VERSION = 2;
+
+    private static final String RESOURCE = "KernelLibrary.cl";
+
+    private static boolean loaded;
+
+    /**
+     * Compile la bibliotheque si ce n'est pas deja fait
+     *
+     * @return false sans device ou en cas d'erreur
+     */
+    public static synchronized boolean load() {
+        if (loaded) {
+            return true;
+        }
+        if (!OpenCLBase.isDeviceAvailable()) {
+            return false;
+        }
+        final URL url = KernelLibrary.class.getResource(RESOURCE);
+        try {
+            final byte[] bytes = url == null ? null : OpenCLBase.toByteArray(url);
+            if (bytes == null) {
+                LOGGER.log(Level.SEVERE, "{0} not found", RESOURCE);
+                return false;
+            }
+            final String source = new String(bytes, StandardCharsets.UTF_8);
+            if (!source.contains("#define KERNEL_LIBRARY_VERSION " + VERSION + "\n") && !source.contains("#define KERNEL_LIBRARY_VERSION " + VERSION + "\r")) {
+                LOGGER.log(Level.SEVERE, "{0} does not match version {1}", new Object[]{RESOURCE, VERSION});
+                return false;
+            }
+            loaded = OpenCLBase.createKernelsFromSource(source);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Cannot read " + RESOURCE, e);
+        }
+        return loaded;
+    }
+
+    /**
+     * Le contexte a ete libere (OpenCLBase.releaseAll)
+     */
+    static synchronized void reset() {
+        loaded = false;
+    }
+
+    /**
+     * Kernels Java sans device, bibliotheque compilee sinon
+     */
+    private static boolean ready() {
+        return !OpenCLBase.isDeviceAvailable() || load();
+    }
+
+    /**
+     * Les kernels lisent les images entieres avec read_imageui et les autres
+     * avec read_imagef : les images entieres signees ou sur 32 bits ne sont
+     * pas gerees
+     */
+    static boolean isSupported(final ocl_image img) {
+        switch (img.image_format.image_channel_data_type) {
+            case CL.CL_SIGNED_INT8:
+            case CL.CL_SIGNED_INT16:
+            case CL.CL_SIGNED_INT32:
+            case CL.CL_UNSIGNED_INT32:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isSupported(final ocl_image input, final ocl_image output) {
+        return isSupported(input) && isSupported(output);
+    }
+
+    /**
+     * @return facteur qui ramene les valeurs d'une image entiere entre 0 et
+     * 1, 0 si l'image est deja lue entre 0 et 1 par read_imagef (voir
+     * isSupported)
+     */
+    static float scaleOf(final ocl_image img) {
+        switch (img.image_format.image_channel_data_type) {
+            case CL.CL_UNSIGNED_INT8:
+                return 1.f / 255.f;
+            case CL.CL_UNSIGNED_INT16:
+                return 1.f / 65535.f;
+            default:
+                return 0.f;
+        }
+    }
+
+    private static long[] sizeOf(final ocl_image img) {
+        return new long[]{img.getWidth(), img.getHeight()};
+    }
+
+    /**
+     * Conversion vers une image UNORM_INT8 ou UNORM_INT16 : (v + add) * mult
+     * ramene de [0, 1] a 0..255 ou 0..65535
+     *
+     * @param input
+     * @param output UNORM_INT8 ou UNORM_INT16, de meme taille
+     * @param add
+     * @param mult
+     * @param event chaine d'evenements (peut etre null)
+     * @return false si un format n'est pas gere ou en cas d'erreur
+     */
+    public static boolean convert(final ocl_image input, final ocl_image output, final float add, final float mult, final cl_event[][] event) {
+        final int outType = output.image_format.image_channel_data_type;
+        if (!isSupported(input) || (outType != CL.CL_UNORM_INT8 && outType != CL.CL_UNORM_INT16)) {
+            return false;
+        }
+        return load() && OpenCLBase.runWithArgs("convert_to_unorm", sizeOf(output), event, input, output, scaleOf(input), add, mult);
+    }
+
+    /**
+     * Copie avec conversion de format (meme taille)
+     */
+    public static boolean copy(final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        return isSupported(input, output) && ready() && OpenCLBase.runWithArgs("copy_image", sizeOf(output), event, input, output, scaleOf(input), scaleOf(output));
+    }
+
+    /**
+     * Echange des canaux x et z (rgba <=> bgra)
+     */
+    public static boolean swizzle(final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        return isSupported(input, output) && ready() && OpenCLBase.runWithArgs("swizzle_rgba_bgra", sizeOf(output), event, input, output, scaleOf(input), scaleOf(output));
+    }
+
+    /**
+     * Image a un canal vers une image rgba opaque
+     */
+    public static boolean grayToRgba(final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        return isSupported(input, output) && load() && OpenCLBase.runWithArgs("gray_to_rgba", sizeOf(output), event, input, output, scaleOf(input), scaleOf(output));
+    }
+
+    /**
+     * Couleur multipliee par l'alpha (canal w)
+     */
+    public static boolean premultiply(final ocl_image input, final ocl_image output, final cl_event[][] event) {
+        return isSupported(input, output) && ready() && OpenCLBase.runWithArgs("premultiply", sizeOf(output), event, input, output, scaleOf(input), scaleOf(output));
+    }
+
+    /**
+     * Remplit une image
+     *
+     * @param img
+     * @param xyzw valeur des 4 composantes, entre 0 et 1 pour les images
+     * normalisees ou entieres
+     * @param event
+     * @return
+     */
+    public static boolean fill(final ocl_image img, final float[] xyzw, final cl_event[][] event) {
+        return isSupported(img) && ready() && OpenCLBase.runWithArgs("fill_image", sizeOf(img), event, img, scaleOf(img), xyzw);
+    }
+
+    /**
+     * Remplit une image ARGB (composantes bgra) avec une couleur
+     */
+    public static boolean fill(final ocl_image img, final Color color, final cl_event[][] event) {
+        final float[] rgba = color.getRGBComponents(null);
+        return fill(img, new float[]{rgba[2], rgba[1], rgba[0], rgba[3]}, event);
+    }
+
+    /**
+     * Remplit un buffer de float
+     *
+     * @return false si ce n'est pas un buffer de float (voir
+     * ocl_buffer.isFloat) ou en cas d'erreur
+     */
+    public static boolean fill(final ocl_buffer buff, final float value, final cl_event[][] event) {
+        return buff.isFloat() && load() && OpenCLBase.runWithArgs("fill_buffer", new long[]{buff.w}, event, buff, buff.w, value);
+    }
+
+    /**
+     * Copie une image dans un buffer de float : 1 float par pixel pour les
+     * images a un canal, 4 sinon
+     *
+     * @return false si le buffer n'est pas un buffer de float ou s'il est trop
+     * petit, si le format n'est pas gere ou en cas d'erreur
+     */
+    public static boolean toBuffer(final ocl_image img, final ocl_buffer buff, final cl_event[][] event) {
+        final int channels = bufferChannelsOf(img);
+        if (!isSupported(img) || !buff.isFloat() || (long) buff.w < (long) img.getWidth() * img.getHeight() * channels) {
+            return false;
+        }
+        return load() && OpenCLBase.runWithArgs("image_to_buffer", sizeOf(img), event, img, scaleOf(img), buff, channels);
+    }
+
+    /**
+     * Copie un buffer de float dans une image (voir toBuffer), les valeurs
+     * grises sont repetees dans une image rgba
+     */
+    public static boolean fromBuffer(final ocl_buffer buff, final ocl_image img, final cl_event[][] event) {
+        final int channels = bufferChannelsOf(img);
+        if (!isSupported(img) || !buff.isFloat() || (long) buff.w < (long) img.getWidth() * img.getHeight() * channels) {
+            return false;
+        }
+        return load() && OpenCLBase.runWithArgs("buffer_to_image", sizeOf(img), event, buff, channels, img, scaleOf(img));
+    }
+
+    /**
+     * Nombre de float par pixel d'une image copiee dans un buffer
+     */
+    public static int bufferChannelsOf(final ocl_image img) {
+        return Images2D.channelCountOf(img.image_format.image_channel_order) == 1 ? 1 : 4;
+    }
+
+    private KernelLibrary() {
+    }
+}
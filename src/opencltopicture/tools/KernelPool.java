@@ -0,0 +1,178 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.cl_kernel;
+import org.jocl.cl_program;
+
+/**
+ * Registre concurrent des kernels et pool d'instances cl_kernel.
+ *
+ * Les arguments d'un cl_kernel sont un etat partage : deux threads qui font
+ * args() puis clEnqueueNDRangeKernel sur le meme kernel s'ecrasent leurs
+ * arguments. Chaque appel emprunte donc sa propre instance (creee a partir du
+ * cl_program en cache) et la rend une fois le kernel mis dans la queue, les
+ * arguments etant captures par OpenCL au moment du clEnqueueNDRangeKernel.
+ *
+ * Chaque entree garde une reference sur son programme. Quand un kernel est
+ * enregistre a nouveau (programme recompile), cette reference est rendue et
+ * les instances de l'ancien programme sont liberees, y compris celles rendues
+ * plus tard par checkin() : OpenCL detruit l'ancien programme avec sa
+ * derniere instance. Le remplacement d'une entree et la creation ou le retour
+ * d'une instance se font sous le meme verrou, pour qu'aucune instance ne soit
+ * rendue a une entree deja liberee.
+ *
+ * @author durands
+ */
+public class KernelPool {
+
+    private static class Entry {
+
+        final cl_program program;
+        final Queue<cl_kernel> free = new ConcurrentLinkedQueue<>();
+        // Toutes les instances creees a partir de ce programme
+        final Set<cl_kernel> instances = ConcurrentHashMap.newKeySet();
+        final AtomicInteger created = new AtomicInteger();
+        // Entree remplacee ou dechargee (sous LOCK)
+        boolean released;
+
+        Entry(cl_program program) {
+            this.program = program;
+        }
+    }
+
+    // Nom du kernel => programme et instances disponibles
+    private static final Map<String, Entry> registry = new ConcurrentHashMap<>();
+    // Remplacement des entrees, creation et retour des instances
+    private static final Object LOCK = new Object();
+
+    /**
+     * Enregistre le programme qui contient le kernel
+     *
+     * @param kernelName
+     * @param program
+     */
+    static void register(final String kernelName, final cl_program program) {
+        CL.clRetainProgram(program);
+        synchronized (LOCK) {
+            final Entry old = registry.put(kernelName, new Entry(program));
+            if (old != null) {
+                release(old);
+            }
+        }
+    }
+
+    public static boolean contains(final String kernelName) {
+        return registry.containsKey(kernelName);
+    }
+
+    /**
+     * Emprunte une instance du kernel pour l'usage exclusif de l'appelant.
+     * Doit etre rendue avec checkin().
+     *
+     * @param kernelName
+     * @return l'instance ou null si le kernel n'est pas charge
+     */
+    public static cl_kernel checkout(final String kernelName) {
+        final Entry entry = registry.get(kernelName);
+        if (entry == null) {
+            return null;
+        }
+        final cl_kernel kernel = entry.free.poll();
+        if (kernel != null) {
+            return kernel;
+        }
+        synchronized (LOCK) {
+            // Le programme d'une entree liberee peut deja etre detruit
+            final Entry current = entry.released ? registry.get(kernelName) : entry;
+            if (current == null) {
+                return null;
+            }
+            try {
+                final int[] err = {0};
+                final cl_kernel created = CL.clCreateKernel(current.program, kernelName, err);
+                if (OpenCLBase.checkError(err[0])) {
+                    return null;
+                }
+                current.instances.add(created);
+                current.created.incrementAndGet();
+                return created;
+            } catch (CLException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Rend une instance empruntee avec checkout()
+     *
+     * @param kernelName
+     * @param kernel
+     */
+    public static void checkin(final String kernelName, final cl_kernel kernel) {
+        if (kernel == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            final Entry entry = registry.get(kernelName);
+            if (entry != null && entry.instances.contains(kernel)) {
+                entry.free.offer(kernel);
+                return;
+            }
+        }
+        // Le kernel a ete decharge ou recompile entre temps
+        CL.clReleaseKernel(kernel);
+    }
+
+    /**
+     * Nombre d'instances creees pour un kernel (au plus une par thread
+     * concurrent)
+     *
+     * @param kernelName
+     * @return
+     */
+    public static int getInstanceCount(final String kernelName) {
+        final Entry entry = registry.get(kernelName);
+        return entry == null ? 0 : entry.created.get();
+    }
+
+    /**
+     * Libere les instances disponibles et rend la reference sur le programme.
+     * Les instances encore empruntees seront liberees par checkin(). Appele
+     * sous LOCK.
+     */
+    private static void release(final Entry entry) {
+        entry.released = true;
+        cl_kernel kernel;
+        while ((kernel = entry.free.poll()) != null) {
+            CL.clReleaseKernel(kernel);
+        }
+        CL.clReleaseProgram(entry.program);
+    }
+
+    /**
+     * Libere toutes les instances et les programmes
+     */
+    static void releaseAll() {
+        synchronized (LOCK) {
+            for (Entry entry : registry.values()) {
+                release(entry);
+            }
+            registry.clear();
+        }
+    }
+
+    private KernelPool() {
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogramme de latences en nanosecondes, a la maniere de HdrHistogram :
+ * chaque puissance de 2 est decoupee en 16 sous-intervalles, soit une
+ * precision relative d'environ 6% sur toute la plage, pour une taille fixe et
+ * un enregistrement sans allocation ni verrou.
+ *
+ * @author durands
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int NB_BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(final long value) {
+        if (value < SUB_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Borne haute des valeurs d'un intervalle
+     */
+    static long valueOf(final int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int exp = index / SUB_COUNT + SUB_BITS - 1;
+        final long sub = index % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    public void record(final long nanos) {
+        final long v = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        total.addAndGet(v);
+        min.accumulateAndGet(v, Math::min);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @param percentile entre 0 et 100
+     * @return la valeur (ns) sous laquelle se trouvent percentile % des mesures
+     */
+    public long getPercentile(final double percentile) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(n * percentile / 100.));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(valueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * Resume en microsecondes
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                getCount(), getMean() * 1e-3, getPercentile(50) * 1e-3, getPercentile(90) * 1e-3,
+                getPercentile(99) * 1e-3, getMax() * 1e-3);
+    }
+}
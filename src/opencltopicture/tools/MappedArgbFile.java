@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Image ARGB brute (un int par pixel, ordre natif, ligne par ligne) projetee
+ * en memoire, pour les images trop grosses pour une BufferedImage.
+ *
+ * Le fichier est mappe par blocs de lignes (un MappedByteBuffer est limite a
+ * 2 Go), seules les pages touchees sont chargees par le systeme.
+ *
+ * @author durands
+ */
+public class MappedArgbFile implements TiledProcessor.TileSource, TiledProcessor.TileSink, Closeable {
+
+    // Taille max d'un bloc mappe
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final int w, h;
+    private final int rowsPerChunk;
+    private final MappedByteBuffer[] mapped;
+    private final IntBuffer[] chunks;
+    private final FileChannel.MapMode mode;
+
+    private MappedArgbFile(final File f, final int w, final int h, final boolean writable) throws IOException {
+        this.w = w;
+        this.h = h;
+        this.file = new RandomAccessFile(f, writable ? "rw" : "r");
+        this.mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        final long bytes = (long) w * h * 4;
+        if (writable) {
+            file.setLength(bytes);
+        } else if (file.length() < bytes) {
+            file.close();
+            throw new IOException(f + " is too small for " + w + "x" + h + " ARGB pixels");
+        }
+        rowsPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / ((long) w * 4));
+        chunks = new IntBuffer[(h + rowsPerChunk - 1) / rowsPerChunk];
+        mapped = new MappedByteBuffer[chunks.length];
+    }
+
+    /**
+     * Cree (ou ecrase) un fichier de w x h pixels
+     */
+    public static MappedArgbFile create(final File f, final int w, final int h) throws IOException {
+        return new MappedArgbFile(f, w, h, true);
+    }
+
+    /**
+     * Ouvre un fichier existant en lecture seule
+     */
+    public static MappedArgbFile open(final File f, final int w, final int h) throws IOException {
+        return new MappedArgbFile(f, w, h, false);
+    }
+
+    private synchronized IntBuffer chunk(final int index) {
+        if (chunks[index] == null) {
+            final int y0 = index * rowsPerChunk;
+            final int rows = Math.min(rowsPerChunk, h - y0);
+            try {
+                mapped[index] = file.getChannel().map(mode, (long) y0 * w * 4, (long) rows * w * 4);
+                chunks[index] = mapped[index].order(ByteOrder.nativeOrder()).asIntBuffer();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot map rows " + y0 + ".." + (y0 + rows), e);
+            }
+        }
+        return chunks[index];
+    }
+
+    private IntBuffer row(final int y, final int x, final int n) {
+        // Vue propre a l'appel : les positions des blocs partages ne bougent pas
+        final IntBuffer view = chunk(y / rowsPerChunk).duplicate();
+        final int pos = (y % rowsPerChunk) * w + x;
+        view.limit(pos + n).position(pos);
+        return view;
+    }
+
+    @Override
+    public int getWidth() {
+        return w;
+    }
+
+    @Override
+    public int getHeight() {
+        return h;
+    }
+
+    @Override
+    public void readRow(final int y, final int x, final int n, final IntBuffer dst) {
+        dst.put(row(y, x, n));
+    }
+
+    @Override
+    public void writeRow(final int y, final int x, final int n, final IntBuffer src) {
+        final IntBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        row(y, x, n).put(part);
+        src.position(src.position() + n);
+    }
+
+    public int getRGB(final int x, final int y) {
+        return row(y, x, 1).get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mode == FileChannel.MapMode.READ_WRITE) {
+            for (MappedByteBuffer m : mapped) {
+                if (m != null) {
+                    m.force();
+                }
+            }
+        }
+        file.close();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import org.jocl.cl_event;
+import org.jocl.cl_mem;
+
+/**
+ * Image ARGB dont les pixels sont ceux d'un ocl_image mappe en memoire
+ * (clEnqueueMapImage) : Java2D lit directement la memoire du device, sans
+ * allocation ni copie. Sur un device CPU (ou GPU integre) avec
+ * CL_MEM_ALLOC_HOST_PTR il n'y a aucune copie du tout.
+ *
+ * L'image est mappee en lecture (CL_MAP_READ) : elle ne peut pas etre
+ * modifiee, et n'est valide que jusqu'a l'appel de close() (unmap). Sur une
+ * queue out-of-order, close(event) met l'unmap dans la chaine d'evenements
+ * des commandes suivantes sur l'image.
+ *
+ * @author durands
+ */
+public class MappedPicture implements AutoCloseable {
+
+    /**
+     * DataBuffer entier (TYPE_INT) en lecture seule sur un IntBuffer direct
+     */
+    static class DataBufferMapped extends DataBuffer {
+
+        private final IntBuffer data;
+
+        DataBufferMapped(final IntBuffer data, final int size) {
+            super(DataBuffer.TYPE_INT, size);
+            this.data = data;
+        }
+
+        @Override
+        public int getElem(final int bank, final int i) {
+            return data.get(i);
+        }
+
+        @Override
+        public void setElem(final int bank, final int i, final int val) {
+            // Ecrire dans un mapping CL_MAP_READ n'est pas defini par OpenCL
+            throw new UnsupportedOperationException("Mapped picture is read-only");
+        }
+    }
+
+    private final cl_mem mem;
+    private ByteBuffer mapped;
+    private final BufferedImage image;
+
+    MappedPicture(final cl_mem mem, final ByteBuffer mapped, final int w, final int h, final long row_pitch) {
+        this.mem = mem;
+        this.mapped = mapped;
+        final int scanlineStride = (int) (row_pitch / 4);
+        final IntBuffer pixels = mapped.order(ByteOrder.nativeOrder()).asIntBuffer();
+        final DataBufferMapped dataBuffer = new DataBufferMapped(pixels, scanlineStride * h);
+        // Meme organisation que TYPE_INT_ARGB
+        final ColorModel cm = ColorModel.getRGBdefault();
+        final SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, w, h, scanlineStride,
+                new int[]{0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000});
+        final WritableRaster raster = Raster.createWritableRaster(sm, dataBuffer, null);
+        image = new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * L'image Java2D sur la memoire mappee
+     *
+     * @return
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * La memoire mappee brute (B,G,R,A par pixel)
+     *
+     * @return
+     */
+    public ByteBuffer getBuffer() {
+        return mapped;
+    }
+
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Rend la memoire au device (clEnqueueUnmapMemObject). L'image ne doit
+     * plus etre utilisee ensuite.
+     */
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Rend la memoire au device, l'unmap etant mis dans la chaine d'evenements
+     *
+     * @param event chaine d'evenements (peut etre null)
+     * @return false en cas d'erreur
+     */
+    public boolean close(final cl_event[][] event) {
+        if (mapped == null) {
+            return true;
+        }
+        final ByteBuffer buffer = mapped;
+        mapped = null;
+        return OpenCLBase.unmap(mem, buffer, event);
+    }
+}
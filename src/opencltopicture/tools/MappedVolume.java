@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.cl_event;
+
+/**
+ * Volume brut (x puis y puis z, ordre natif) projete en memoire, pour les
+ * volumes plus gros que le heap Java ou que la memoire du device.
+ *
+ * Le fichier est mappe par blocs de tranches (un MappedByteBuffer est limite
+ * a 2 Go) et chaque tranche est passee directement a clEnqueueWriteImage /
+ * clEnqueueReadImage, sans copie dans un tableau Java. Le format d'un element
+ * est celui d'une image OpenCL (channel order et data type).
+ *
+ * @author durands
+ */
+public class MappedVolume implements Closeable {
+
+    // Taille max d'un bloc mappe
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final int w, h, d;
+    private final int channelOrder, dataType;
+    private final int elementSize;
+    private final long sliceBytes;
+    private final int slicesPerChunk;
+    private final MappedByteBuffer[] chunks;
+    private final FileChannel.MapMode mode;
+
+    private MappedVolume(final File f, final int w, final int h, final int d, final int channelOrder, final int dataType, final boolean writable) throws IOException {
+        this.w = w;
+        this.h = h;
+        this.d = d;
+        this.channelOrder = channelOrder;
+        this.dataType = dataType;
+        this.elementSize = Images2D.elementSizeOf(channelOrder, dataType);
+        if (elementSize == 0) {
+            throw new IllegalArgumentException("Unsupported element format: " + CL.stringFor_cl_channel_order(channelOrder)
+                    + " / " + CL.stringFor_cl_channel_type(dataType));
+        }
+        sliceBytes = (long) w * h * elementSize;
+        if (sliceBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Slice of " + w + "x" + h + " too large to be mapped");
+        }
+        this.file = new RandomAccessFile(f, writable ? "rw" : "r");
+        this.mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        if (writable) {
+            file.setLength(sliceBytes * d);
+        } else if (file.length() < sliceBytes * d) {
+            file.close();
+            throw new IOException(f + " is too small for a " + w + "x" + h + "x" + d + " volume");
+        }
+        slicesPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / sliceBytes);
+        chunks = new MappedByteBuffer[(d + slicesPerChunk - 1) / slicesPerChunk];
+    }
+
+    /**
+     * Cree (ou ecrase) un volume de w x h x d elements
+     */
+    public static MappedVolume create(final File f, final int w, final int h, final int d, final int channelOrder, final int dataType) throws IOException {
+        return new MappedVolume(f, w, h, d, channelOrder, dataType, true);
+    }
+
+    /**
+     * Ouvre un volume existant en lecture seule
+     */
+    public static MappedVolume open(final File f, final int w, final int h, final int d, final int channelOrder, final int dataType) throws IOException {
+        return new MappedVolume(f, w, h, d, channelOrder, dataType, false);
+    }
+
+    private synchronized MappedByteBuffer chunk(final int index) {
+        if (chunks[index] == null) {
+            final int z0 = index * slicesPerChunk;
+            final int n = Math.min(slicesPerChunk, d - z0);
+            try {
+                chunks[index] = file.getChannel().map(mode, z0 * sliceBytes, n * sliceBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot map slices " + z0 + ".." + (z0 + n), e);
+            }
+        }
+        return chunks[index];
+    }
+
+    /**
+     * @param z
+     * @return la tranche z (vue propre a l'appel, en ordre natif)
+     */
+    public ByteBuffer slice(final int z) {
+        final ByteBuffer view = chunk(z / slicesPerChunk).duplicate();
+        final int pos = (int) ((z % slicesPerChunk) * sliceBytes);
+        view.limit(pos + (int) sliceBytes).position(pos);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Ecrit la tranche z dans la tranche zImg d'une image 3D (non bloquant :
+     * la projection reste valide jusqu'a close())
+     *
+     * @param z
+     * @param img image 3D de meme largeur et hauteur
+     * @param zImg
+     * @param event evenement de fin de copie (peut etre null)
+     * @return code d'erreur OpenCL
+     */
+    public int writeSlice(final int z, final ocl_image img, final int zImg, final cl_event event) {
+        return OpenCLBase.clEnqueueWriteImage(img.getMem(), false, new long[]{0, 0, zImg}, new long[]{w, h, 1},
+                (long) w * elementSize, 0, Pointer.to(slice(z)), 0, null, event);
+    }
+
+    /**
+     * Lit la tranche zImg d'une image 3D dans la tranche z (non bloquant)
+     *
+     * @param img
+     * @param zImg
+     * @param z
+     * @param waitList evenements a attendre (peut etre null)
+     * @param event evenement de fin de copie (peut etre null)
+     * @return code d'erreur OpenCL
+     */
+    public int readSlice(final ocl_image img, final int zImg, final int z, final cl_event[] waitList, final cl_event event) {
+        return OpenCLBase.clEnqueueReadImage(img.getMem(), false, new long[]{0, 0, zImg}, new long[]{w, h, 1},
+                (long) w * elementSize, 0, Pointer.to(slice(z)), waitList == null ? 0 : waitList.length, waitList, event);
+    }
+
+    /**
+     * Copie tout le volume dans une image 3D du device, tranche par tranche
+     * (pour les volumes qui tiennent dans la memoire du device)
+     *
+     * @param flags
+     * @return null sans device OpenCL
+     */
+    public ocl_image toImage(final long flags) {
+        final ocl_image img = ocl_image.create3D(flags, channelOrder, dataType, w, h, d);
+        if (img == null || img.getMem() == null) {
+            return null;
+        }
+        for (int z = 0; z < d; z++) {
+            if (OpenCLBase.checkError(writeSlice(z, img, z, null))) {
+                img.release();
+                return null;
+            }
+        }
+        OpenCLBase.finish();
+        return img;
+    }
+
+    public int getWidth() {
+        return w;
+    }
+
+    public int getHeight() {
+        return h;
+    }
+
+    public int getDepth() {
+        return d;
+    }
+
+    public int getChannelOrder() {
+        return channelOrder;
+    }
+
+    public int getDataType() {
+        return dataType;
+    }
+
+    public long getSliceBytes() {
+        return sliceBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mode == FileChannel.MapMode.READ_WRITE) {
+            for (MappedByteBuffer m : chunks) {
+                if (m != null) {
+                    m.force();
+                }
+            }
+        }
+        file.close();
+    }
+}
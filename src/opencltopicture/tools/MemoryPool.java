@@ -0,0 +1,231 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.cl_event;
+import org.jocl.cl_mem;
+
+/**
+ * Pool des cl_mem liberes par ocl_image et ocl_buffer.
+ *
+ * Au lieu d'un clReleaseMemObject, release() rend la memoire au pool ; la
+ * prochaine creation d'une image (ou d'un buffer) de meme format, memes flags
+ * et memes dimensions la reutilise sans passer par clCreateImage. Le pool est
+ * limite a un budget en octets, les objets les plus anciens etant liberes en
+ * premier (LRU).
+ *
+ * Desactive par defaut (budget 0). Le budget peut etre donne par la propriete
+ * systeme "opencltopicture.mempool.bytes" ou par setBudget(). Seules les
+ * allocations sans donnees initiales (images et buffers de sortie) passent par
+ * le pool : le contenu d'un objet recycle est indefini.
+ *
+ * Avec une queue out-of-order, des commandes peuvent encore utiliser l'objet
+ * rendu : un marqueur est alors mis dans la queue au recyclage, et attendu
+ * avant de redonner l'objet.
+ *
+ * @author durands
+ */
+public class MemoryPool {
+
+    private static class Entry {
+
+        final String key;
+        final cl_mem mem;
+        final long bytes;
+        // Marqueur des commandes soumises avant le recyclage (queue out-of-order), ou null
+        final cl_event pending;
+
+        Entry(String key, cl_mem mem, long bytes, cl_event pending) {
+            this.key = key;
+            this.mem = mem;
+            this.bytes = bytes;
+            this.pending = pending;
+        }
+    }
+
+    private static long budget = Long.getLong("opencltopicture.mempool.bytes", 0L);
+    private static long pooledBytes = 0;
+
+    // Objets disponibles par cle
+    private static final Map<String, ArrayDeque<Entry>> free = new HashMap<>();
+    // Tous les objets disponibles, du plus ancien au plus recent (pour l'eviction LRU)
+    private static final LinkedHashMap<Entry, Boolean> lru = new LinkedHashMap<>();
+
+    private static long hits, misses, evictions;
+
+    static String imageKey(final long flags, final int channel_order, final int data_type, final long w, final long h, final long d) {
+        return "img:" + flags + ":" + channel_order + ":" + data_type + ":" + w + "x" + h + "x" + d;
+    }
+
+    static String bufferKey(final long flags, final long size) {
+        return "buf:" + flags + ":" + size;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Taille maximum (en octets) de la memoire gardee en reserve. 0 desactive
+     * le pool et libere tout ce qu'il contient.
+     *
+     * @param bytes
+     */
+    public static synchronized void setBudget(final long bytes) {
+        budget = Math.max(0, bytes);
+        evict();
+    }
+
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Reprend un objet du pool
+     *
+     * @param key
+     * @return null si aucun objet compatible n'est disponible
+     */
+    static cl_mem acquire(final String key) {
+        final Entry entry = take(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.pending != null) {
+            // Hors du verrou : seules les commandes deja soumises sont attendues
+            try {
+                CL.clWaitForEvents(1, new cl_event[]{entry.pending});
+            } finally {
+                CL.clReleaseEvent(entry.pending);
+            }
+        }
+        return entry.mem;
+    }
+
+    private static synchronized Entry take(final String key) {
+        if (budget <= 0) {
+            return null;
+        }
+        final ArrayDeque<Entry> entries = free.get(key);
+        final Entry entry = entries == null ? null : entries.pollLast();
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entries.isEmpty()) {
+            free.remove(key);
+        }
+        lru.remove(entry);
+        pooledBytes -= entry.bytes;
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Rend un objet au pool
+     *
+     * @param key
+     * @param mem
+     * @param bytes taille de l'objet
+     * @return false si le pool n'en veut pas (l'appelant doit alors le
+     * liberer)
+     */
+    static synchronized boolean recycle(final String key, final cl_mem mem, final long bytes) {
+        if (budget <= 0 || bytes > budget || mem == null) {
+            return false;
+        }
+        final Entry entry = new Entry(key, mem, bytes, OpenCLBase.isOutOfOrder() ? OpenCLBase.enqueueMarker() : null);
+        free.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(entry);
+        lru.put(entry, Boolean.TRUE);
+        pooledBytes += bytes;
+        evict();
+        return true;
+    }
+
+    private static void evict() {
+        final Iterator<Entry> it = lru.keySet().iterator();
+        while (pooledBytes > budget && it.hasNext()) {
+            final Entry entry = it.next();
+            it.remove();
+            final ArrayDeque<Entry> entries = free.get(entry.key);
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                free.remove(entry.key);
+            }
+            pooledBytes -= entry.bytes;
+            evictions++;
+            release(entry);
+        }
+    }
+
+    /**
+     * L'objet n'est detruit par OpenCL qu'a la fin des commandes qui
+     * l'utilisent : pas besoin d'attendre le marqueur
+     */
+    private static void release(final Entry entry) {
+        try {
+            CL.clReleaseMemObject(entry.mem);
+            if (entry.pending != null) {
+                CL.clReleaseEvent(entry.pending);
+            }
+        } catch (CLException e) {
+            // Release deja effectue
+        }
+    }
+
+    /**
+     * Libere tout le contenu du pool
+     */
+    public static synchronized void clear() {
+        for (Entry entry : lru.keySet()) {
+            release(entry);
+        }
+        lru.clear();
+        free.clear();
+        pooledBytes = 0;
+    }
+
+    public static synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public static synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public static synchronized String getSummary() {
+        return String.format("memory pool: %d hit(s), %d miss(es) (%.1f%%), %d eviction(s), %d/%d bytes",
+                hits, misses, 100. * getHitRate(), evictions, pooledBytes, budget);
+    }
+
+    public static synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    private MemoryPool() {
+    }
+}
@@ -6,6 +6,7 @@
 package opencltopicture.tools;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
@@ -13,8 +14,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.Charsets;
@@ -46,11 +58,23 @@ public class OpenCLBase {
 
     public final static int SINGLE_CHANNEL_ORDER = CL.CL_LUMINANCE; //CL_A; //LUMINANCE;
 
+    // Options ajoutees a chaque compilation (-cl-kernel-arg-info pour KernelInvocation)
+    private static final String BUILD_OPTIONS = /*" -cl-nv-verbose*/ " -cl-mad-enable -cl-fast-relaxed-math -cl-kernel-arg-info";
+
     private static cl_command_queue command_queue;
     private static cl_context context;
+    private static cl_device_id device_id;
+    private static volatile boolean initialized = false;
+
+    // Queue out-of-order : l'ordre n'est donne que par les evenements (voir isOutOfOrder)
+    private static final boolean OUT_OF_ORDER = Boolean.getBoolean("opencltopicture.queue.outoforder");
+    private static boolean outOfOrder = false;
 
-    // Lite des kernels chargés
-    protected static Map<String, cl_kernel> mapKernels = new HashMap<>();
+    // Lite des kernels chargés (instance partagee, voir KernelPool pour les appels concurrents)
+    protected static Map<String, cl_kernel> mapKernels = new ConcurrentHashMap<>();
+    // Instances partagees remplacees par une recompilation, encore tenues par
+    // les appelants de getKernel() : liberees par releaseAll()
+    private static final List<cl_kernel> retiredKernels = new ArrayList<>();
 
     // Indique si OpenCL est displonible sur la machine 
     private static final boolean IS_OPENCL_AVAILABLE = initIsOpenCLAvailable();
@@ -95,23 +119,39 @@ public class OpenCLBase {
     }
 
     private static cl_program buildProgramFromBinary(final byte[] source, final String options) {
+        return buildProgramFromBinary(context, device_id, source, options);
+    }
+
+    private static cl_program buildProgramFromBinary(final cl_context context, final cl_device_id device_id, final byte[] source, final String options) {
         if (source == null) {
             return null;
         }
         int err = 0;
         int[] binary_status = {0};
-        OpenCLDeviceQuery.Device device = getBestDevice();
-        cl_program program = CL.clCreateProgramWithBinary(context, 1, new cl_device_id[]{device.device_id}, new long[]{source.length}, new byte[][]{source}, binary_status, new int[]{err});
+        cl_program program;
+        try {
+            program = CL.clCreateProgramWithBinary(context, 1, new cl_device_id[]{device_id}, new long[]{source.length}, new byte[][]{source}, binary_status, new int[]{err});
+            if (checkError(binary_status[0])) {
+                CL.clReleaseProgram(program);
+                return null;
+            }
+        } catch (CLException e) {
+            // Binaire rejete par le driver (autre version, autre device...)
+            LOGGER.warning(e.getMessage());
+            return null;
+        }
         try {
-            err = CL.clBuildProgram(program, 0, null, (options == null ? "" : options) + /*" -cl-nv-verbose*/ " -cl-mad-enable -cl-fast-relaxed-math", null, new int[]{err});
+            err = CL.clBuildProgram(program, 0, null, (options == null ? "" : options) + BUILD_OPTIONS, null, new int[]{err});
             if (err == CL.CL_BUILD_PROGRAM_FAILURE) {
                 LOGGER.warning(OpenCLBase.getErrorMessage(program));
             }
             if (checkError(err)) {
+                CL.clReleaseProgram(program);
                 return null;
             }
         } catch (CLException e) {
             LOGGER.severe(e.getMessage());
+            CL.clReleaseProgram(program);
             return null;
         }
         return program;
@@ -127,17 +167,77 @@ public class OpenCLBase {
         return new String(buffer, 0, buffer.length - 1);
     }
 
+    /**
+     * Compile le source en passant par le cache disque des binaires
+     * (voir ProgramCache). Si l'entree est absente ou rejetee par le driver on
+     * recompile depuis le source et on memorise le nouveau binaire.
+     *
+     * @param source
+     * @param options
+     * @return
+     */
     private static cl_program buildProgramFromSource(final String source, final String options) {
+        return buildProgramFromSource(context, device_id, source, options);
+    }
+
+    /**
+     * Meme chose que buildProgramFromSource() mais pour un autre contexte
+     * que celui de OpenCLBase (voir DevicePool)
+     *
+     * @param context
+     * @param device_id
+     * @param source
+     * @param options
+     * @return
+     */
+    static cl_program buildProgramFromSource(final cl_context context, final cl_device_id device_id, final String source, final String options) {
         if (source == null) {
             return null;
         }
+        final cl_program program = buildCachedProgram(context, device_id, source, options);
+        // Kernels qui supportent une taille globale arrondie (voir WorkGroupTuner)
+        WorkGroupTuner.register(program, WorkGroupTuner.scanSource(source));
+        return program;
+    }
+
+    private static cl_program buildCachedProgram(final cl_context context, final cl_device_id device_id, final String source, final String options) {
+        if (!ProgramCache.isEnabled() || device_id == null) {
+            return compileProgramFromSource(context, source, options);
+        }
+        final String key = ProgramCache.key(source, (options == null ? "" : options) + BUILD_OPTIONS, getDeviceIdentity(device_id));
+        final ProgramCache.Entry entry = ProgramCache.load(key);
+        if (entry != null) {
+            final long t0 = System.nanoTime();
+            final cl_program program = buildProgramFromBinary(context, device_id, entry.binary, options);
+            if (program != null) {
+                // Le binaire n'a plus les infos de -cl-kernel-arg-info
+                KernelInvocation.registerArgInfo(entry.argInfo);
+                ProgramCache.recordHit(System.nanoTime() - t0, entry.compileNanos);
+                return program;
+            }
+            ProgramCache.invalidate(key);
+        }
+        final long t0 = System.nanoTime();
+        final cl_program program = compileProgramFromSource(context, source, options);
+        if (program != null) {
+            final long nanos = System.nanoTime() - t0;
+            ProgramCache.recordMiss(nanos);
+            final byte[][] binaries = getBinaryDatas(1, program);
+            if (binaries != null) {
+                ProgramCache.store(key, binaries[0], KernelInvocation.encodeArgInfo(program), nanos);
+            }
+        }
+        return program;
+    }
+
+    private static cl_program compileProgramFromSource(final cl_context context, final String source, final String options) {
         int err = 0;
         // Create OpenCL program with source code
         cl_program program = CL.clCreateProgramWithSource(context, 1, new String[]{source}, null, new int[]{err});
         try {
             // Build the program (OpenCL JIT compilation)
             //   "-D "
-            err = CL.clBuildProgram(program, 0, null, (options == null ? "" : options) + /*" -cl-nv-verbose*/ " -cl-mad-enable -cl-fast-relaxed-math", null, new int[]{err});
+            err = CL.clBuildProgram(program, 0, null, (options == null ? "" : options) + BUILD_OPTIONS, null, new int[]{err});
             if (err == CL.CL_BUILD_PROGRAM_FAILURE) {
                 LOGGER.warning(OpenCLBase.getErrorMessage(program));
             }
@@ -151,16 +251,23 @@ public class OpenCLBase {
         return program;
     }
 
+    /**
+     * Duree d'execution d'une commande terminee. Necessite le profilage
+     * (voir Profiler), sinon retourne 0.
+     *
+     * @param event
+     * @return
+     */
     protected static double elapsedTimeInSeconds(cl_event event) {
-        int err;
-        long[] start = {0};
-        long[] end = {0};
-        double t = 0;
-        //    err = CL.clGetEventProfilingInfo(event, CL.CL_PROFILING_COMMAND_START, Sizeof.cl_ulong, Pointer.to(start), null);
-        //    err = CL.clGetEventProfilingInfo(event, CL.CL_PROFILING_COMMAND_END, Sizeof.cl_ulong, Pointer.to(start), null);
-        // end & start are in nanoseconds
-        t = ((double) end[0] - (double) start[0]) * (1.0e-9);
-        return t;
+        try {
+            // end & start are in nanoseconds
+            final long start = Profiler.getTime(event, CL.CL_PROFILING_COMMAND_START);
+            final long end = Profiler.getTime(event, CL.CL_PROFILING_COMMAND_END);
+            return ((double) end - (double) start) * (1.0e-9);
+        } catch (CLException e) {
+            // Queue sans CL_QUEUE_PROFILING_ENABLE
+            return 0;
+        }
     }
 
     public static void query_picture(ocl_image clTextureOutput, cl_event[] event, BufferedImage imgOut) {
@@ -168,6 +275,111 @@ public class OpenCLBase {
         query_int(clTextureOutput, event, imgPixels);
     }
 
+    /**
+     * Relit seulement les zones modifiees d'une image RGBA dans imgOut (meme
+     * taille, TYPE_INT_ARGB), directement a leur place dans le raster
+     *
+     * @param img
+     * @param event evenements a attendre
+     * @param imgOut
+     * @param dirty zones a relire
+     * @return true en cas d'erreur, comme query_int()
+     */
+    public static boolean query_picture(final ocl_image img, final cl_event[] event, final BufferedImage imgOut, final DirtyRegion dirty) {
+        final int[] imgPixels = ((DataBufferInt) imgOut.getRaster().getDataBuffer()).getData();
+        final long fullBytes = (long) img.w * img.h * Sizeof.cl_uint;
+        for (Rectangle r : dirty.getRectangles()) {
+            if (img.hostPixels != null) {
+                for (int y = r.y; y < r.y + r.height; y++) {
+                    System.arraycopy(img.hostPixels, y * img.w + r.x, imgPixels, y * img.w + r.x, r.width);
+                }
+            } else {
+                final int err = clEnqueueReadImage(img.mem, true, new long[]{r.x, r.y, 0}, new long[]{r.width, r.height, 1}, img.w * Sizeof.cl_uint, 0,
+                        Pointer.to(imgPixels).withByteOffset(((long) r.y * img.w + r.x) * Sizeof.cl_uint), event == null ? 0 : event.length, event, null);
+                if (checkError(err)) {
+                    return true;
+                }
+            }
+            dirty.countDownload((long) r.width * r.height * Sizeof.cl_uint, fullBytes);
+        }
+        return false;
+    }
+
+    /**
+     * Mappe une image RGBA du device pour la lire sans copie (voir
+     * ocl_image.create2DMappedOutputPicture). La MappedPicture doit etre
+     * fermee avant de relancer un kernel sur l'image.
+     *
+     * @param img
+     * @param event evenements a attendre
+     * @return null si l'image n'est pas sur le device
+     */
+    public static MappedPicture map_picture(final ocl_image img, final cl_event[] event) {
+        if (img.mem == null) {
+            return null;
+        }
+        final long[] row_pitch = {0};
+        final int[] err = {0};
+        final ByteBuffer mapped = CL.clEnqueueMapImage(command_queue, img.mem, true, CL.CL_MAP_READ, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1},
+                row_pitch, null, event == null ? 0 : event.length, event, null, err);
+        if (checkError(err[0])) {
+            return null;
+        }
+        return new MappedPicture(img.mem, mapped, img.w, img.h, row_pitch[0]);
+    }
+
+    /**
+     * Mappe un buffer du device en lecture. A rendre avec unmap()
+     *
+     * @param buff
+     * @param size taille en octets
+     * @param event evenements a attendre
+     * @return
+     */
+    public static ByteBuffer map_buffer(final ocl_buffer buff, final long size, final cl_event[] event) {
+        final int[] err = {0};
+        final ByteBuffer mapped = CL.clEnqueueMapBuffer(command_queue, buff.mem, true, CL.CL_MAP_READ, 0, size,
+                event == null ? 0 : event.length, event, null, err);
+        if (checkError(err[0])) {
+            return null;
+        }
+        return mapped.order(ByteOrder.nativeOrder());
+    }
+
+    public static void unmap(final cl_mem mem, final ByteBuffer mapped) {
+        CL.clEnqueueUnmapMemObject(command_queue, mem, mapped, 0, null, null);
+    }
+
+    /**
+     * Unmap mis dans une chaine d'evenements : sur une queue out-of-order, les
+     * commandes suivantes de la chaine attendent que la memoire soit rendue
+     *
+     * @param mem
+     * @param mapped
+     * @param event chaine d'evenements (peut etre null)
+     * @return false en cas d'erreur
+     */
+    public static boolean unmap(final cl_mem mem, final ByteBuffer mapped, final cl_event[][] event) {
+        if (event == null) {
+            unmap(mem, mapped);
+            return true;
+        }
+        final cl_event evt = new cl_event();
+        final int err = CL.clEnqueueUnmapMemObject(command_queue, mem, mapped, event[0] == null ? 0 : event[0].length, event[0], evt);
+        if (checkError(err)) {
+            return false;
+        }
+        EventManager.replace(event, EventManager.track(evt));
+        return true;
+    }
+
+    /**
+     * Instance partagee du kernel, valable jusqu'a releaseAll() meme si le
+     * kernel est recompile. Pour des appels concurrents voir KernelPool.
+     *
+     * @param kernelName
+     * @return null si le kernel n'est pas charge
+     */
     public static cl_kernel getKernel(String kernelName) {
         return mapKernels.get(kernelName);
     }
@@ -176,6 +388,20 @@ public class OpenCLBase {
         for (cl_kernel kernel : mapKernels.values()) {
             CL.clReleaseKernel(kernel);
         }
+        mapKernels.clear();
+        synchronized (retiredKernels) {
+            for (cl_kernel kernel : retiredKernels) {
+                CL.clReleaseKernel(kernel);
+            }
+            retiredKernels.clear();
+        }
+        KernelLibrary.reset();
+        Reductions.reset();
+        Convolution.reset();
+        PointwiseFusion.reset();
+        KernelPool.releaseAll();
+        MemoryPool.clear();
+        EventManager.releaseAll();
         CL.clReleaseCommandQueue(command_queue);
         CL.clReleaseContext(context);
     }
@@ -183,37 +409,82 @@ public class OpenCLBase {
     public static byte[] query_byte(final ocl_buffer buff, final cl_event[] event) {
         int err = CL.CL_SUCCESS;
         byte[] data = new byte[buff.w];
-        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_char, Pointer.to(data), event == null ? 0 : event.length, event, null);
+        final cl_event evt = Profiler.event();
+        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_char, Pointer.to(data), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_BUFFER, evt);
         return data;
     }
 
     public static float[] query_float(ocl_buffer buff, cl_event[] event) {
         int err = CL.CL_SUCCESS;
         float[] data = new float[buff.w];
-        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_float, Pointer.to(data), event == null ? 0 : event.length, event, null);
+        final cl_event evt = Profiler.event();
+        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_float, Pointer.to(data), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_BUFFER, evt);
         return data;
     }
 
     public static float[] query_float(ocl_buffer buff, float[] data, cl_event[] event) {
         int err = CL.CL_SUCCESS;
-        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_float, Pointer.to(data), event == null ? 0 : event.length, event, null);
+        final cl_event evt = Profiler.event();
+        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_float, Pointer.to(data), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_BUFFER, evt);
         return data;
     }
 
     public static int[] query_int(ocl_buffer buff, cl_event[] event) {
         int err = CL.CL_SUCCESS;
         int[] data = new int[buff.w];
-        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_int, Pointer.to(data), event == null ? 0 : event.length, event, null);
+        final cl_event evt = Profiler.event();
+        err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, buff.w * Sizeof.cl_int, Pointer.to(data), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_BUFFER, evt);
         return data;
     }
 
+    /**
+     * Relit un buffer de half (voir ocl_buffer.create1DHalfInput) en float
+     */
+    public static float[] query_half(final ocl_buffer buff, final cl_event[] event) {
+        final short[] halves = new short[buff.w];
+        final cl_event evt = Profiler.event();
+        final int err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, (long) buff.w * Sizeof.cl_half, Pointer.to(halves), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_BUFFER, evt);
+        if (checkError(err)) {
+            return null;
+        }
+        return HalfFloat.toFloat(halves, null);
+    }
+
+    /**
+     * Relit une image CL_HALF_FLOAT en float (w x h x nombre de canaux)
+     */
+    public static float[] query_half(final ocl_image img, final cl_event[] event) {
+        final int channels = Images2D.channelCountOf(img.image_format.image_channel_order);
+        final short[] halves = new short[img.w * img.h * channels];
+        final int err = clEnqueueReadImage(img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, (long) img.w * channels * Sizeof.cl_half, 0,
+                Pointer.to(halves), event == null ? 0 : event.length, event, null);
+        if (checkError(err)) {
+            return null;
+        }
+        return HalfFloat.toFloat(halves, null);
+    }
+
     public static int clEnqueueReadImage(cl_mem image, boolean blocking_read, long[] origin, long[] region, long row_pitch, long slice_pitch, Pointer ptr, int num_events_in_wait_list, cl_event[] event_wait_list, cl_event event) {
-        return CL.clEnqueueReadImage(command_queue, image, blocking_read, origin, region, row_pitch, slice_pitch, ptr, num_events_in_wait_list, event_wait_list, event);
+        final cl_event evt = event != null ? event : Profiler.event();
+        final int err = CL.clEnqueueReadImage(command_queue, image, blocking_read, origin, region, row_pitch, slice_pitch, ptr, num_events_in_wait_list, event_wait_list, evt);
+        if (evt == event) {
+            Profiler.record(Profiler.READ_IMAGE, evt);
+        } else {
+            Profiler.done(Profiler.READ_IMAGE, evt);
+        }
+        return err;
     }
 
     public static float[] query_float(ocl_image img, cl_event[] event) {
         float[] data = new float[img.w * img.h];
-        int result = CL.clEnqueueReadImage(command_queue, img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w, 0, Pointer.to(data), event == null ? 0 : event.length, event, null);
+        final cl_event evt = Profiler.event();
+        int result = CL.clEnqueueReadImage(command_queue, img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w, 0, Pointer.to(data), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_IMAGE, evt);
         if (checkError(result)) {
             return null;
         }
@@ -222,7 +493,9 @@ public class OpenCLBase {
 
     public static float[] query_float4(final ocl_image img, final cl_event[] event) {
         float[] data = new float[img.w * img.h * 4];
-        int result = CL.clEnqueueReadImage(command_queue, img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w * Sizeof.cl_float4, 0, Pointer.to(data), event == null ? 0 : event.length, event, null);
+        final cl_event evt = Profiler.event();
+        int result = CL.clEnqueueReadImage(command_queue, img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w * Sizeof.cl_float4, 0, Pointer.to(data), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_IMAGE, evt);
         if (checkError(result)) {
             return null;
         }
@@ -230,30 +503,288 @@ public class OpenCLBase {
     }
 
     public static boolean query_int(final ocl_image img, final cl_event[] event, final int[] buffer) {
-        int result = CL.clEnqueueReadImage(command_queue, img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w * Sizeof.cl_uint, 0, Pointer.to(buffer), event != null ? event.length : 0, event, null);
+        if (img.hostPixels != null) {
+            System.arraycopy(img.hostPixels, 0, buffer, 0, img.hostPixels.length);
+            return false;
+        }
+        final cl_event evt = Profiler.event();
+        int result = CL.clEnqueueReadImage(command_queue, img.mem, true, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w * Sizeof.cl_uint, 0, Pointer.to(buffer), event != null ? event.length : 0, event, evt);
+        Profiler.done(Profiler.READ_IMAGE, evt);
         return checkError(result);
     }
 
+    // -------------------------------------------------------------------------
+    //          Relectures asynchrones (completees par clSetEventCallback)
+    // -------------------------------------------------------------------------
+    // Threads qui completent les futures des relectures asynchrones
+    private static final Executor ASYNC_EXECUTOR = ForkJoinPool.commonPool();
+
+    /**
+     * Complete le future quand l'evenement est termine. Le callback du driver
+     * ne fait que passer la main a ASYNC_EXECUTOR : la conversion et les
+     * etapes enchainees sur le future (thenApply...) ne bloquent pas le thread
+     * du driver et peuvent appeler OpenCL.
+     */
+    private static <T> CompletableFuture<T> completeOn(final cl_event evt, final Supplier<T> result) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        CL.clFlush(command_queue);
+        CL.clSetEventCallback(evt, CL.CL_COMPLETE, (cl_event e, int status, Object data) -> {
+            try {
+                if (status < 0) {
+                    ASYNC_EXECUTOR.execute(() -> future.completeExceptionally(new CLException(CL.stringFor_errorCode(status), status)));
+                } else {
+                    future.completeAsync(result, ASYNC_EXECUTOR);
+                }
+            } finally {
+                CL.clReleaseEvent(e);
+            }
+        }, null);
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> failed(final int err) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new CLException(CL.stringFor_errorCode(err), err));
+        return future;
+    }
+
+    /**
+     * Version non bloquante de query_float(ocl_buffer, cl_event[])
+     *
+     * @param buff
+     * @param event evenements a attendre (typiquement event[0] de
+     * runWithArgs)
+     * @return
+     */
+    public static CompletableFuture<float[]> query_float_async(final ocl_buffer buff, final cl_event[] event) {
+        // Les lectures non bloquantes doivent se faire dans un buffer direct
+        final ByteBuffer staging = ByteBuffer.allocateDirect(buff.w * Sizeof.cl_float).order(ByteOrder.nativeOrder());
+        final cl_event evt = new cl_event();
+        int err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_FALSE, 0, buff.w * Sizeof.cl_float, Pointer.to(staging), event == null ? 0 : event.length, event, evt);
+        if (checkError(err)) {
+            return failed(err);
+        }
+        Profiler.record(Profiler.READ_BUFFER, evt);
+        return completeOn(evt, () -> {
+            final float[] data = new float[buff.w];
+            staging.asFloatBuffer().get(data);
+            return data;
+        });
+    }
+
+    public static CompletableFuture<float[]> query_float_async(final ocl_buffer buff, final cl_event[][] event) {
+        return query_float_async(buff, event == null ? null : event[0]);
+    }
+
+    /**
+     * Version non bloquante de query_int(ocl_buffer, cl_event[])
+     *
+     * @param buff
+     * @param event
+     * @return
+     */
+    public static CompletableFuture<int[]> query_int_async(final ocl_buffer buff, final cl_event[] event) {
+        final ByteBuffer staging = ByteBuffer.allocateDirect(buff.w * Sizeof.cl_int).order(ByteOrder.nativeOrder());
+        final cl_event evt = new cl_event();
+        int err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_FALSE, 0, buff.w * Sizeof.cl_int, Pointer.to(staging), event == null ? 0 : event.length, event, evt);
+        if (checkError(err)) {
+            return failed(err);
+        }
+        Profiler.record(Profiler.READ_BUFFER, evt);
+        return completeOn(evt, () -> {
+            final int[] data = new int[buff.w];
+            staging.asIntBuffer().get(data);
+            return data;
+        });
+    }
+
+    public static CompletableFuture<int[]> query_int_async(final ocl_buffer buff, final cl_event[][] event) {
+        return query_int_async(buff, event == null ? null : event[0]);
+    }
+
+    /**
+     * Version non bloquante de query_byte(ocl_buffer, cl_event[])
+     *
+     * @param buff
+     * @param event
+     * @return
+     */
+    public static CompletableFuture<byte[]> query_byte_async(final ocl_buffer buff, final cl_event[] event) {
+        final ByteBuffer staging = ByteBuffer.allocateDirect(buff.w * Sizeof.cl_char);
+        final cl_event evt = new cl_event();
+        int err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_FALSE, 0, buff.w * Sizeof.cl_char, Pointer.to(staging), event == null ? 0 : event.length, event, evt);
+        if (checkError(err)) {
+            return failed(err);
+        }
+        Profiler.record(Profiler.READ_BUFFER, evt);
+        return completeOn(evt, () -> {
+            final byte[] data = new byte[buff.w];
+            staging.get(data);
+            return data;
+        });
+    }
+
+    public static CompletableFuture<byte[]> query_byte_async(final ocl_buffer buff, final cl_event[][] event) {
+        return query_byte_async(buff, event == null ? null : event[0]);
+    }
+
+    /**
+     * Version non bloquante de query_picture() : l'image RGBA est relue dans
+     * une nouvelle BufferedImage TYPE_INT_ARGB
+     *
+     * @param img
+     * @param event evenements a attendre
+     * @return
+     */
+    public static CompletableFuture<BufferedImage> query_picture_async(final ocl_image img, final cl_event[] event) {
+        if (img.hostPixels != null) {
+            return CompletableFuture.completedFuture(img.query_img());
+        }
+        final ByteBuffer staging = ByteBuffer.allocateDirect(img.w * img.h * Sizeof.cl_uint).order(ByteOrder.nativeOrder());
+        final cl_event evt = new cl_event();
+        int err = CL.clEnqueueReadImage(command_queue, img.mem, CL.CL_FALSE, new long[]{0, 0, 0}, new long[]{img.w, img.h, 1}, img.w * Sizeof.cl_uint, 0, Pointer.to(staging), event == null ? 0 : event.length, event, evt);
+        if (checkError(err)) {
+            return failed(err);
+        }
+        Profiler.record(Profiler.READ_IMAGE, evt);
+        return completeOn(evt, () -> {
+            final BufferedImage imgOut = new BufferedImage(img.w, img.h, BufferedImage.TYPE_INT_ARGB);
+            staging.asIntBuffer().get(((DataBufferInt) imgOut.getRaster().getDataBuffer()).getData());
+            return imgOut;
+        });
+    }
+
+    public static CompletableFuture<BufferedImage> query_picture_async(final ocl_image img, final cl_event[][] event) {
+        return query_picture_async(img, event == null ? null : event[0]);
+    }
+
     public static boolean copy_to_buf(final ocl_buffer buf, final ocl_buffer dst, final cl_event[] event) {
+        return copyInOrder(event, chain -> copy_to_buf(buf, dst, chain));
+    }
+
+    /**
+     * Copie un buffer dans un autre, agrandi si besoin
+     *
+     * @param buf
+     * @param dst
+     * @param event chaine d'evenements : la copie les attend et les remplace
+     * par le sien (peut etre null)
+     * @return true en cas d'erreur
+     */
+    public static boolean copy_to_buf(final ocl_buffer buf, final ocl_buffer dst, final cl_event[][] event) {
         if (dst.w < buf.w) {
             dst.release();
             int[] err = {0};
             dst.mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE, buf.w * Sizeof.cl_float, null, err);
             dst.w = buf.w;
         }
-        int result = CL.clEnqueueCopyBuffer(command_queue, buf.mem, dst.mem, 0, 0, buf.w * Sizeof.cl_float, event != null ? event.length : 0, event, null);
-        return checkError(result);
+        final cl_event[] wait = event == null ? null : event[0];
+        final cl_event evt = event == null ? Profiler.event() : new cl_event();
+        int result = CL.clEnqueueCopyBuffer(command_queue, buf.mem, dst.mem, 0, 0, buf.w * Sizeof.cl_float, wait != null ? wait.length : 0, wait, evt);
+        return endCopy(result, evt, event);
     }
 
+    /**
+     * Copie un buffer de float dans une image. Copie directe pour les images
+     * float a un canal, conversion sur le device sinon (voir
+     * KernelLibrary.fromBuffer)
+     *
+     * @return true en cas d'erreur
+     */
     public static boolean copy_to_img(final ocl_buffer buf, final ocl_image img, final cl_event[] event) {
-        int result = CL.clEnqueueCopyBufferToImage(command_queue, buf.mem, img.mem, 0, new long[]{0, 0, 0}, new long[]{img.w, img.h, img.z}, event != null ? event.length : 0, event, null);
-        return checkError(result);
+        return copyInOrder(event, chain -> copy_to_img(buf, img, chain));
     }
 
+    /**
+     * Version chainee de copy_to_img : la copie attend les evenements de la
+     * chaine et les remplace par le sien
+     *
+     * @return true en cas d'erreur
+     */
+    public static boolean copy_to_img(final ocl_buffer buf, final ocl_image img, final cl_event[][] event) {
+        if (!isRawFloatCopy(img)) {
+            return !KernelLibrary.fromBuffer(buf, img, event);
+        }
+        final cl_event[] wait = event == null ? null : event[0];
+        final cl_event evt = event == null ? Profiler.event() : new cl_event();
+        int result = CL.clEnqueueCopyBufferToImage(command_queue, buf.mem, img.mem, 0, new long[]{0, 0, 0}, new long[]{img.w, img.h, img.z}, wait != null ? wait.length : 0, wait, evt);
+        return endCopy(result, evt, event);
+    }
+
+    /**
+     * Copie une image dans un buffer de float (1 ou 4 float par pixel, voir
+     * KernelLibrary.toBuffer), convertie sur le device si ce n'est pas une
+     * image float a un canal
+     *
+     * @return true en cas d'erreur
+     */
     public static boolean copy_to_buf(final ocl_image img, final ocl_buffer buf) {
-        cl_event[] event = null;
-        int result = CL.clEnqueueCopyImageToBuffer(command_queue, img.mem, buf.mem, new long[]{0, 0, 0}, new long[]{img.w, img.h, img.z}, 0, event != null ? event.length : 0, event, null);
-        return checkError(result);
+        return copyInOrder(null, chain -> copy_to_buf(img, buf, chain));
+    }
+
+    /**
+     * Version chainee de copy_to_buf(img, buf)
+     *
+     * @return true en cas d'erreur
+     */
+    public static boolean copy_to_buf(final ocl_image img, final ocl_buffer buf, final cl_event[][] event) {
+        if (!isRawFloatCopy(img)) {
+            return !KernelLibrary.toBuffer(img, buf, event);
+        }
+        final cl_event[] wait = event == null ? null : event[0];
+        final cl_event evt = event == null ? Profiler.event() : new cl_event();
+        int result = CL.clEnqueueCopyImageToBuffer(command_queue, img.mem, buf.mem, new long[]{0, 0, 0}, new long[]{img.w, img.h, img.z}, 0, wait != null ? wait.length : 0, wait, evt);
+        return endCopy(result, evt, event);
+    }
+
+    /**
+     * Fin d'une copie : son evenement remplace ceux de la chaine, ou est rendu
+     * s'il n'y a pas de chaine
+     *
+     * @return true en cas d'erreur
+     */
+    private static boolean endCopy(final int err, final cl_event evt, final cl_event[][] event) {
+        if (event == null) {
+            Profiler.done(Profiler.COPY, evt);
+            return checkError(err);
+        }
+        if (checkError(err)) {
+            return true;
+        }
+        Profiler.record(Profiler.COPY, evt);
+        EventManager.replace(event, EventManager.track(evt));
+        return false;
+    }
+
+    /**
+     * Copie sans chaine d'evenements. Avec une queue out-of-order, rien
+     * n'ordonne les commandes suivantes apres la copie : elle est attendue
+     * avant de rendre la main, comme sur une queue in-order.
+     *
+     * @param event evenements a attendre (peut etre null)
+     * @param copy copie chainee
+     * @return true en cas d'erreur
+     */
+    private static boolean copyInOrder(final cl_event[] event, final Predicate<cl_event[][]> copy) {
+        if (!outOfOrder && event == null) {
+            return copy.test(null);
+        }
+        final cl_event[][] chain = EventManager.fork(new cl_event[][]{event});
+        final boolean error = copy.test(chain);
+        if (!error && outOfOrder && chain[0] != null) {
+            CL.clWaitForEvents(chain[0].length, chain[0]);
+        }
+        EventManager.release(chain);
+        return error;
+    }
+
+    /**
+     * Les pixels d'une image float a un canal ont deja le format d'un buffer
+     * de float
+     */
+    private static boolean isRawFloatCopy(final ocl_image img) {
+        return img.image_format.image_channel_data_type == CL.CL_FLOAT
+                && Images2D.channelCountOf(img.image_format.image_channel_order) == 1;
     }
 
     private static long[] getLongs(final cl_device_id device, final int paramName, final int numValues) {
@@ -262,7 +793,7 @@ public class OpenCLBase {
         return values;
     }
 
-    private static long getLong(final cl_device_id device, final int paramName) {
+    static long getLong(final cl_device_id device, final int paramName) {
         return getLongs(device, paramName, 1)[0];
     }
 
@@ -273,7 +804,7 @@ public class OpenCLBase {
      * @param paramName The parameter name
      * @return The value
      */
-    private static String getString(final cl_device_id device, final int paramName) {
+    static String getString(final cl_device_id device, final int paramName) {
         // Obtain the length of the string that will be queried
         long size[] = new long[1];
         CL.clGetDeviceInfo(device, paramName, 0, null, size);
@@ -284,66 +815,144 @@ public class OpenCLBase {
         return new String(buffer, 0, buffer.length - 1);
     }
 
+    /**
+     * Information numerique du device courant
+     *
+     * @param paramName CL_DEVICE_...
+     * @return 0 sans device
+     */
+    public static long getDeviceLong(final int paramName) {
+        return isDeviceAvailable() ? getLong(device_id, paramName) : 0;
+    }
+
+    static cl_device_id getDeviceId() {
+        return device_id;
+    }
+
+    /**
+     * Identite du device et du driver, utilisee pour invalider le cache des
+     * binaires quand on change de carte ou de driver
+     *
+     * @param device
+     * @return
+     */
+    static String getDeviceIdentity(final cl_device_id device) {
+        return getString(device, CL.CL_DEVICE_NAME) + "|"
+                + getString(device, CL.CL_DEVICE_VENDOR) + "|"
+                + getString(device, CL.CL_DEVICE_VERSION) + "|"
+                + getString(device, CL.CL_DRIVER_VERSION);
+    }
+
     public static boolean createKernels(final String... clFileName) throws IOException {
         // TODO memorizer pour ne pas recompiler plusieurs fois le meme programme
         opencl_init();
+        if (!isDeviceAvailable()) {
+            return false;
+        }
         for (String file : clFileName) {
             cl_program program = OpenCLBase.buildProgramFromFile(file, "");
             if (program == null || !OpenCLBase.createKernels(program)) {
                 return false;
             }
         }
+        LOGGER.info(ProgramCache.getSummary());
         return true;
     }
 
     public static boolean createKernelsFromSource(final String source) {
         opencl_init(); // Au cas où
+        if (!isDeviceAvailable()) {
+            return false;
+        }
         cl_program program = buildProgramFromSource(source, "");
         return !(program == null || !OpenCLBase.createKernels(program));
     }
 
     public static boolean createKernels(final URL... urls) throws IOException {
         opencl_init();
+        if (!isDeviceAvailable()) {
+            return false;
+        }
         for (URL url : urls) {
             cl_program program = OpenCLBase.buildProgramFromUrl(url, "");
             if (program == null || !OpenCLBase.createKernels(program)) {
                 return false;
             }
         }
+        LOGGER.info(ProgramCache.getSummary());
         return true;
     }
 
     private static boolean createKernels(final cl_program... programs) {
         // Create the kernel
         // mapKernels.clear();
-        cl_kernel[] allKernels = new cl_kernel[30];
         for (cl_program program : programs) {
-            int[] nbKernelsArr = {0};
-            int result = CL.clCreateKernelsInProgram(program, 30, allKernels, nbKernelsArr);
-            if (result != CL.CL_SUCCESS) {
+            final Map<String, cl_kernel> kernels = createKernelMap(program);
+            if (kernels == null) {
+                CL.clReleaseProgram(program);
                 return false;
             }
-            int nbKernels = nbKernelsArr[0];
-
-            for (int i = 0; i < nbKernels; i++) {
-                long size[] = new long[1];
-                CL.clGetKernelInfo(allKernels[i], CL.CL_KERNEL_FUNCTION_NAME, 0, null, size);
-                byte buffer[] = new byte[(int) size[0]];
-                CL.clGetKernelInfo(allKernels[i], CL.CL_KERNEL_FUNCTION_NAME, buffer.length, Pointer.to(buffer), null);
-                String name = new String(buffer, 0, buffer.length - 1);
-                mapKernels.put(name, allKernels[i]);
+            for (Map.Entry<String, cl_kernel> e : kernels.entrySet()) {
+                final cl_kernel old = mapKernels.put(e.getKey(), e.getValue());
+                if (old != null) {
+                    // Kernel recompile : l'ancienne instance partagee peut encore etre utilisee
+                    synchronized (retiredKernels) {
+                        retiredKernels.add(old);
+                    }
+                }
+                KernelPool.register(e.getKey(), program);
             }
+            // KernelPool garde une reference par kernel
+            CL.clReleaseProgram(program);
         }
 
         //      kernel = mapKernels.get("render");
         return true;
     }
 
-    public static void opencl_init() {
-        if (command_queue != null) {
+    /**
+     * Cree tous les kernels d'un programme, indexes par leur nom
+     *
+     * @param program
+     * @return null en cas d'erreur
+     */
+    static Map<String, cl_kernel> createKernelMap(final cl_program program) {
+        cl_kernel[] allKernels = new cl_kernel[30];
+        int[] nbKernelsArr = {0};
+        int result = CL.clCreateKernelsInProgram(program, 30, allKernels, nbKernelsArr);
+        if (result != CL.CL_SUCCESS) {
+            return null;
+        }
+        int nbKernels = nbKernelsArr[0];
+        final Map<String, cl_kernel> kernels = new HashMap<>();
+        for (int i = 0; i < nbKernels; i++) {
+            kernels.put(getKernelName(allKernels[i]), allKernels[i]);
+        }
+        return kernels;
+    }
+
+    public static String getKernelName(final cl_kernel kernel) {
+        long size[] = new long[1];
+        CL.clGetKernelInfo(kernel, CL.CL_KERNEL_FUNCTION_NAME, 0, null, size);
+        byte buffer[] = new byte[(int) size[0]];
+        CL.clGetKernelInfo(kernel, CL.CL_KERNEL_FUNCTION_NAME, buffer.length, Pointer.to(buffer), null);
+        return new String(buffer, 0, buffer.length - 1);
+    }
+
+    public static synchronized void opencl_init() {
+        if (initialized || !isOpenCLAvailable()) {
             return;
         }
+        try {
+            createContext();
+        } catch (CLException e) {
+            // Pas de plateforme OpenCL : les kernels Java prendront le relai
+            LOGGER.log(Level.WARNING, "OpenCL init: {0}", e.getMessage());
+        }
+        initialized = true;
+    }
 
+    private static void createContext() {
         // Enable exceptions and subsequently omit error checks in this sample
         CL.setExceptionsEnabled(true);
 
@@ -355,22 +964,46 @@ public class OpenCLBase {
             contextProperties.addProperty(CL.CL_CONTEXT_PLATFORM, device.platform_id);
 
             displayDevice(device.device_id);
+            device_id = device.device_id;
 
             // Create a context for the selected device
             context = CL.clCreateContext(contextProperties, 1, new cl_device_id[]{device.device_id}, null, null, null);
 
             // Create a command-queue
             cl_queue_properties clProperties = new cl_queue_properties();
-            //    clProperties.addProperty(CL.CL_QUEUE_PROFILING_ENABLE, 1l);
-            //   clProperties.addProperty(CL.CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE, 1l);
+            long queueFlags = Profiler.isEnabled() ? CL.CL_QUEUE_PROFILING_ENABLE : 0;
+            if (OUT_OF_ORDER) {
+                if ((getQueueProperties(device.device_id) & CL.CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE) != 0) {
+                    queueFlags |= CL.CL_QUEUE_OUT_OF_ORDER_EXEC_MODE_ENABLE;
+                    outOfOrder = true;
+                } else {
+                    LOGGER.warning("Out-of-order queue not supported by the device, using an in-order queue");
+                }
+            }
+            if (queueFlags != 0) {
+                clProperties.addProperty(CL.CL_QUEUE_PROPERTIES, queueFlags);
+            }
             int err = 0;
             command_queue = CL.clCreateCommandQueueWithProperties(context, device.device_id, clProperties, new int[]{err});
         }
     }
 
+    /**
+     * Proprietes possibles d'une queue du host : CL_DEVICE_QUEUE_PROPERTIES
+     * (deprecie) n'est interroge que sur un device OpenCL 1.x
+     */
+    @SuppressWarnings("deprecation")
+    private static long getQueueProperties(final cl_device_id device) {
+        final String version = getString(device, CL.CL_DEVICE_VERSION);
+        // "OpenCL <major>.<minor> <infos du fabricant>"
+        final boolean v1 = version.startsWith("OpenCL 1.");
+        return getLong(device, v1 ? CL.CL_DEVICE_QUEUE_PROPERTIES : CL.CL_DEVICE_QUEUE_ON_HOST_PROPERTIES);
+    }
+
     private static OpenCLDeviceQuery.Device getBestDevice() {
         OpenCLDeviceQuery.Device device = null;
-        for (OpenCLDeviceQuery.Device dev : OpenCLDeviceQuery.getDevices()) {
+        final List<OpenCLDeviceQuery.Device> devices = OpenCLDeviceQuery.getDevices();
+        for (OpenCLDeviceQuery.Device dev : devices) {
             String deviceVendor = getString(dev.device_id, CL.CL_DEVICE_VENDOR);
             if (deviceVendor.contains("NVIDIA")) {
                 device = dev;
@@ -381,6 +1014,10 @@ public class OpenCLBase {
                 device = dev;
             }
         }
+        if (device == null && !devices.isEmpty()) {
+            // Pas de GPU : on prend le premier device (CPU, PoCL...)
+            device = devices.get(0);
+        }
         return device;
     }
 
@@ -482,7 +1119,23 @@ public class OpenCLBase {
     }
 
     public static boolean runWithArgs(String kernelName, int nbDim, long[] global_offset, long[] global_sz, long[] local_sz, cl_event[][] event, Object... args) {
-        return runWithArgs(mapKernels.get(kernelName), nbDim, global_offset, global_sz, local_sz, event, args);
+        if (!isDeviceAvailable()) {
+            return JavaKernels.run(kernelName, global_offset, global_sz, args);
+        }
+        // Instance propre a cet appel pour que les threads ne s'ecrasent pas leurs arguments
+        final cl_kernel kernel = KernelPool.checkout(kernelName);
+        try {
+            if (local_sz == null && nbDim == global_sz.length) {
+                return runWithArgs(kernelName, kernel, global_offset, global_sz, event, args);
+            }
+            if (kernel == null) {
+                return false;
+            }
+            args(kernel, args);
+            return run(kernelName, kernel, nbDim, global_offset, global_sz, local_sz, event);
+        } finally {
+            KernelPool.checkin(kernelName, kernel);
+        }
     }
 
     public static boolean runWithArgs(cl_kernel kernel, int nbDim, long[] global_offset, long[] global_sz, long[] local_sz, cl_event[][] event, Object... args) {
@@ -490,12 +1143,13 @@ public class OpenCLBase {
             return false;
         }
         args(kernel, args);
-        return run(kernel, nbDim, global_offset, global_sz, local_sz, event);
+        return run(null, kernel, nbDim, global_offset, global_sz, local_sz, event);
     }
 
     /**
      * Pour adapter facilement du code OpenCV
      *
+     * @param kernelName nom donne au Profiler, lu sur le kernel si null
      * @param kernel
      * @param nbDim
      * @param global_sz
@@ -504,25 +1158,44 @@ public class OpenCLBase {
      * @param event
      * @return
      */
-    private static boolean run(cl_kernel kernel, int nbDim, long[] global_offset, long[] global_sz, long[] local_sz, cl_event[][] event) {
+    static boolean run(String kernelName, cl_kernel kernel, int nbDim, long[] global_offset, long[] global_sz, long[] local_sz, cl_event[][] event) {
+        if (event == null) {
+            // Pas d'evenement demande : aucune allocation
+            if (Profiler.isEnabled()) {
+                final cl_event[][] profiled = {null};
+                final boolean ok = run(kernelName, kernel, nbDim, global_offset, global_sz, local_sz, profiled);
+                EventManager.release(profiled);
+                return ok;
+            }
+            return !checkError(CL.clEnqueueNDRangeKernel(command_queue, kernel, nbDim, global_offset, global_sz, local_sz, 0, null, null));
+        }
         cl_event event2 = new cl_event();
         int err = CL.clEnqueueNDRangeKernel(command_queue, kernel, nbDim, global_offset, global_sz, local_sz, event[0] != null ? event[0].length : 0, event[0], event2);
-        // TODO: voir comment faire un release de l'evenement precedent sans qu'il soit completement perdu pour les parents
-        //if (event[0] != null) {
-        //    for(cl_event evt:event[0]) {
-        //        CL.clReleaseEvent(evt);
-        //    }
-        //}
-        event[0] = new cl_event[]{event2};
-        return !checkError(err);
+        if (checkError(err)) {
+            return false;
+        }
+        if (Profiler.isEnabled()) {
+            Profiler.record(kernelName != null ? kernelName : getKernelName(kernel), event2);
+        }
+        // Les evenements precedents ne sont plus references par cette chaine (voir EventManager)
+        EventManager.replace(event, EventManager.track(event2));
+        return true;
     }
 
-    private static boolean run(final cl_kernel kernel, final long[] global_sz, final cl_event[][] event) {
-        return run(kernel, global_sz.length, null, global_sz, null, event);
+    private static boolean run(final String kernelName, final cl_kernel kernel, final long[] global_sz, final cl_event[][] event) {
+        return run(kernelName, kernel, global_sz.length, null, global_sz, null, event);
     }
 
     private static boolean run(String kernelName, long[] global_sz, cl_event[][] event) {
-        return run(mapKernels.get(kernelName), global_sz, event);
+        final cl_kernel kernel = KernelPool.checkout(kernelName);
+        if (kernel == null) {
+            return false;
+        }
+        try {
+            return run(kernelName, kernel, global_sz, event);
+        } finally {
+            KernelPool.checkin(kernelName, kernel);
+        }
     }
 
     /**
@@ -536,16 +1209,71 @@ public class OpenCLBase {
      * @return
      */
     public static boolean runWithArgsOnBBox(String kernelName, int[] global_bbox, cl_event[][] event, Object... args) {
-        return runWithArgs(mapKernels.get(kernelName), new long[]{global_bbox[0], global_bbox[1]},
-                new long[]{global_bbox[2] - global_bbox[0], global_bbox[3] - global_bbox[1]}, event, args);
+        if (!isDeviceAvailable()) {
+            return JavaKernels.run(kernelName, new long[]{global_bbox[0], global_bbox[1]},
+                    new long[]{global_bbox[2] - global_bbox[0], global_bbox[3] - global_bbox[1]}, args);
+        }
+        final cl_kernel kernel = KernelPool.checkout(kernelName);
+        try {
+            return runWithArgs(kernelName, kernel, new long[]{global_bbox[0], global_bbox[1]},
+                    new long[]{global_bbox[2] - global_bbox[0], global_bbox[3] - global_bbox[1]}, event, args);
+        } finally {
+            KernelPool.checkin(kernelName, kernel);
+        }
+    }
+
+    /**
+     * Lance le kernel seulement sur les zones modifiees (un lancement par
+     * rectangle, avec global_offset). Tous les lancements attendent les memes
+     * evenements, event contient ensuite les evenements de chacun.
+     *
+     * @param kernelName
+     * @param dirty
+     * @param event
+     * @param args
+     * @return
+     */
+    public static boolean runWithArgsOnRegion(String kernelName, DirtyRegion dirty, cl_event[][] event, Object... args) {
+        final List<Rectangle> rects = dirty.getRectangles();
+        if (event == null || rects.size() <= 1) {
+            for (Rectangle r : rects) {
+                if (!runWithArgsOnBBox(kernelName, new int[]{r.x, r.y, r.x + r.width, r.y + r.height}, event, args)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        final List<cl_event> done = new ArrayList<>();
+        boolean ok = true;
+        for (Rectangle r : rects) {
+            final cl_event[][] branch = EventManager.fork(event);
+            ok = runWithArgsOnBBox(kernelName, new int[]{r.x, r.y, r.x + r.width, r.y + r.height}, branch, args);
+            if (branch[0] != null) {
+                done.addAll(Arrays.asList(branch[0]));
+            }
+            if (!ok) {
+                break;
+            }
+        }
+        // Les references des branches passent au tableau de l'appelant
+        final cl_event[] old = event[0];
+        event[0] = done.isEmpty() ? null : done.toArray(new cl_event[0]);
+        EventManager.release(old);
+        return ok;
     }
 
     public static boolean runWithArgs(String kernelName, long[] global_sz, cl_event[][] event, Object... args) {
+        if (!isDeviceAvailable()) {
+            return JavaKernels.run(kernelName, null, global_sz, args);
+        }
+        final cl_kernel kernel = KernelPool.checkout(kernelName);
         try {
-            return runWithArgs(mapKernels.get(kernelName), null, global_sz, event, args);
+            return runWithArgs(kernelName, kernel, null, global_sz, event, args);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, kernelName + " runWithArgs: ", e);
             return false;
+        } finally {
+            KernelPool.checkin(kernelName, kernel);
         }
     }
 
@@ -558,19 +1286,105 @@ public class OpenCLBase {
     }
 
     public static int clEnqueueWriteImage(cl_mem image, boolean blocking_write, long[] origin, long[] region, long input_row_pitch, long input_slice_pitch, Pointer ptr, int num_events_in_wait_list, cl_event[] event_wait_list, cl_event event) {
-        return CL.clEnqueueWriteImage(command_queue, image, blocking_write, origin, region, input_row_pitch, input_slice_pitch, ptr, num_events_in_wait_list, event_wait_list, event);
+        final cl_event evt = event != null ? event : Profiler.event();
+        final int err = CL.clEnqueueWriteImage(command_queue, image, blocking_write, origin, region, input_row_pitch, input_slice_pitch, ptr, num_events_in_wait_list, event_wait_list, evt);
+        if (evt == event) {
+            Profiler.record(Profiler.WRITE_IMAGE, evt);
+        } else {
+            Profiler.done(Profiler.WRITE_IMAGE, evt);
+        }
+        return err;
+    }
+
+    public static int clEnqueueCopyImage(cl_mem src_image, cl_mem dst_image, long[] src_origin, long[] dst_origin, long[] region, int num_events_in_wait_list, cl_event[] event_wait_list, cl_event event) {
+        final cl_event evt = event != null ? event : Profiler.event();
+        final int err = CL.clEnqueueCopyImage(command_queue, src_image, dst_image, src_origin, dst_origin, region, num_events_in_wait_list, event_wait_list, evt);
+        if (evt == event) {
+            Profiler.record(Profiler.COPY, evt);
+        } else {
+            Profiler.done(Profiler.COPY, evt);
+        }
+        return err;
     }
 
     public static int copy_to_buf(final float[] buff, final cl_mem mem) {
-        return CL.clEnqueueWriteBuffer(command_queue, mem, true, 0, buff.length * Sizeof.cl_float, Pointer.to(buff), 0, null, null);
+        final cl_event evt = Profiler.event();
+        final int err = CL.clEnqueueWriteBuffer(command_queue, mem, true, 0, buff.length * Sizeof.cl_float, Pointer.to(buff), 0, null, evt);
+        Profiler.done(Profiler.WRITE_BUFFER, evt);
+        return err;
+    }
+
+    /**
+     * Envoie les octets restants d'un buffer direct (ou d'un fichier projete,
+     * voir RawFrameFile) au debut du buffer du device, sans copie sur le heap
+     */
+    public static int copy_to_buf(final ByteBuffer data, final cl_mem mem) {
+        final cl_event evt = Profiler.event();
+        final int err = CL.clEnqueueWriteBuffer(command_queue, mem, true, 0, data.remaining(), Pointer.toBuffer(data), 0, null, evt);
+        Profiler.done(Profiler.WRITE_BUFFER, evt);
+        return err;
+    }
+
+    /**
+     * Relit le debut du buffer du device dans les octets restants de dst
+     * (buffer direct ou fichier projete)
+     *
+     * @return true en cas d'erreur
+     */
+    public static boolean query_buffer(final ocl_buffer buff, final ByteBuffer dst, final cl_event[] event) {
+        final cl_event evt = Profiler.event();
+        final int err = CL.clEnqueueReadBuffer(command_queue, buff.mem, CL.CL_TRUE, 0, dst.remaining(), Pointer.toBuffer(dst), event == null ? 0 : event.length, event, evt);
+        Profiler.done(Profiler.READ_BUFFER, evt);
+        return checkError(err);
     }
 
-    private static boolean runWithArgs(cl_kernel kernel, long[] global_offset, long[] global_sz, cl_event[][] event, Object... args) {
+    private static boolean runWithArgs(String kernelName, cl_kernel kernel, long[] global_offset, long[] global_sz, cl_event[][] event, Object... args) {
         if (kernel == null) {
             return false;
         }
         args(kernel, args);
-        return run(kernel, global_sz.length, global_offset, global_sz, null, event);
+        return runTuned(kernelName, kernel, global_offset, global_sz, event);
+    }
+
+    /**
+     * Lance un kernel dont les arguments sont deja affectes, avec la taille des
+     * work-groups reglee par WorkGroupTuner s'il y en a une
+     */
+    static boolean runTuned(final String kernelName, final cl_kernel kernel, final long[] global_offset, final long[] global_sz, final cl_event[][] event) {
+        final long[] local_sz = WorkGroupTuner.getLocalSize(kernelName, kernel, global_offset, global_sz, event == null ? null : event[0]);
+        return run(kernelName, kernel, global_sz.length, global_offset, local_sz == null ? global_sz : WorkGroupTuner.roundUp(global_sz, local_sz), local_sz, event);
+    }
+
+    /**
+     * Evenement termine quand toutes les commandes deja soumises le sont
+     * (pour une queue out-of-order, voir MemoryPool)
+     *
+     * @return null sans queue ou en cas d'erreur
+     */
+    static cl_event enqueueMarker() {
+        if (command_queue == null) {
+            return null;
+        }
+        final cl_event evt = new cl_event();
+        return checkError(CL.clEnqueueMarkerWithWaitList(command_queue, 0, null, evt)) ? null : evt;
+    }
+
+    /**
+     * Attend la fin de toutes les commandes de la queue
+     */
+    public static void finish() {
+        if (command_queue != null) {
+            CL.clFinish(command_queue);
+        }
+    }
+
+    /**
+     * Envoie au device les commandes en attente sans les attendre
+     */
+    public static void flush() {
+        if (command_queue != null) {
+            CL.clFlush(command_queue);
+        }
     }
 
     private static boolean initIsOpenCLAvailable() {
@@ -582,6 +1396,21 @@ public class OpenCLBase {
         return true;
     }
 
+    /**
+     * Indique si la queue est out-of-order (propriete systeme
+     * "opencltopicture.queue.outoforder" et device compatible) : les commandes
+     * independantes se recouvrent et seuls les evenements passes aux fonctions
+     * ordonnent les commandes. Les copies sans chaine d'evenements sont alors
+     * attendues avant de rendre la main (utiliser les versions cl_event[][]
+     * pour les recouvrir), et MemoryPool attend la fin des commandes soumises
+     * avant de redonner un objet recycle.
+     *
+     * @return
+     */
+    public static boolean isOutOfOrder() {
+        return outOfOrder;
+    }
+
     /**
      * Indique si OpenCL est displonible sur la machine
      *
@@ -592,10 +1421,41 @@ public class OpenCLBase {
     }
 
     /**
-     * Returns the binaries for this program in an ordered Map containing the
-     * device as key and the program binaries as value.
+     * Indique si un device OpenCL a ete initialise. Sinon les kernels sont
+     * executes en Java (voir JavaKernels) et les ocl_image restent en memoire
+     * Java.
+     *
+     * @return
+     */
+    public static boolean isDeviceAvailable() {
+        if (!initialized) {
+            opencl_init();
+        }
+        return command_queue != null;
+    }
+
+    /**
+     * Returns the binaries for this program, one String per device.
      */
     public static String[] getBinaries(int numDevices, cl_program program) {
+        final byte[][] binaryDatas = getBinaryDatas(numDevices, program);
+        if (binaryDatas == null) {
+            return null;
+        }
+        final String[] binaries = new String[numDevices];
+        // Print the binary data (for NVIDIA, this is the PTX data)
+        for (int i = 0; i < binaryDatas.length; i++) {
+            binaries[i] = new String(binaryDatas[i]);
+        }
+        return binaries;
+    }
+
+    /**
+     * Returns the raw binaries for this program, one array per device. Unlike
+     * getBinaries() the data is not converted to a String and can be given
+     * back to clCreateProgramWithBinary.
+     */
+    public static byte[][] getBinaryDatas(int numDevices, cl_program program) {
 
         // Obtain the length of the binary data that will be queried, for each device
         long binaryDataSizes[] = new long[numDevices];
@@ -616,7 +1476,7 @@ public class OpenCLBase {
         // to the binary data arrays
         Pointer binaryDataPointers[] = new Pointer[numDevices];
         for (int i = 0; i < numDevices; i++) {
-            binaryDataPointers[0] = Pointer.to(binaryDatas[i]);
+            binaryDataPointers[i] = Pointer.to(binaryDatas[i]);
         }
 
         // Query the binary data
@@ -625,12 +1485,6 @@ public class OpenCLBase {
         if (checkError(ret)) {
             return null;
         }
-
-        final String[] binaries = new String[numDevices];
-        // Print the binary data (for NVIDIA, this is the PTX data)
-        for (int i = 0; i < binaryDatas.length; i++) {
-            binaries[i] = new String(binaryDatas[i]);
-        }
-        return binaries;
+        return binaryDatas;
     }
 }
@@ -0,0 +1,324 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Conversion de format de pixels entre BufferedImage sans passer par
+ * Graphics2D.drawImage : les tableaux des rasters sont lus et ecrits
+ * directement, par bandes de lignes traitees sur le ForkJoinPool commun.
+ *
+ * Types geres en source et en destination : TYPE_INT_ARGB, TYPE_INT_RGB,
+ * TYPE_INT_BGR, TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR et TYPE_BYTE_GRAY (memes
+ * formules que les boucles de Java2D pour le gris). L'alpha est copie tel
+ * quel vers une destination ARGB ; vers une destination opaque, les pixels
+ * translucides sont composes sur du noir, comme drawImage dans une image
+ * neuve. Les autres cas (images premultipliees, indexees...) repassent par
+ * drawImage.
+ *
+ * @author durands
+ */
+public class PixelConverter {
+
+    // Nombre de pixels en dessous duquel une bande n'est plus decoupee
+    private static final int BAND_PIXELS = 64 * 1024;
+
+    /**
+     * Acces direct au tableau d'un raster
+     */
+    private static class Layout {
+
+        final int type;
+        final int[] ints;
+        final byte[] bytes;
+        // Indice du pixel (0,0), pas d'une ligne et d'un pixel dans le tableau
+        final int offset, scan, pixelStride;
+
+        Layout(int type, int[] ints, byte[] bytes, int offset, int scan, int pixelStride) {
+            this.type = type;
+            this.ints = ints;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.scan = scan;
+            this.pixelStride = pixelStride;
+        }
+
+        int index(final int x, final int y) {
+            return offset + y * scan + x * pixelStride;
+        }
+    }
+
+    /**
+     * @return null si le type ou l'organisation du raster n'est pas gere
+     */
+    private static Layout layoutOf(final BufferedImage img) {
+        final WritableRaster raster = img.getRaster();
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer db = raster.getDataBuffer();
+        final int tx = -raster.getSampleModelTranslateX(), ty = -raster.getSampleModelTranslateY();
+        switch (img.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR: {
+                if (!(sm instanceof SinglePixelPackedSampleModel) || !(db instanceof DataBufferInt)) {
+                    return null;
+                }
+                final int scan = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+                return new Layout(img.getType(), ((DataBufferInt) db).getData(), null, db.getOffset() + ty * scan + tx, scan, 1);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                if (!(sm instanceof ComponentSampleModel) || !(db instanceof DataBufferByte)) {
+                    return null;
+                }
+                final ComponentSampleModel csm = (ComponentSampleModel) sm;
+                final int[] expected = img.getType() == BufferedImage.TYPE_3BYTE_BGR ? new int[]{2, 1, 0}
+                        : img.getType() == BufferedImage.TYPE_4BYTE_ABGR ? new int[]{3, 2, 1, 0} : new int[]{0};
+                if (!Arrays.equals(csm.getBandOffsets(), expected) || csm.getPixelStride() != expected.length) {
+                    return null;
+                }
+                final int scan = csm.getScanlineStride(), ps = csm.getPixelStride();
+                return new Layout(img.getType(), null, ((DataBufferByte) db).getData(), db.getOffset() + ty * scan + tx * ps, scan, ps);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true si la conversion est faite sans drawImage
+     */
+    public static boolean isSupported(final BufferedImage src, final BufferedImage dst) {
+        return layoutOf(src) != null && layoutOf(dst) != null;
+    }
+
+    /**
+     * Convertit dans une nouvelle image du type demande
+     *
+     * @param src
+     * @param type BufferedImage.TYPE_...
+     * @return src si elle est deja du bon type
+     */
+    public static BufferedImage convert(final BufferedImage src, final int type) {
+        if (src.getType() == type) {
+            return src;
+        }
+        return convert(src, new BufferedImage(src.getWidth(), src.getHeight(), type));
+    }
+
+    /**
+     * Convertit src dans dst, a reutiliser d'une image a l'autre
+     *
+     * @param src
+     * @param dst de meme taille
+     * @return dst
+     */
+    public static BufferedImage convert(final BufferedImage src, final BufferedImage dst) {
+        final int w = src.getWidth(), h = src.getHeight();
+        if (dst.getWidth() != w || dst.getHeight() != h) {
+            throw new IllegalArgumentException("Size mismatch: " + w + "x" + h + " -> " + dst.getWidth() + "x" + dst.getHeight());
+        }
+        final Layout in = layoutOf(src), out = layoutOf(dst);
+        if (in == null || out == null) {
+            final Graphics2D g2 = dst.createGraphics();
+            g2.setComposite(AlphaComposite.Src);
+            g2.drawImage(src, 0, 0, null);
+            g2.dispose();
+            return dst;
+        }
+        final BandTask task = new BandTask(in, out, w, 0, h);
+        if ((long) w * h <= BAND_PIXELS) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        return dst;
+    }
+
+    private static class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Layout in, out;
+        final int w, y0, y1;
+
+        BandTask(Layout in, Layout out, int w, int y0, int y1) {
+            this.in = in;
+            this.out = out;
+            this.w = w;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if ((long) w * (y1 - y0) <= BAND_PIXELS || y1 - y0 < 2) {
+                convertRows(in, out, w, y0, y1);
+            } else {
+                final int ym = (y0 + y1) >>> 1;
+                invokeAll(new BandTask(in, out, w, y0, ym), new BandTask(in, out, w, ym, y1));
+            }
+        }
+    }
+
+    private static void convertRows(final Layout in, final Layout out, final int w, final int y0, final int y1) {
+        // Seules ces sources ont un alpha a composer (l'octet haut d'une
+        // image INT_RGB n'est pas significatif)
+        final boolean translucent = in.type == BufferedImage.TYPE_INT_ARGB || in.type == BufferedImage.TYPE_4BYTE_ABGR;
+        // Source deja en ARGB (ou RGB quand l'alpha n'est pas ecrit) : codage
+        // direct depuis son tableau
+        if (in.type == BufferedImage.TYPE_INT_ARGB || (in.type == BufferedImage.TYPE_INT_RGB
+                && out.type != BufferedImage.TYPE_INT_ARGB && out.type != BufferedImage.TYPE_4BYTE_ABGR)) {
+            for (int y = y0; y < y1; y++) {
+                encodeRow(in.ints, in.index(0, y), out, y, w, translucent);
+            }
+            return;
+        }
+        // Destination ARGB : decodage direct dans son tableau
+        final boolean direct = out.type == BufferedImage.TYPE_INT_ARGB;
+        final int[] argb = direct ? out.ints : new int[w];
+        for (int y = y0; y < y1; y++) {
+            final int pos = direct ? out.index(0, y) : 0;
+            decodeRow(in, y, w, argb, pos);
+            if (!direct) {
+                encodeRow(argb, 0, out, y, w, translucent);
+            }
+        }
+    }
+
+    private static void decodeRow(final Layout in, final int y, final int w, final int[] argb, final int pos) {
+        int p = in.index(0, y);
+        switch (in.type) {
+            case BufferedImage.TYPE_INT_ARGB:
+                System.arraycopy(in.ints, p, argb, pos, w);
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+                for (int x = 0; x < w; x++) {
+                    argb[pos + x] = 0xff000000 | in.ints[p + x];
+                }
+                break;
+            case BufferedImage.TYPE_INT_BGR:
+                for (int x = 0; x < w; x++) {
+                    final int v = in.ints[p + x];
+                    argb[pos + x] = 0xff000000 | ((v & 0xff) << 16) | (v & 0xff00) | ((v >> 16) & 0xff);
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                final byte[] b = in.bytes;
+                for (int x = 0; x < w; x++, p += 3) {
+                    argb[pos + x] = 0xff000000 | ((b[p + 2] & 0xff) << 16) | ((b[p + 1] & 0xff) << 8) | (b[p] & 0xff);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                final byte[] b = in.bytes;
+                for (int x = 0; x < w; x++, p += 4) {
+                    argb[pos + x] = ((b[p] & 0xff) << 24) | ((b[p + 3] & 0xff) << 16) | ((b[p + 2] & 0xff) << 8) | (b[p + 1] & 0xff);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                final byte[] b = in.bytes;
+                for (int x = 0; x < w; x++) {
+                    argb[pos + x] = 0xff000000 | ((b[p + x] & 0xff) * 0x010101);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unsupported type " + in.type);
+        }
+    }
+
+    private static void encodeRow(final int[] argb, final int pos, final Layout out, final int y, final int w, final boolean translucent) {
+        int p = out.index(0, y);
+        switch (out.type) {
+            case BufferedImage.TYPE_INT_ARGB:
+                System.arraycopy(argb, pos, out.ints, p, w);
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+                for (int x = 0; x < w; x++) {
+                    out.ints[p + x] = (translucent ? overBlack(argb[pos + x]) : argb[pos + x]) & 0xffffff;
+                }
+                break;
+            case BufferedImage.TYPE_INT_BGR:
+                for (int x = 0; x < w; x++) {
+                    final int v = translucent ? overBlack(argb[pos + x]) : argb[pos + x];
+                    out.ints[p + x] = ((v & 0xff) << 16) | (v & 0xff00) | ((v >> 16) & 0xff);
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                final byte[] b = out.bytes;
+                for (int x = 0; x < w; x++, p += 3) {
+                    final int v = translucent ? overBlack(argb[pos + x]) : argb[pos + x];
+                    b[p] = (byte) v;
+                    b[p + 1] = (byte) (v >> 8);
+                    b[p + 2] = (byte) (v >> 16);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                final byte[] b = out.bytes;
+                for (int x = 0; x < w; x++, p += 4) {
+                    final int v = argb[pos + x];
+                    b[p] = (byte) (v >>> 24);
+                    b[p + 1] = (byte) v;
+                    b[p + 2] = (byte) (v >> 8);
+                    b[p + 3] = (byte) (v >> 16);
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                final byte[] b = out.bytes;
+                for (int x = 0; x < w; x++) {
+                    final int v = argb[pos + x];
+                    // Comme ComposeByteGrayFrom3ByteRgb de Java2D, le gris est
+                    // calcule avant la composition sur du noir
+                    final int gray = (77 * ((v >> 16) & 0xff) + 150 * ((v >> 8) & 0xff) + 29 * (v & 0xff) + 128) >> 8;
+                    b[p + x] = (byte) (translucent ? mul8(v >>> 24, gray) : gray);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unsupported type " + out.type);
+        }
+    }
+
+    /**
+     * a * v / 255 arrondi, comme mul8table de Java2D
+     */
+    private static int mul8(final int a, final int v) {
+        // Le produit depasse 2^31 : decalage non signe
+        return (a * v * 0x010101 + 0x800000) >>> 24;
+    }
+
+    /**
+     * Pixel ARGB compose sur du noir (SrcOver), l'alpha n'est plus significatif
+     */
+    private static int overBlack(final int argb) {
+        final int a = argb >>> 24;
+        if (a == 0xff) {
+            return argb;
+        }
+        return (mul8(a, (argb >> 16) & 0xff) << 16) | (mul8(a, (argb >> 8) & 0xff) << 8) | mul8(a, argb & 0xff);
+    }
+
+    private PixelConverter() {
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jocl.cl_event;
+
+/**
+ * Fusion d'operations pixel a pixel en un seul kernel genere.
+ *
+ * Une etape est le corps d'une fonction OpenCL qui modifie la couleur
+ * "float4 col" (rgba entre 0 et 1) et peut utiliser "uv" (coordonnee entre 0
+ * et 1), "xy" (pixel) et ses propres parametres. Les etapes consecutives sont
+ * reunies dans un __kernel qui lit l'image une fois, applique toutes les
+ * etapes en registre et ecrit le resultat une fois, au lieu d'un aller-retour
+ * en memoire globale par etape. Chaque combinaison est compilee une fois par
+ * createKernelsFromSource (et gardee dans le ProgramCache).
+ *
+ * <pre>
+ * Stage gain = new Stage("gain", "col.xyz *= k;", "float k");
+ * Stage invert = new Stage("invert", "col.xyz = 1.f - col.xyz;");
+ * PointwiseFusion.run(in, out, event, Arrays.asList(gain, invert), 1.2f);
+ * </pre>
+ *
+ * Les kernels generes ont besoin d'un device : sans device run() renvoie
+ * false.
+ *
+ * @author durands
+ */
+public class PointwiseFusion {
+
+    private static final Logger LOGGER = Logger.getLogger(PointwiseFusion.class.getName());
+
+    /**
+     * Operation pixel a pixel
+     */
+    public static class Stage {
+
+        final String name;
+        final String body;
+        final String[] params;
+        final String[] paramNames;
+        private final int hash;
+
+        /**
+         * @param name identifiant OpenCL de l'etape
+         * @param body instructions qui modifient col
+         * @param params declarations des parametres ("float k", "float4
+         * tint"...)
+         */
+        public Stage(final String name, final String body, final String... params) {
+            if (!name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid stage name " + name);
+            }
+            this.name = name;
+            this.body = body;
+            this.params = params.clone();
+            this.paramNames = new String[params.length];
+            for (int i = 0; i < params.length; i++) {
+                final String[] tokens = params[i].trim().split("[\\s*]+");
+                paramNames[i] = tokens[tokens.length - 1];
+            }
+            this.hash = Objects.hash(name, body, Arrays.hashCode(this.params));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Deux etapes egales donnent le meme source (cle de compiled)
+         */
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Stage)) {
+                return false;
+            }
+            final Stage other = (Stage) obj;
+            return hash == other.hash && name.equals(other.name) && body.equals(other.body) && Arrays.equals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        public int getParamCount() {
+            return params.length;
+        }
+    }
+
+    // Etapes => nom du kernel compile (le source n'est genere qu'a la compilation)
+    private static final Map<List<Stage>, String> compiled = new ConcurrentHashMap<>();
+    // Etapes dont la compilation a echoue, pour ne pas recompiler a chaque appel
+    private static final Set<List<Stage>> failed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Source OpenCL du kernel qui applique les etapes dans l'ordre
+     *
+     * @param kernelName
+     * @param stages
+     * @return
+     */
+    public static String generateSource(final String kernelName, final List<Stage> stages) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("const sampler_t fusion_sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;\n\n");
+        for (int s = 0; s < stages.size(); s++) {
+            final Stage stage = stages.get(s);
+            sb.append("inline float4 ").append(stage.name).append("_").append(s).append("(float4 col, const float2 uv, const int2 xy");
+            for (String p : stage.params) {
+                sb.append(", ").append(p);
+            }
+            sb.append(") {\n    ").append(stage.body).append("\n    return col;\n}\n\n");
+        }
+        sb.append("__kernel void ").append(kernelName).append("(read_only image2d_t input, write_only image2d_t output");
+        for (int s = 0; s < stages.size(); s++) {
+            final Stage stage = stages.get(s);
+            for (int i = 0; i < stage.params.length; i++) {
+                // Parametres renommes pour que deux etapes puissent avoir le meme
+                final String p = stage.params[i].trim();
+                sb.append(", ").append(p, 0, p.length() - stage.paramNames[i].length()).append("s").append(s).append("_").append(stage.paramNames[i]);
+            }
+        }
+        sb.append(") {\n");
+        sb.append("    const int2 xy = (int2)(get_global_id(0), get_global_id(1)), res = get_image_dim(output);\n");
+        sb.append("    if (xy.x >= res.x || xy.y >= res.y) return;\n");
+        sb.append("    const float2 uv = convert_float2(xy) / convert_float2(res);\n");
+        // Les images ARGB sont stockees en bgra
+        sb.append("    float4 col = read_imagef(input, fusion_sampler, xy).zyxw;\n");
+        for (int s = 0; s < stages.size(); s++) {
+            final Stage stage = stages.get(s);
+            sb.append("    col = ").append(stage.name).append("_").append(s).append("(col, uv, xy");
+            for (String n : stage.paramNames) {
+                sb.append(", s").append(s).append("_").append(n);
+            }
+            sb.append(");\n");
+        }
+        sb.append("    write_imagef(output, xy, col.zyxw);\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Compile (une seule fois) le kernel qui fusionne les etapes
+     *
+     * @param stages
+     * @return le nom du kernel, null en cas d'erreur (deja signalee) ou sans
+     * device
+     */
+    public static String getKernelName(final List<Stage> stages) {
+        final String known = compiled.get(stages);
+        if (known != null || failed.contains(stages)) {
+            return known;
+        }
+        if (!OpenCLBase.isDeviceAvailable()) {
+            return null;
+        }
+        synchronized (compiled) {
+            if (compiled.containsKey(stages) || failed.contains(stages)) {
+                return compiled.get(stages);
+            }
+            final String signature = generateSource("fused", stages);
+            final StringBuilder name = new StringBuilder("fused");
+            for (Stage stage : stages) {
+                name.append("_").append(stage.name);
+            }
+            final String kernelName = name.append("_").append(ProgramCache.key(signature, "", "").substring(0, 8)).toString();
+            if (!OpenCLBase.createKernelsFromSource(generateSource(kernelName, stages))) {
+                LOGGER.log(Level.WARNING, "Fusion of {0} failed", kernelName);
+                failed.add(new ArrayList<>(stages));
+                return null;
+            }
+            // Copie : la liste de l'appelant peut changer ensuite
+            compiled.put(new ArrayList<>(stages), kernelName);
+            return kernelName;
+        }
+    }
+
+    /**
+     * Applique les etapes en une seule passe
+     *
+     * @param input
+     * @param output
+     * @param event
+     * @param stages
+     * @param args parametres de toutes les etapes, dans l'ordre
+     * @return
+     */
+    public static boolean run(final ocl_image input, final ocl_image output, final cl_event[][] event, final List<Stage> stages, final Object... args) {
+        int nbParams = 0;
+        for (Stage stage : stages) {
+            nbParams += stage.params.length;
+        }
+        if (args.length != nbParams) {
+            throw new IllegalArgumentException(nbParams + " stage parameter(s) expected, got " + args.length);
+        }
+        final String kernelName = getKernelName(stages);
+        if (kernelName == null) {
+            return false;
+        }
+        final Object[] all = new Object[args.length + 2];
+        all[0] = input;
+        all[1] = output;
+        System.arraycopy(args, 0, all, 2, args.length);
+        return OpenCLBase.runWithArgs(kernelName, new long[]{output.getWidth(), output.getHeight()}, event, all);
+    }
+
+    /**
+     * Le contexte a ete libere (OpenCLBase.releaseAll)
+     */
+    static void reset() {
+        synchronized (compiled) {
+            compiled.clear();
+            failed.clear();
+        }
+    }
+
+    /**
+     * @return nombre de combinaisons compilees
+     */
+    public static int getCompiledCount() {
+        return compiled.size();
+    }
+
+    private PointwiseFusion() {
+    }
+}
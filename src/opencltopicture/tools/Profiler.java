@@ -0,0 +1,277 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_event;
+
+/**
+ * Profilage des commandes OpenCL (CL_QUEUE_PROFILING_ENABLE).
+ *
+ * Pour chaque kernel (par son nom) et chaque type de transfert on garde trois
+ * histogrammes : le temps d'execution sur le device (END - START), la latence
+ * totale depuis la mise en queue (END - QUEUED) et l'attente avant soumission
+ * au device (SUBMIT - QUEUED, le temps passe dans la queue cote hote). Les
+ * mesures sont lues dans un callback CL_COMPLETE pour ne jamais bloquer
+ * l'appelant.
+ *
+ * Active par la propriete systeme "opencltopicture.profiling=true" ou par
+ * setEnabled(true), avant le premier appel a OpenCLBase.opencl_init(). La
+ * propriete "opencltopicture.profiling.period" (en secondes) demarre un
+ * resume periodique dans les logs.
+ *
+ * @author durands
+ */
+public class Profiler {
+
+    private static final Logger LOGGER = Logger.getLogger(Profiler.class.getName());
+
+    // Noms des transferts
+    public static final String READ_IMAGE = "[read_image]";
+    public static final String WRITE_IMAGE = "[write_image]";
+    public static final String READ_BUFFER = "[read_buffer]";
+    public static final String WRITE_BUFFER = "[write_buffer]";
+    public static final String COPY = "[copy]";
+
+    private static volatile boolean enabled = Boolean.getBoolean("opencltopicture.profiling");
+
+    private static final Map<String, LatencyHistogram> execution = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> latency = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> submitWait = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService logger;
+    private static boolean registered = false;
+
+    static {
+        final long period = Long.getLong("opencltopicture.profiling.period", 0L);
+        if (enabled) {
+            registerMBean();
+        }
+        if (enabled && period > 0) {
+            startLogging(period);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Active le profilage. Doit etre appele avant la creation de la queue
+     * (OpenCLBase.opencl_init) pour que les evenements portent les temps.
+     *
+     * @param enable
+     */
+    public static synchronized void setEnabled(final boolean enable) {
+        enabled = enable;
+        if (enable) {
+            registerMBean();
+        }
+    }
+
+    /**
+     * Cree l'evenement a passer a une commande pour la mesurer
+     *
+     * @return null si le profilage est desactive
+     */
+    static cl_event event() {
+        return enabled ? new cl_event() : null;
+    }
+
+    /**
+     * Enregistre les temps de l'evenement une fois la commande terminee.
+     * L'evenement reste utilisable par l'appelant.
+     *
+     * @param name nom du kernel ou du transfert
+     * @param evt peut etre null
+     */
+    static void record(final String name, final cl_event evt) {
+        if (!enabled || evt == null) {
+            return;
+        }
+        try {
+            CL.clRetainEvent(evt);
+            CL.clSetEventCallback(evt, CL.CL_COMPLETE, (cl_event e, int status, Object data) -> {
+                try {
+                    if (status == CL.CL_COMPLETE) {
+                        final long queued = getTime(e, CL.CL_PROFILING_COMMAND_QUEUED),
+                                submit = getTime(e, CL.CL_PROFILING_COMMAND_SUBMIT),
+                                start = getTime(e, CL.CL_PROFILING_COMMAND_START),
+                                end = getTime(e, CL.CL_PROFILING_COMMAND_END);
+                        execution.computeIfAbsent(name, k -> new LatencyHistogram()).record(end - start);
+                        latency.computeIfAbsent(name, k -> new LatencyHistogram()).record(end - queued);
+                        submitWait.computeIfAbsent(name, k -> new LatencyHistogram()).record(submit - queued);
+                    }
+                } catch (CLException ex) {
+                    // Queue creee sans CL_QUEUE_PROFILING_ENABLE
+                } finally {
+                    CL.clReleaseEvent(e);
+                }
+            }, null);
+        } catch (CLException e) {
+            LOGGER.log(Level.FINE, "Profiler: {0}", e.getMessage());
+        }
+    }
+
+    /**
+     * Enregistre puis libere un evenement cree par event()
+     *
+     * @param name
+     * @param evt
+     */
+    static void done(final String name, final cl_event evt) {
+        if (evt != null) {
+            record(name, evt);
+            CL.clReleaseEvent(evt);
+        }
+    }
+
+    static long getTime(final cl_event evt, final int param) {
+        final long[] value = {0};
+        CL.clGetEventProfilingInfo(evt, param, Sizeof.cl_ulong, Pointer.to(value), null);
+        return value[0];
+    }
+
+    /**
+     * Histogramme du temps d'execution sur le device
+     *
+     * @param name
+     * @return null si rien n'a ete mesure
+     */
+    public static LatencyHistogram getExecution(final String name) {
+        return execution.get(name);
+    }
+
+    /**
+     * Histogramme de la latence depuis la mise en queue
+     *
+     * @param name
+     * @return null si rien n'a ete mesure
+     */
+    public static LatencyHistogram getLatency(final String name) {
+        return latency.get(name);
+    }
+
+    /**
+     * Histogramme de l'attente entre la mise en queue et la soumission
+     *
+     * @param name
+     * @return null si rien n'a ete mesure
+     */
+    public static LatencyHistogram getSubmitWait(final String name) {
+        return submitWait.get(name);
+    }
+
+    public static String getSummary() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(execution).entrySet()) {
+            sb.append(e.getKey()).append(" exec: ").append(e.getValue());
+            final LatencyHistogram l = latency.get(e.getKey());
+            if (l != null) {
+                sb.append(" | latency p50=").append(String.format("%.1fus", l.getPercentile(50) * 1e-3))
+                        .append(" p99=").append(String.format("%.1fus", l.getPercentile(99) * 1e-3));
+            }
+            final LatencyHistogram w = submitWait.get(e.getKey());
+            if (w != null) {
+                sb.append(" | submit wait p50=").append(String.format("%.1fus", w.getPercentile(50) * 1e-3))
+                        .append(" p99=").append(String.format("%.1fus", w.getPercentile(99) * 1e-3));
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    public static void reset() {
+        execution.clear();
+        latency.clear();
+        submitWait.clear();
+    }
+
+    /**
+     * Ecrit periodiquement le resume dans les logs
+     *
+     * @param periodSeconds
+     */
+    public static synchronized void startLogging(final long periodSeconds) {
+        stopLogging();
+        logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "opencl-profiler");
+            t.setDaemon(true);
+            return t;
+        });
+        logger.scheduleAtFixedRate(() -> {
+            if (!execution.isEmpty()) {
+                LOGGER.info("OpenCL profile:" + System.lineSeparator() + getSummary());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdown();
+            logger = null;
+        }
+    }
+
+    private static void registerMBean() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("opencltopicture:type=Profiler"));
+            registered = true;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Profiler MBean: {0}", e.getMessage());
+        }
+    }
+
+    private static class Bean implements ProfilerMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return Profiler.isEnabled();
+        }
+
+        @Override
+        public String getSummary() {
+            return Profiler.getSummary();
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            final Map<String, Long> counts = new TreeMap<>();
+            execution.forEach((k, v) -> counts.put(k, v.getCount()));
+            return counts;
+        }
+
+        @Override
+        public double getPercentileMicros(final String name, final double percentile) {
+            final LatencyHistogram h = execution.get(name);
+            return h == null ? 0 : h.getPercentile(percentile) * 1e-3;
+        }
+
+        @Override
+        public void reset() {
+            Profiler.reset();
+        }
+    }
+
+    private Profiler() {
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.Map;
+
+/**
+ * Vue JMX du Profiler (opencltopicture:type=Profiler)
+ *
+ * @author durands
+ */
+public interface ProfilerMXBean {
+
+    boolean isEnabled();
+
+    /**
+     * Resume de tous les histogrammes, une ligne par kernel ou transfert
+     */
+    String getSummary();
+
+    /**
+     * Nombre de mesures par kernel ou transfert
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * Percentile (en microsecondes) du temps d'execution sur le device
+     */
+    double getPercentileMicros(String name, double percentile);
+
+    void reset();
+}
@@ -0,0 +1,264 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache disque des binaires de programmes OpenCL.
+ *
+ * Une entree est identifiee par un hash (SHA-256) du source, des options de
+ * compilation et de l'identite du device (nom, vendeur, version du driver).
+ * Le repertoire peut etre change par la propriete systeme
+ * "opencltopicture.cache.dir" et le cache desactive par
+ * "opencltopicture.cache.disabled=true".
+ *
+ * Les infos sur les arguments des kernels (-cl-kernel-arg-info) ne survivent
+ * pas a clCreateProgramWithBinary : elles sont gardees dans l'entree, a cote
+ * du binaire (voir KernelInvocation).
+ *
+ * @author durands
+ */
+public class ProgramCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ProgramCache.class.getName());
+
+    private static final int MAGIC = 0x4F434C42; // "OCLB"
+    private static final int VERSION = 2;
+
+    private static final File CACHE_DIR = new File(System.getProperty("opencltopicture.cache.dir",
+            System.getProperty("user.home") + File.separator + ".opencltopicture" + File.separator + "cache"));
+
+    private static final boolean DISABLED = Boolean.getBoolean("opencltopicture.cache.disabled");
+
+    // Statistiques de demarrage
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    private static final AtomicInteger rejected = new AtomicInteger();
+    private static final AtomicLong compileNanos = new AtomicLong();
+    private static final AtomicLong savedNanos = new AtomicLong();
+
+    /**
+     * Une entree lue sur disque: le binaire, les signatures de ses kernels
+     * et le temps qu'avait pris la compilation depuis le source
+     */
+    static class Entry {
+
+        final byte[] binary;
+        final byte[] argInfo;
+        final long compileNanos;
+
+        Entry(byte[] binary, byte[] argInfo, long compileNanos) {
+            this.binary = binary;
+            this.argInfo = argInfo;
+            this.compileNanos = compileNanos;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return !DISABLED;
+    }
+
+    public static File getCacheDir() {
+        return CACHE_DIR;
+    }
+
+    /**
+     * Calcule la cle d'une entree du cache
+     *
+     * @param source
+     * @param options options completes passees a clBuildProgram
+     * @param deviceIdentity voir OpenCLBase.getDeviceIdentity()
+     * @return
+     */
+    static String key(final String source, final String options, final String deviceIdentity) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(source.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update((options == null ? "" : options).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(deviceIdentity.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 est garanti par la JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File fileFor(final String key) {
+        return new File(CACHE_DIR, key + ".bin");
+    }
+
+    static Entry load(final String key) {
+        if (DISABLED) {
+            return null;
+        }
+        final File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            final long nanos = in.readLong();
+            final byte[] binary = new byte[readLength(in, file)];
+            in.readFully(binary);
+            final byte[] argInfo = new byte[readLength(in, file)];
+            in.readFully(argInfo);
+            return new Entry(binary, argInfo, nanos);
+        } catch (IOException | RuntimeException e) {
+            // Entree tronquee ou corrompue : supprimee, le programme sera recompile
+            LOGGER.log(Level.WARNING, "Entree de cache illisible: {0}", file);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Longueur lue dans une entree, verifiee avant d'allouer
+     */
+    private static int readLength(final DataInputStream in, final File file) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > file.length()) {
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * @param key
+     * @param binary
+     * @param argInfo voir KernelInvocation.encodeArgInfo (peut etre null)
+     * @param nanos temps de compilation
+     */
+    static void store(final String key, final byte[] binary, final byte[] argInfo, final long nanos) {
+        if (DISABLED || binary == null || binary.length == 0) {
+            return;
+        }
+        if (!CACHE_DIR.isDirectory() && !CACHE_DIR.mkdirs()) {
+            LOGGER.log(Level.WARNING, "Impossible de creer le cache: {0}", CACHE_DIR);
+            return;
+        }
+        // Ecriture dans un fichier temporaire puis renommage pour ne jamais laisser d'entree partielle
+        final File file = fileFor(key);
+        final File tmp = new File(CACHE_DIR, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nanos);
+            out.writeInt(binary.length);
+            out.write(binary);
+            out.writeInt(argInfo == null ? 0 : argInfo.length);
+            if (argInfo != null) {
+                out.write(argInfo);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Ecriture du cache impossible: {0}", file);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Supprime une entree rejetee par le driver
+     *
+     * @param key
+     */
+    static void invalidate(final String key) {
+        rejected.incrementAndGet();
+        fileFor(key).delete();
+    }
+
+    static void recordHit(final long nanosLoad, final long nanosCompile) {
+        hits.incrementAndGet();
+        savedNanos.addAndGet(Math.max(0, nanosCompile - nanosLoad));
+    }
+
+    static void recordMiss(final long nanosCompile) {
+        misses.incrementAndGet();
+        compileNanos.addAndGet(nanosCompile);
+    }
+
+    public static int getHits() {
+        return hits.get();
+    }
+
+    public static int getMisses() {
+        return misses.get();
+    }
+
+    public static int getRejected() {
+        return rejected.get();
+    }
+
+    public static double getCompileTimeInSeconds() {
+        return compileNanos.get() * 1.0e-9;
+    }
+
+    public static double getSavedTimeInSeconds() {
+        return savedNanos.get() * 1.0e-9;
+    }
+
+    /**
+     * Resume des metriques du cache (hit/miss et temps de compilation gagne)
+     *
+     * @return
+     */
+    public static String getSummary() {
+        return String.format("program cache: %d hit(s), %d miss(es), %d rejected, compile %.3f s, saved %.3f s",
+                getHits(), getMisses(), getRejected(), getCompileTimeInSeconds(), getSavedTimeInSeconds());
+    }
+
+    /**
+     * Remet les compteurs a zero
+     */
+    public static void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        rejected.set(0);
+        compileNanos.set(0);
+        savedNanos.set(0);
+    }
+
+    /**
+     * Vide le cache disque
+     */
+    public static void clear() {
+        final File[] files = CACHE_DIR.listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    private ProgramCache() {
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.cl_event;
+
+/**
+ * Image brute (RGBA, float...) dans un fichier projete en memoire, avec un
+ * petit en-tete. Les pixels sont passes directement a clEnqueueWriteImage /
+ * clEnqueueReadImage (Pointer.toBuffer sur la projection) : fichier vers
+ * device et device vers fichier sans tableau Java intermediaire.
+ *
+ * En-tete de HEADER_BYTES octets, en big endian : "OCLF", version, ordre des
+ * octets des pixels (0 little endian, 1 big endian), largeur, hauteur,
+ * channel order et data type OpenCL, taille d'un element. Les pixels suivent,
+ * ligne par ligne, tels qu'ils sont dans la memoire du device.
+ *
+ * @author durands
+ */
+public class RawFrameFile implements Closeable {
+
+    public static final int MAGIC = 0x4F434C46; // "OCLF"
+    public static final int VERSION = 1;
+    // En-tete aligne pour que les pixels le soient aussi
+    public static final int HEADER_BYTES = 64;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer mapped;
+    private final boolean writable;
+    private final int w, h;
+    private final int channelOrder, dataType, elementSize;
+
+    private RawFrameFile(final File f, final boolean writable, final int w, final int h, final int channelOrder, final int dataType) throws IOException {
+        this.writable = writable;
+        this.file = new RandomAccessFile(f, writable ? "rw" : "r");
+        try {
+            if (writable) {
+                this.w = w;
+                this.h = h;
+                this.channelOrder = channelOrder;
+                this.dataType = dataType;
+                this.elementSize = Images2D.elementSizeOf(channelOrder, dataType);
+                if (elementSize == 0) {
+                    throw new IOException("Unsupported element format: " + CL.stringFor_cl_channel_order(channelOrder)
+                            + " / " + CL.stringFor_cl_channel_type(dataType));
+                }
+                final long length = HEADER_BYTES + dataBytes();
+                checkLength(length);
+                file.setLength(length);
+                mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                mapped.putInt(MAGIC).putInt(VERSION).putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0)
+                        .putInt(w).putInt(h).putInt(channelOrder).putInt(dataType).putInt(elementSize);
+            } else {
+                final ByteBuffer header = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(file.length(), HEADER_BYTES));
+                if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                    throw new IOException(f + " is not a raw frame file");
+                }
+                final int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException(f + ": unsupported version " + version);
+                }
+                final ByteOrder order = header.getInt() == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                if (order != ByteOrder.nativeOrder()) {
+                    throw new IOException(f + ": pixels written in " + order + ", this machine is " + ByteOrder.nativeOrder());
+                }
+                this.w = header.getInt();
+                this.h = header.getInt();
+                this.channelOrder = header.getInt();
+                this.dataType = header.getInt();
+                this.elementSize = header.getInt();
+                if (elementSize == 0 || elementSize != Images2D.elementSizeOf(this.channelOrder, this.dataType)) {
+                    throw new IOException(f + ": inconsistent element size " + elementSize);
+                }
+                final long length = HEADER_BYTES + dataBytes();
+                checkLength(length);
+                if (file.length() < length) {
+                    throw new IOException(f + " is truncated");
+                }
+                mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static void checkLength(final long length) throws IOException {
+        // Une seule projection par image
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Frame of " + length + " bytes too large to be mapped, see TiledProcessor / MappedVolume");
+        }
+    }
+
+    /**
+     * Cree (ou ecrase) un fichier pour une image de ce format
+     */
+    public static RawFrameFile create(final File f, final int w, final int h, final int channelOrder, final int dataType) throws IOException {
+        return new RawFrameFile(f, true, w, h, channelOrder, dataType);
+    }
+
+    /**
+     * Ouvre un fichier existant en lecture seule
+     */
+    public static RawFrameFile open(final File f) throws IOException {
+        return new RawFrameFile(f, false, 0, 0, 0, 0);
+    }
+
+    /**
+     * Ecrit une image du device dans un nouveau fichier
+     *
+     * @param f
+     * @param img image 2D
+     * @param event evenements a attendre (peut etre null)
+     * @throws IOException
+     */
+    public static void write(final File f, final ocl_image img, final cl_event[] event) throws IOException {
+        try (RawFrameFile frame = create(f, img.getWidth(), img.getHeight(),
+                img.image_format.image_channel_order, img.image_format.image_channel_data_type)) {
+            if (!frame.download(img, event)) {
+                throw new IOException("Cannot read back the image into " + f);
+            }
+        }
+    }
+
+    private long dataBytes() {
+        return (long) w * h * elementSize;
+    }
+
+    /**
+     * @return les pixels (vue propre a l'appel, en ordre natif)
+     */
+    public ByteBuffer getData() {
+        final ByteBuffer view = mapped.duplicate();
+        view.position(HEADER_BYTES).limit(HEADER_BYTES + (int) dataBytes());
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static boolean sameFormat(final ocl_image img, final int channelOrder, final int dataType) {
+        return img.image_format.image_channel_order == channelOrder && img.image_format.image_channel_data_type == dataType;
+    }
+
+    /**
+     * Nouvelle image du device remplie avec les pixels du fichier
+     *
+     * @param flags
+     * @return null si l'image n'a pas pu etre creee
+     */
+    public ocl_image toImage(final long flags) {
+        final ocl_image img = new ocl_image(flags, dataType, channelOrder, w, h, null);
+        if (img.getMem() == null && img.getHostPixels() == null) {
+            return null;
+        }
+        if (!upload(img)) {
+            img.release();
+            return null;
+        }
+        return img;
+    }
+
+    /**
+     * Envoie les pixels dans une image existante de meme taille et meme format
+     * (bloquant : le fichier peut etre ferme au retour)
+     *
+     * @param img
+     * @return false si l'image ne correspond pas
+     */
+    public boolean upload(final ocl_image img) {
+        if (img.getWidth() != w || img.getHeight() != h) {
+            return false;
+        }
+        if (img.getHostPixels() != null) {
+            // Sans device : seules les images ARGB existent
+            if (channelOrder != CL.CL_RGBA || dataType != CL.CL_UNSIGNED_INT8) {
+                return false;
+            }
+            getData().asIntBuffer().get(img.getHostPixels());
+            return true;
+        }
+        if (!sameFormat(img, channelOrder, dataType)) {
+            return false;
+        }
+        final int err = OpenCLBase.clEnqueueWriteImage(img.getMem(), true, new long[]{0, 0, 0}, new long[]{w, h, 1},
+                (long) w * elementSize, 0, Pointer.toBuffer(getData()), 0, null, null);
+        return !OpenCLBase.checkError(err);
+    }
+
+    /**
+     * Relit une image du device (meme taille, meme format) dans le fichier
+     *
+     * @param img
+     * @param event evenements a attendre (peut etre null)
+     * @return false si l'image ne correspond pas ou en cas d'erreur
+     */
+    public boolean download(final ocl_image img, final cl_event[] event) {
+        if (!writable || img.getWidth() != w || img.getHeight() != h) {
+            return false;
+        }
+        if (img.getHostPixels() != null) {
+            if (channelOrder != CL.CL_RGBA || dataType != CL.CL_UNSIGNED_INT8) {
+                return false;
+            }
+            final IntBuffer dst = getData().asIntBuffer();
+            dst.put(img.getHostPixels());
+            return true;
+        }
+        if (!sameFormat(img, channelOrder, dataType)) {
+            return false;
+        }
+        final int err = OpenCLBase.clEnqueueReadImage(img.getMem(), true, new long[]{0, 0, 0}, new long[]{w, h, 1},
+                (long) w * elementSize, 0, Pointer.toBuffer(getData()), event == null ? 0 : event.length, event, null);
+        return !OpenCLBase.checkError(err);
+    }
+
+    /**
+     * Envoie les pixels au debut d'un buffer du device (w x h elements)
+     */
+    public boolean upload(final ocl_buffer buff) {
+        return !OpenCLBase.checkError(OpenCLBase.copy_to_buf(getData(), buff.mem));
+    }
+
+    /**
+     * Relit le debut d'un buffer du device dans le fichier
+     */
+    public boolean download(final ocl_buffer buff, final cl_event[] event) {
+        return writable && !OpenCLBase.query_buffer(buff, getData(), event);
+    }
+
+    public int getWidth() {
+        return w;
+    }
+
+    public int getHeight() {
+        return h;
+    }
+
+    public int getChannelOrder() {
+        return channelOrder;
+    }
+
+    public int getDataType() {
+        return dataType;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writable) {
+            mapped.force();
+        }
+        file.close();
+    }
+}
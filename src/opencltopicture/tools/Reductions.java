@@ -0,0 +1,407 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jocl.CL;
+import org.jocl.cl_event;
+
+/**
+ * Reductions sur le device : min, max, somme, moyenne, variance et
+ * histogramme d'une image ou d'un buffer de float, sans relire les donnees.
+ *
+ * Chaque work-item accumule une partie des valeurs, les resultats sont
+ * reduits en memoire locale dans chaque work-group puis un dernier
+ * work-group reduit les resultats des groupes : seuls 32 octets sont relus
+ * (bins x 4 octets pour un histogramme). Moyenne et variance sont combinees
+ * par la formule de Chan, plus stable qu'une somme des carres.
+ *
+ * Pour une image le canal est la composante OpenCL (x, y, z, w) : les images
+ * ARGB sont stockees en bgra, le rouge est donc le canal 2. Les images
+ * UNSIGNED_INT8/16 sont ramenees entre 0 et 1 comme par read_imagef. Sans
+ * device, seules les images ARGB des kernels Java sont reduites (en Java).
+ *
+ * @author durands
+ */
+public class Reductions {
+
+    private static final Logger LOGGER = Logger.getLogger(Reductions.class.getName());
+
+    // Au dela, l'histogramme est accumule directement en memoire globale
+    public static final int HIST_LOCAL_BINS = 4096;
+
+    /**
+     * Resultat de stats()
+     */
+    public static class Stats {
+
+        private final long count;
+        private final double min, max, mean, variance;
+
+        Stats(final long count, final double min, final double max, final double mean, final double variance) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.variance = variance;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getSum() {
+            return mean * count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return variance de la population (divisee par le nombre de
+         * valeurs)
+         */
+        public double getVariance() {
+            return variance;
+        }
+
+        public double getStdDev() {
+            return Math.sqrt(variance);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d min=%g max=%g mean=%g stddev=%g", count, min, max, mean, getStdDev());
+        }
+    }
+
+    private static final String COMMON_SOURCE
+            = "#define HIST_LOCAL_BINS " + HIST_LOCAL_BINS + "\n"
+            + "#define RED_EMPTY (float8)(INFINITY, -INFINITY, 0.f, 0.f, 0.f, 0.f, 0.f, 0.f)\n"
+            + "const sampler_t red_sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;\n\n"
+            // s0 min, s1 max, s2 nombre, s3 moyenne, s4 somme des carres des ecarts a la moyenne
+            + "inline float8 red_add(float8 a, const float v) {\n"
+            + "    a.s0 = fmin(a.s0, v);\n"
+            + "    a.s1 = fmax(a.s1, v);\n"
+            + "    a.s2 += 1.f;\n"
+            + "    const float d = v - a.s3;\n"
+            + "    a.s3 += d / a.s2;\n"
+            + "    a.s4 += d * (v - a.s3);\n"
+            + "    return a;\n"
+            + "}\n\n"
+            + "inline float8 red_merge(const float8 a, const float8 b) {\n"
+            + "    if (a.s2 == 0.f) return b;\n"
+            + "    if (b.s2 == 0.f) return a;\n"
+            + "    const float n = a.s2 + b.s2, d = b.s3 - a.s3;\n"
+            + "    return (float8)(fmin(a.s0, b.s0), fmax(a.s1, b.s1), n, a.s3 + d * (b.s2 / n),\n"
+            + "                    a.s4 + b.s4 + d * d * (a.s2 / n) * b.s2, 0.f, 0.f, 0.f);\n"
+            + "}\n\n"
+            + "inline float8 red_group(const float8 acc, __local float8* tmp) {\n"
+            + "    const int lid = get_local_id(0);\n"
+            + "    tmp[lid] = acc;\n"
+            + "    barrier(CLK_LOCAL_MEM_FENCE);\n"
+            + "    for (int s = RED_GROUP / 2; s > 0; s >>= 1) {\n"
+            + "        if (lid < s) tmp[lid] = red_merge(tmp[lid], tmp[lid + s]);\n"
+            + "        barrier(CLK_LOCAL_MEM_FENCE);\n"
+            + "    }\n"
+            + "    return tmp[0];\n"
+            + "}\n\n"
+            + "inline float red_channel(const float4 c, const int channel) {\n"
+            + "    return channel == 0 ? c.x : (channel == 1 ? c.y : (channel == 2 ? c.z : c.w));\n"
+            + "}\n\n"
+            // Valeurs hors de [lo, hi] et NaN ignorees, hi compte dans le dernier bin
+            + "inline int hist_bin(const float v, const float lo, const float scale, const int bins) {\n"
+            + "    const float f = (v - lo) * scale;\n"
+            + "    if (!(f >= 0.f && f <= bins)) return -1;\n"
+            + "    return min((int) f, bins - 1);\n"
+            + "}\n\n"
+            + "__kernel void reduce_stats_final(__global const float8* partials, const int count, __global float8* result) {\n"
+            + "    __local float8 tmp[RED_GROUP];\n"
+            + "    float8 acc = RED_EMPTY;\n"
+            + "    for (int i = get_local_id(0); i < count; i += RED_GROUP) acc = red_merge(acc, partials[i]);\n"
+            + "    acc = red_group(acc, tmp);\n"
+            + "    if (get_local_id(0) == 0) result[0] = acc;\n"
+            + "}\n\n";
+
+    /**
+     * Kernels de statistiques et d'histogramme pour une source de valeurs
+     *
+     * @param suffix
+     * @param params parametres qui decrivent la source
+     * @param fetch expression de la valeur d'indice i
+     */
+    private static String generateSource(final String suffix, final String params, final String fetch) {
+        return "__kernel void reduce_stats_" + suffix + "(" + params + ", const int n, __global float8* partials) {\n"
+                + "    __local float8 tmp[RED_GROUP];\n"
+                + "    float8 acc = RED_EMPTY;\n"
+                + "    for (int i = get_global_id(0); i < n; i += get_global_size(0)) acc = red_add(acc, " + fetch + ");\n"
+                + "    acc = red_group(acc, tmp);\n"
+                + "    if (get_local_id(0) == 0) partials[get_group_id(0)] = acc;\n"
+                + "}\n\n"
+                + "__kernel void reduce_histogram_" + suffix + "(" + params + ", const int n, const float lo, const float scale, const int bins, __global int* hist) {\n"
+                + "    __local int lh[HIST_LOCAL_BINS];\n"
+                + "    const bool useLocal = bins <= HIST_LOCAL_BINS;\n"
+                + "    if (useLocal) for (int b = get_local_id(0); b < bins; b += get_local_size(0)) lh[b] = 0;\n"
+                + "    barrier(CLK_LOCAL_MEM_FENCE);\n"
+                + "    for (int i = get_global_id(0); i < n; i += get_global_size(0)) {\n"
+                + "        const int b = hist_bin(" + fetch + ", lo, scale, bins);\n"
+                + "        if (b >= 0) {\n"
+                + "            if (useLocal) atomic_inc(&lh[b]); else atomic_inc(&hist[b]);\n"
+                + "        }\n"
+                + "    }\n"
+                + "    barrier(CLK_LOCAL_MEM_FENCE);\n"
+                + "    if (useLocal) for (int b = get_local_id(0); b < bins; b += get_local_size(0)) {\n"
+                + "        if (lh[b] != 0) atomic_add(&hist[b], lh[b]);\n"
+                + "    }\n"
+                + "}\n\n";
+    }
+
+    private static final String BUFFER = "buffer", IMAGE = "image", IMAGE_UI = "image_ui";
+
+    // Taille des work-groups, 0 tant que les kernels ne sont pas compiles
+    private static int groupSize;
+
+    /**
+     * Compile les kernels au premier appel
+     *
+     * @return false sans device ou en cas d'erreur
+     */
+    private static synchronized boolean ensureKernels() {
+        if (groupSize > 0) {
+            return true;
+        }
+        if (!OpenCLBase.isDeviceAvailable()) {
+            return false;
+        }
+        // Puissance de 2 pour la reduction en arbre
+        final long max = Math.min(256, OpenCLBase.getDeviceLong(CL.CL_DEVICE_MAX_WORK_GROUP_SIZE));
+        final int size = Integer.highestOneBit((int) Math.max(1, max));
+        final String source = "#define RED_GROUP " + size + "\n" + COMMON_SOURCE
+                + generateSource(BUFFER, "__global const float* data, const int w, const int channel, const float unused", "data[i]")
+                + generateSource(IMAGE, "read_only image2d_t img, const int w, const int channel, const float unused",
+                        "red_channel(read_imagef(img, red_sampler, (int2)(i % w, i / w)), channel)")
+                + generateSource(IMAGE_UI, "read_only image2d_t img, const int w, const int channel, const float scale",
+                        "red_channel(convert_float4(read_imageui(img, red_sampler, (int2)(i % w, i / w))), channel) * scale");
+        if (!OpenCLBase.createKernelsFromSource(source)) {
+            LOGGER.log(Level.WARNING, "Reduction kernels cannot be built");
+            return false;
+        }
+        groupSize = size;
+        return true;
+    }
+
+    /**
+     * Le contexte a ete libere (OpenCLBase.releaseAll)
+     */
+    static synchronized void reset() {
+        groupSize = 0;
+    }
+
+    /**
+     * Nombre de work-groups du premier passage (le dernier groupe en reduit
+     * au plus quelques uns par work-item)
+     */
+    private static int groupCount(final long n) {
+        return (int) Math.max(1, Math.min((n + groupSize - 1) / groupSize, 4L * groupSize));
+    }
+
+    /**
+     * @return suffixe des kernels pour ce format d'image, null s'il n'est pas
+     * gere
+     */
+    private static String suffixOf(final ocl_image img) {
+        switch (img.image_format.image_channel_data_type) {
+            case CL.CL_UNSIGNED_INT8:
+            case CL.CL_UNSIGNED_INT16:
+                return IMAGE_UI;
+            case CL.CL_SIGNED_INT8:
+            case CL.CL_SIGNED_INT16:
+            case CL.CL_SIGNED_INT32:
+            case CL.CL_UNSIGNED_INT32:
+                return null;
+            default:
+                return IMAGE;
+        }
+    }
+
+    private static float scaleOf(final ocl_image img) {
+        return img.image_format.image_channel_data_type == CL.CL_UNSIGNED_INT16 ? 1.f / 65535.f : 1.f / 255.f;
+    }
+
+    /**
+     * Statistiques du canal 0 d'une image
+     */
+    public static Stats stats(final ocl_image img, final cl_event[] event) {
+        return stats(img, 0, event);
+    }
+
+    /**
+     * Statistiques d'un canal d'une image 2D
+     *
+     * @param img
+     * @param channel 0 a 3 (x, y, z, w)
+     * @param event evenements a attendre (peut etre null)
+     * @return null si le format n'est pas gere ou en cas d'erreur
+     */
+    public static Stats stats(final ocl_image img, final int channel, final cl_event[] event) {
+        if (img.getHostPixels() != null) {
+            return hostStats(img.getHostPixels(), channel);
+        }
+        final String suffix = suffixOf(img);
+        if (suffix == null || !ensureKernels()) {
+            return null;
+        }
+        return reduce(suffix, (long) img.getWidth() * img.getHeight(), event, img, img.getWidth(), channel, scaleOf(img));
+    }
+
+    /**
+     * Statistiques d'un buffer de float
+     *
+     * @param buff
+     * @param event evenements a attendre (peut etre null)
+     * @return null sans device ou en cas d'erreur
+     */
+    public static Stats stats(final ocl_buffer buff, final cl_event[] event) {
+        if (!ensureKernels()) {
+            return null;
+        }
+        return reduce(BUFFER, buff.w, event, buff, buff.w, 0, 0.f);
+    }
+
+    private static Stats reduce(final String suffix, final long n, final cl_event[] event, final Object source, final int w, final int channel, final float scale) {
+        if (n == 0 || n > Integer.MAX_VALUE) {
+            return null;
+        }
+        final int groups = groupCount(n);
+        final ocl_buffer partials = new ocl_buffer(8 * groups, CL.CL_MEM_READ_WRITE);
+        final ocl_buffer result = new ocl_buffer(8, CL.CL_MEM_READ_WRITE);
+        // Les evenements de l'appelant restent a lui
+        final cl_event[][] chain = EventManager.fork(new cl_event[][]{event});
+        try {
+            if (!OpenCLBase.runWithArgs("reduce_stats_" + suffix, 1, null, new long[]{(long) groups * groupSize}, new long[]{groupSize}, chain,
+                    source, w, channel, scale, (int) n, partials)
+                    || !OpenCLBase.runWithArgs("reduce_stats_final", 1, null, new long[]{groupSize}, new long[]{groupSize}, chain,
+                            partials, groups, result)) {
+                return null;
+            }
+            final float[] r = OpenCLBase.query_float(result, chain[0]);
+            // Le nombre exact est connu, celui du device est un float
+            return new Stats(n, r[0], r[1], r[3], r[4] / r[2]);
+        } finally {
+            EventManager.release(chain);
+            partials.release();
+            result.release();
+        }
+    }
+
+    /**
+     * Histogramme d'un canal d'une image 2D
+     *
+     * @param img
+     * @param channel 0 a 3 (x, y, z, w)
+     * @param bins nombre d'intervalles entre lo et hi
+     * @param lo
+     * @param hi compte dans le dernier intervalle
+     * @param event evenements a attendre (peut etre null)
+     * @return nombre de valeurs par intervalle (hors [lo, hi] ignorees), null
+     * si le format n'est pas gere ou en cas d'erreur
+     */
+    public static int[] histogram(final ocl_image img, final int channel, final int bins, final float lo, final float hi, final cl_event[] event) {
+        checkRange(bins, lo, hi);
+        if (img.getHostPixels() != null) {
+            return hostHistogram(img.getHostPixels(), channel, bins, lo, hi);
+        }
+        final String suffix = suffixOf(img);
+        if (suffix == null || !ensureKernels()) {
+            return null;
+        }
+        return histogram(suffix, (long) img.getWidth() * img.getHeight(), bins, lo, hi, event, img, img.getWidth(), channel, scaleOf(img));
+    }
+
+    /**
+     * Histogramme d'un buffer de float
+     *
+     * @see #histogram(ocl_image, int, int, float, float, cl_event[])
+     */
+    public static int[] histogram(final ocl_buffer buff, final int bins, final float lo, final float hi, final cl_event[] event) {
+        checkRange(bins, lo, hi);
+        if (!ensureKernels()) {
+            return null;
+        }
+        return histogram(BUFFER, buff.w, bins, lo, hi, event, buff, buff.w, 0, 0.f);
+    }
+
+    private static void checkRange(final int bins, final float lo, final float hi) {
+        if (bins <= 0 || !(hi > lo)) {
+            throw new IllegalArgumentException("Invalid histogram: " + bins + " bins in [" + lo + ", " + hi + "]");
+        }
+    }
+
+    private static int[] histogram(final String suffix, final long n, final int bins, final float lo, final float hi, final cl_event[] event,
+            final Object source, final int w, final int channel, final float scale) {
+        if (n > Integer.MAX_VALUE) {
+            return null;
+        }
+        final ocl_buffer hist = new ocl_buffer(new int[bins], false);
+        final cl_event[][] chain = EventManager.fork(new cl_event[][]{event});
+        try {
+            if (!OpenCLBase.runWithArgs("reduce_histogram_" + suffix, 1, null, new long[]{(long) groupCount(n) * groupSize}, new long[]{groupSize}, chain,
+                    source, w, channel, scale, (int) n, lo, bins / (hi - lo), bins, hist)) {
+                return null;
+            }
+            return OpenCLBase.query_int(hist, chain[0]);
+        } finally {
+            EventManager.release(chain);
+            hist.release();
+        }
+    }
+
+    /**
+     * Valeur d'un canal d'un pixel ARGB, dans l'ordre bgra du device
+     */
+    private static float hostChannel(final int argb, final int channel) {
+        final int shift = channel == 3 ? 24 : 8 * channel;
+        return ((argb >>> shift) & 0xff) / 255.f;
+    }
+
+    private static Stats hostStats(final int[] pixels, final int channel) {
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0, sum2 = 0;
+        for (int p : pixels) {
+            final double v = hostChannel(p, channel);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            sum2 += v * v;
+        }
+        final double mean = sum / pixels.length;
+        return new Stats(pixels.length, min, max, mean, Math.max(0, sum2 / pixels.length - mean * mean));
+    }
+
+    private static int[] hostHistogram(final int[] pixels, final int channel, final int bins, final float lo, final float hi) {
+        final int[] hist = new int[bins];
+        final float scale = bins / (hi - lo);
+        for (int p : pixels) {
+            final float f = (hostChannel(p, channel) - lo) * scale;
+            if (f >= 0.f && f <= bins) {
+                hist[Math.min((int) f, bins - 1)]++;
+            }
+        }
+        return hist;
+    }
+
+    private Reductions() {
+    }
+}
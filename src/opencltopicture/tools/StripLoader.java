@@ -0,0 +1,201 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_event;
+
+/**
+ * Chargement d'une image fichier directement dans une ocl_image RGBA, par
+ * bandes de lignes, sans jamais avoir l'image complete en memoire Java.
+ *
+ * Chaque bande est decodee par l'ImageReader (setSourceRegion) dans une
+ * image reutilisee, convertie en ARGB (PixelConverter) dans un des deux
+ * buffers natifs, puis envoyee avec un clEnqueueWriteImage partiel non
+ * bloquant : le decodage de la bande suivante se fait pendant le transfert.
+ *
+ * Les lecteurs des formats sequentiels (JPEG, PNG) redecodent le fichier
+ * depuis le debut pour chaque bande (n bandes coutent environ (n + 1) / 2
+ * decodages complets) : il vaut mieux des bandes hautes (par defaut
+ * STRIP_BYTES d'ARGB par bande), les formats en bandes ou tuiles (TIFF)
+ * lisent directement la zone demandee.
+ *
+ * @author durands
+ */
+public class StripLoader {
+
+    // Taille par defaut d'une bande ARGB : une image 4096 x 4096 est lue en une
+    // fois, les plus grandes par bandes
+    public static final long STRIP_BYTES = 64L << 20;
+
+    private final ImageReader reader;
+    private final ImageInputStream input;
+    private final int w, h;
+    private final int stripHeight;
+
+    // Bande decodee au format du lecteur, puis en ARGB
+    private final BufferedImage decoded;
+    private final BufferedImage argb;
+
+    private StripLoader(final ImageInputStream input, final int stripHeight) throws IOException {
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No ImageReader for this input");
+        }
+        this.input = input;
+        this.reader = readers.next();
+        reader.setInput(input, true, true);
+        w = reader.getWidth(0);
+        h = reader.getHeight(0);
+        this.stripHeight = Math.max(1, Math.min(h, stripHeight > 0 ? stripHeight : (int) Math.max(1, STRIP_BYTES / ((long) w * Sizeof.cl_uint))));
+        decoded = reader.getImageTypes(0).next().createBufferedImage(w, this.stripHeight);
+        argb = new BufferedImage(w, this.stripHeight, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * @param src image a charger
+     * @return image RGBA (CL_UNSIGNED_INT8) en lecture pour les kernels
+     * @throws IOException
+     */
+    public static ocl_image load(final File src) throws IOException {
+        return load(src, 0);
+    }
+
+    /**
+     * @param src image a charger
+     * @param stripHeight nombre de lignes par bande, 0 pour la valeur par
+     * defaut
+     * @return image RGBA (CL_UNSIGNED_INT8) en lecture pour les kernels
+     * @throws IOException
+     */
+    public static ocl_image load(final File src, final int stripHeight) throws IOException {
+        final ImageInputStream iis = ImageIO.createImageInputStream(src);
+        if (iis == null) {
+            throw new IOException("Cannot open " + src);
+        }
+        return load(iis, stripHeight);
+    }
+
+    /**
+     * @param src image a charger (ressource du classpath...)
+     * @param stripHeight nombre de lignes par bande, 0 pour la valeur par
+     * defaut
+     * @return image RGBA (CL_UNSIGNED_INT8) en lecture pour les kernels
+     * @throws IOException
+     */
+    public static ocl_image load(final URL src, final int stripHeight) throws IOException {
+        try (InputStream in = src.openStream()) {
+            final ImageInputStream iis = ImageIO.createImageInputStream(in);
+            if (iis == null) {
+                throw new IOException("Cannot open " + src);
+            }
+            return load(iis, stripHeight);
+        }
+    }
+
+    private static ocl_image load(final ImageInputStream iis, final int stripHeight) throws IOException {
+        final StripLoader loader = new StripLoader(iis, stripHeight);
+        try {
+            return OpenCLBase.isDeviceAvailable() ? loader.loadToDevice() : loader.loadToHost();
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * Decode les lignes [y, y + rows[ dans argb
+     */
+    private void decodeStrip(final int y, final int rows) throws IOException {
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(decoded);
+        param.setSourceRegion(new Rectangle(0, y, w, rows));
+        reader.read(0, param);
+        PixelConverter.convert(decoded, argb);
+    }
+
+    private ocl_image loadToHost() throws IOException {
+        final ocl_image img = ocl_image.createHostPicture(w, h);
+        final int[] pixels = ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < h; y += stripHeight) {
+            final int rows = Math.min(stripHeight, h - y);
+            decodeStrip(y, rows);
+            System.arraycopy(pixels, 0, img.getHostPixels(), y * w, rows * w);
+        }
+        return img;
+    }
+
+    private ocl_image loadToDevice() throws IOException {
+        final ocl_image img = new ocl_image(CL.CL_MEM_READ_ONLY, CL.CL_UNSIGNED_INT8, CL.CL_RGBA, w, h, null);
+        if (img.getMem() == null) {
+            throw new IOException("Cannot create a " + w + "x" + h + " image on the device");
+        }
+        final int[] pixels = ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+        final IntBuffer[] staging = new IntBuffer[2];
+        final cl_event[] pending = new cl_event[2];
+        boolean done = false;
+        try {
+            int slot = 0;
+            for (int y = 0; y < h; y += stripHeight, slot ^= 1) {
+                final int rows = Math.min(stripHeight, h - y);
+                decodeStrip(y, rows);
+                // Le buffer de cette bande a-t-il fini son transfert precedent ?
+                if (pending[slot] != null) {
+                    CL.clWaitForEvents(1, new cl_event[]{pending[slot]});
+                    CL.clReleaseEvent(pending[slot]);
+                    pending[slot] = null;
+                }
+                if (staging[slot] == null) {
+                    staging[slot] = ByteBuffer.allocateDirect(w * stripHeight * Sizeof.cl_uint).order(ByteOrder.nativeOrder()).asIntBuffer();
+                }
+                staging[slot].clear();
+                staging[slot].put(pixels, 0, rows * w).clear();
+                pending[slot] = new cl_event();
+                final int err = OpenCLBase.clEnqueueWriteImage(img.getMem(), false, new long[]{0, y, 0}, new long[]{w, rows, 1},
+                        (long) w * Sizeof.cl_uint, 0, Pointer.to(staging[slot]), 0, null, pending[slot]);
+                if (OpenCLBase.checkError(err)) {
+                    pending[slot] = null;
+                    throw new IOException("clEnqueueWriteImage failed on rows " + y + ".." + (y + rows));
+                }
+                OpenCLBase.flush();
+            }
+            done = true;
+        } finally {
+            for (cl_event evt : pending) {
+                if (evt != null) {
+                    CL.clWaitForEvents(1, new cl_event[]{evt});
+                    CL.clReleaseEvent(evt);
+                }
+            }
+            if (!done) {
+                img.release();
+            }
+        }
+        return img;
+    }
+
+    private void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
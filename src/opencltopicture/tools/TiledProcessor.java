@@ -0,0 +1,345 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_event;
+
+/**
+ * Traitement par tuiles des images plus grandes que les limites du device
+ * (CL_DEVICE_IMAGE2D_MAX_WIDTH, memoire).
+ *
+ * L'image source est decoupee en tuiles entourees d'une marge (halo) egale a
+ * l'empreinte du kernel, c'est a dire au rayon des voisins qu'il lit. Les
+ * tuiles passent par deux paires d'images du device reutilisees : pendant que
+ * le device traite une tuile, l'hote prepare la suivante. Le kernel n'est
+ * lance que sur l'interieur de la tuile (runWithArgsOnBBox) et seul
+ * l'interieur est relu puis ecrit dans la destination, qui peut etre une
+ * BufferedImage ou un fichier projete en memoire (MappedArgbFile). Les bords
+ * de l'image sont prolonges (clamp to edge) dans les marges.
+ *
+ * Le kernel doit avoir la signature (input, output, args...) et ne dependre
+ * que de la position relative des pixels (pas de get_image_dim pour
+ * normaliser les coordonnees, qui donnerait la taille de la tuile).
+ *
+ * @author durands
+ */
+public class TiledProcessor {
+
+    /**
+     * Image lue ligne par ligne, en ARGB
+     */
+    public interface TileSource {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Copie n pixels de la ligne y a partir de x dans dst (dont la
+         * position avance de n)
+         */
+        void readRow(int y, int x, int n, IntBuffer dst);
+    }
+
+    /**
+     * Destination ecrite ligne par ligne, en ARGB
+     */
+    public interface TileSink {
+
+        /**
+         * Ecrit n pixels de src (dont la position avance de n) sur la ligne y a
+         * partir de x
+         */
+        void writeRow(int y, int x, int n, IntBuffer src);
+    }
+
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    // Rayon (en pixels) des voisins lus par chaque kernel
+    private static final Map<String, Integer> footprints = new ConcurrentHashMap<>();
+
+    /**
+     * Declare l'empreinte d'un kernel
+     *
+     * @param kernelName
+     * @param halo nombre de pixels lus autour du pixel calcule
+     */
+    public static void setFootprint(final String kernelName, final int halo) {
+        footprints.put(kernelName, halo);
+    }
+
+    public static int getFootprint(final String kernelName) {
+        return footprints.getOrDefault(kernelName, 0);
+    }
+
+    /**
+     * Tuile en cours : images du device et buffers de l'hote
+     */
+    private static class Slot {
+
+        final ocl_image input, output;
+        final IntBuffer stagingIn, stagingOut;
+        cl_event readEvent;
+        boolean pending;
+        int x, y, tw, th;
+
+        Slot(final int pw, final int ph, final int tile, final boolean device) {
+            if (device) {
+                input = ocl_image.create2DPicture(pw, ph);
+                output = ocl_image.create2DOutputPicture(pw, ph);
+                stagingIn = ByteBuffer.allocateDirect(pw * ph * Sizeof.cl_uint).order(ByteOrder.nativeOrder()).asIntBuffer();
+                stagingOut = ByteBuffer.allocateDirect(tile * tile * Sizeof.cl_uint).order(ByteOrder.nativeOrder()).asIntBuffer();
+            } else {
+                // Kernels Java : on travaille directement dans les pixels des images
+                input = ocl_image.createHostPicture(pw, ph);
+                output = ocl_image.createHostPicture(pw, ph);
+                stagingIn = IntBuffer.wrap(input.getHostPixels());
+                stagingOut = IntBuffer.wrap(output.getHostPixels());
+            }
+        }
+
+        void release() {
+            input.release();
+            output.release();
+        }
+    }
+
+    private final String kernelName;
+    private final Object[] kernelArgs;
+    private final int halo;
+    private final int tile;
+
+    private long tileCount;
+
+    /**
+     * @param kernelName kernel (input, output, args...)
+     * @param tileSize cote de l'interieur des tuiles (reduit si le device ne
+     * peut pas creer d'images aussi grandes)
+     * @param kernelArgs arguments passes apres les deux images
+     */
+    public TiledProcessor(final String kernelName, final int tileSize, final Object... kernelArgs) {
+        this.kernelName = kernelName;
+        this.kernelArgs = kernelArgs;
+        this.halo = getFootprint(kernelName);
+        int size = tileSize;
+        if (OpenCLBase.isDeviceAvailable()) {
+            final long maxSide = Math.min(OpenCLBase.getDeviceLong(CL.CL_DEVICE_IMAGE2D_MAX_WIDTH), OpenCLBase.getDeviceLong(CL.CL_DEVICE_IMAGE2D_MAX_HEIGHT));
+            final long maxAlloc = OpenCLBase.getDeviceLong(CL.CL_DEVICE_MAX_MEM_ALLOC_SIZE);
+            size = (int) Math.min(size, maxSide - 2 * halo);
+            while (size > 64 && (long) (size + 2 * halo) * (size + 2 * halo) * Sizeof.cl_uint > maxAlloc) {
+                size /= 2;
+            }
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Halo of " + kernelName + " too large: " + halo);
+        }
+        this.tile = size;
+    }
+
+    public int getTileSize() {
+        return tile;
+    }
+
+    public int getHalo() {
+        return halo;
+    }
+
+    /**
+     * @return nombre de tuiles traitees depuis la creation
+     */
+    public long getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Traite toute la source et ecrit le resultat dans la destination
+     *
+     * @param src
+     * @param dst de meme taille que src
+     * @return false si un lancement du kernel a echoue
+     */
+    public boolean process(final TileSource src, final TileSink dst) {
+        final boolean device = OpenCLBase.isDeviceAvailable();
+        final int pw = tile + 2 * halo;
+        final Slot[] slots = {new Slot(pw, pw, tile, device), new Slot(pw, pw, tile, device)};
+        boolean ok = true;
+        int next = 0;
+        try {
+            for (int y = 0; y < src.getHeight(); y += tile) {
+                for (int x = 0; x < src.getWidth(); x += tile) {
+                    final Slot slot = slots[next];
+                    next = 1 - next;
+                    // La tuile precedente de ce slot doit etre terminee avant de reutiliser ses buffers
+                    flush(slot, dst);
+                    slot.x = x;
+                    slot.y = y;
+                    slot.tw = Math.min(tile, src.getWidth() - x);
+                    slot.th = Math.min(tile, src.getHeight() - y);
+                    fill(src, slot, pw);
+                    ok &= device ? enqueue(slot, pw) : runOnHost(slot);
+                    tileCount++;
+                }
+            }
+            for (Slot slot : slots) {
+                flush(slot, dst);
+            }
+        } finally {
+            for (Slot slot : slots) {
+                slot.release();
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Copie la tuile et sa marge dans le buffer d'entree, en prolongeant les
+     * bords de l'image
+     */
+    private void fill(final TileSource src, final Slot slot, final int pw) {
+        final int w = src.getWidth(), h = src.getHeight();
+        final int x0 = slot.x - halo, x1 = slot.x + slot.tw + halo;
+        final int cx0 = Math.max(0, x0), cx1 = Math.min(w, x1);
+        final IntBuffer in = slot.stagingIn;
+        for (int row = 0; row < slot.th + 2 * halo; row++) {
+            final int sy = Math.min(h - 1, Math.max(0, slot.y - halo + row));
+            final int start = row * pw;
+            in.position(start + (cx0 - x0));
+            src.readRow(sy, cx0, cx1 - cx0, in);
+            final int first = in.get(start + (cx0 - x0)), last = in.get(start + (cx1 - x0) - 1);
+            for (int k = 0; k < cx0 - x0; k++) {
+                in.put(start + k, first);
+            }
+            for (int k = cx1 - x0; k < x1 - x0; k++) {
+                in.put(start + k, last);
+            }
+        }
+        in.clear();
+    }
+
+    private boolean enqueue(final Slot slot, final int pw) {
+        final int rw = slot.tw + 2 * halo, rh = slot.th + 2 * halo;
+        final cl_event written = new cl_event();
+        OpenCLBase.clEnqueueWriteImage(slot.input.getMem(), false, new long[]{0, 0, 0}, new long[]{rw, rh, 1},
+                (long) pw * Sizeof.cl_uint, 0, Pointer.to(slot.stagingIn), 0, null, written);
+        final Object[] args = new Object[kernelArgs.length + 2];
+        args[0] = slot.input;
+        args[1] = slot.output;
+        System.arraycopy(kernelArgs, 0, args, 2, kernelArgs.length);
+        final cl_event[][] event = {{written}};
+        final boolean ok = OpenCLBase.runWithArgsOnBBox(kernelName, new int[]{halo, halo, halo + slot.tw, halo + slot.th}, event, args);
+        // Relecture de l'interieur seulement, non bloquante
+        slot.readEvent = new cl_event();
+        OpenCLBase.clEnqueueReadImage(slot.output.getMem(), false, new long[]{halo, halo, 0}, new long[]{slot.tw, slot.th, 1},
+                (long) slot.tw * Sizeof.cl_uint, 0, Pointer.to(slot.stagingOut), event[0].length, event[0], slot.readEvent);
+        slot.pending = true;
+        release(written);
+        EventManager.release(event);
+        return ok;
+    }
+
+    private boolean runOnHost(final Slot slot) {
+        final Object[] args = new Object[kernelArgs.length + 2];
+        args[0] = slot.input;
+        args[1] = slot.output;
+        System.arraycopy(kernelArgs, 0, args, 2, kernelArgs.length);
+        final boolean ok = OpenCLBase.runWithArgsOnBBox(kernelName, new int[]{halo, halo, halo + slot.tw, halo + slot.th}, new cl_event[][]{null}, args);
+        slot.pending = true;
+        return ok;
+    }
+
+    /**
+     * Attend la fin de la tuile et l'ecrit dans la destination
+     */
+    private void flush(final Slot slot, final TileSink dst) {
+        if (!slot.pending) {
+            return;
+        }
+        final boolean device = slot.input.getHostPixels() == null;
+        if (device) {
+            CL.clWaitForEvents(1, new cl_event[]{slot.readEvent});
+            release(slot.readEvent);
+        }
+        // Sur le device seul l'interieur est relu, sinon on lit dans l'image avec sa marge
+        final int stride = device ? slot.tw : tile + 2 * halo;
+        final int offset = device ? 0 : halo * stride + halo;
+        final IntBuffer out = slot.stagingOut;
+        for (int row = 0; row < slot.th; row++) {
+            out.position(offset + row * stride);
+            dst.writeRow(slot.y + row, slot.x, slot.tw, out);
+        }
+        out.clear();
+        slot.pending = false;
+    }
+
+    private static void release(final cl_event evt) {
+        try {
+            CL.clReleaseEvent(evt);
+        } catch (CLException e) {
+            // Deja libere
+        }
+    }
+
+    /**
+     * Source lisant une BufferedImage
+     *
+     * @param img
+     * @return
+     */
+    public static TileSource source(final BufferedImage img) {
+        final int[] pixels = img.getType() == BufferedImage.TYPE_INT_ARGB ? ((DataBufferInt) img.getRaster().getDataBuffer()).getData() : null;
+        return new TileSource() {
+            @Override
+            public int getWidth() {
+                return img.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return img.getHeight();
+            }
+
+            @Override
+            public void readRow(final int y, final int x, final int n, final IntBuffer dst) {
+                if (pixels != null) {
+                    dst.put(pixels, y * img.getWidth() + x, n);
+                } else {
+                    final int[] row = img.getRGB(x, y, n, 1, null, 0, n);
+                    dst.put(row);
+                }
+            }
+        };
+    }
+
+    /**
+     * Destination ecrivant dans une BufferedImage
+     *
+     * @param img
+     * @return
+     */
+    public static TileSink sink(final BufferedImage img) {
+        final int[] pixels = img.getType() == BufferedImage.TYPE_INT_ARGB ? ((DataBufferInt) img.getRaster().getDataBuffer()).getData() : null;
+        return (y, x, n, src) -> {
+            if (pixels != null) {
+                src.get(pixels, y * img.getWidth() + x, n);
+            } else {
+                final int[] row = new int[n];
+                src.get(row);
+                img.setRGB(x, y, n, 1, row, 0, n);
+            }
+        };
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.cl_event;
+
+/**
+ * Traitement d'un volume par tranches epaisses (slabs) en z, pour les volumes
+ * plus gros que la memoire du device.
+ *
+ * Chaque slab est entoure de haloZ tranches de chaque cote (les voisins en z
+ * lus par le kernel, les bords du volume sont prolonges). Deux paires
+ * d'images 3D du device sont reutilisees : pendant que le device traite un
+ * slab, les tranches du suivant sont envoyees une par une depuis le fichier
+ * projete. Les 2 x haloZ tranches communes a deux slabs consecutifs sont
+ * recopiees sur le device (clEnqueueCopyImage) au lieu d'etre renvoyees.
+ *
+ * Le kernel a la signature (read_only image3d_t input, write_only image3d_t
+ * output, args...) et est lance sur (w, h, n) avec le decalage (0, 0, haloZ) :
+ * il lit et ecrit aux memes coordonnees, seul l'interieur est relu. Comme
+ * pour TiledProcessor, il ne doit pas utiliser get_image_depth pour
+ * normaliser ses coordonnees.
+ *
+ * @author durands
+ */
+public class VolumeProcessor {
+
+    private static final Logger LOGGER = Logger.getLogger(VolumeProcessor.class.getName());
+
+    public static final int DEFAULT_SLAB_DEPTH = 32;
+
+    /**
+     * Slab en cours : images du device et copies en attente
+     */
+    private static class Slot {
+
+        final ocl_image input, output;
+        final List<cl_event> reads = new ArrayList<>();
+        cl_event[][] event = {null};
+        // Copie de ses dernieres tranches vers le slab suivant
+        cl_event copyOut;
+        int z0, n;
+
+        Slot(final MappedVolume src, final MappedVolume dst, final int depth) {
+            input = ocl_image.create3D(CL.CL_MEM_READ_WRITE, src.getChannelOrder(), src.getDataType(), src.getWidth(), src.getHeight(), depth);
+            output = ocl_image.create3D(CL.CL_MEM_READ_WRITE, dst.getChannelOrder(), dst.getDataType(), dst.getWidth(), dst.getHeight(), depth);
+        }
+
+        boolean isValid() {
+            return input != null && input.getMem() != null && output != null && output.getMem() != null;
+        }
+
+        /**
+         * Attend la fin des relectures de ce slot
+         */
+        void waitReads() {
+            if (!reads.isEmpty()) {
+                final cl_event[] events = reads.toArray(new cl_event[0]);
+                CL.clWaitForEvents(events.length, events);
+                for (cl_event evt : events) {
+                    VolumeProcessor.release(evt);
+                }
+                reads.clear();
+            }
+            if (copyOut != null) {
+                CL.clWaitForEvents(1, new cl_event[]{copyOut});
+                VolumeProcessor.release(copyOut);
+                copyOut = null;
+            }
+            EventManager.release(event);
+        }
+
+        void release() {
+            waitReads();
+            if (input != null) {
+                input.release();
+            }
+            if (output != null) {
+                output.release();
+            }
+        }
+    }
+
+    private final String kernelName;
+    private final Object[] kernelArgs;
+    private final int haloZ;
+    private final int slabDepth;
+
+    private long uploadedSlices, copiedSlices;
+
+    /**
+     * @param kernelName kernel (input, output, args...)
+     * @param slabDepth nombre de tranches calculees par lancement
+     * @param haloZ nombre de tranches lues de chaque cote de la tranche
+     * calculee
+     * @param kernelArgs arguments passes apres les deux images
+     */
+    public VolumeProcessor(final String kernelName, final int slabDepth, final int haloZ, final Object... kernelArgs) {
+        if (slabDepth <= 0 || haloZ < 0) {
+            throw new IllegalArgumentException("Invalid slab depth " + slabDepth + " or halo " + haloZ);
+        }
+        this.kernelName = kernelName;
+        this.kernelArgs = kernelArgs;
+        this.slabDepth = slabDepth;
+        this.haloZ = haloZ;
+    }
+
+    /**
+     * Nombre de tranches par slab supportees par le device pour ce volume
+     */
+    private int fitSlabDepth(final MappedVolume src, final MappedVolume dst) {
+        final long maxDepth = OpenCLBase.getDeviceLong(CL.CL_DEVICE_IMAGE3D_MAX_DEPTH);
+        final long maxAlloc = OpenCLBase.getDeviceLong(CL.CL_DEVICE_MAX_MEM_ALLOC_SIZE);
+        final long sliceBytes = Math.max(src.getSliceBytes(), dst.getSliceBytes());
+        long depth = Math.min(slabDepth, src.getDepth());
+        depth = Math.min(depth, maxDepth - 2 * haloZ);
+        depth = Math.min(depth, maxAlloc / sliceBytes - 2 * haloZ);
+        return (int) depth;
+    }
+
+    /**
+     * Traite tout le volume source et ecrit le resultat dans dst
+     *
+     * @param src
+     * @param dst de memes dimensions (le format peut differer)
+     * @return false si le device ne peut pas traiter le volume ou si un
+     * lancement a echoue
+     */
+    public boolean process(final MappedVolume src, final MappedVolume dst) {
+        if (src.getWidth() != dst.getWidth() || src.getHeight() != dst.getHeight() || src.getDepth() != dst.getDepth()) {
+            throw new IllegalArgumentException("Volumes of different sizes");
+        }
+        if (!OpenCLBase.isDeviceAvailable()) {
+            LOGGER.log(Level.WARNING, "{0}: 3D kernels need an OpenCL device", kernelName);
+            return false;
+        }
+        final int slab = fitSlabDepth(src, dst);
+        if (slab <= 0) {
+            LOGGER.log(Level.WARNING, "{0}: a slab with a halo of {1} slices does not fit on the device", new Object[]{kernelName, haloZ});
+            return false;
+        }
+        final int depth = slab + 2 * haloZ;
+        final Slot[] slots = {new Slot(src, dst, depth), new Slot(src, dst, depth)};
+        boolean ok = slots[0].isValid() && slots[1].isValid();
+        try {
+            Slot prev = null;
+            int next = 0;
+            for (int z0 = 0; ok && z0 < src.getDepth(); z0 += slab) {
+                final Slot slot = slots[next];
+                next = 1 - next;
+                // Les images de ce slot doivent avoir ete relues avant d'etre reecrites
+                slot.waitReads();
+                slot.z0 = z0;
+                slot.n = Math.min(slab, src.getDepth() - z0);
+                ok = enqueue(src, dst, slot, prev, slab);
+                prev = slot;
+                OpenCLBase.flush();
+            }
+        } finally {
+            for (Slot slot : slots) {
+                slot.release();
+            }
+        }
+        return ok;
+    }
+
+    private boolean enqueue(final MappedVolume src, final MappedVolume dst, final Slot slot, final Slot prev, final int slab) {
+        final List<cl_event> written = new ArrayList<>();
+        int first = 0;
+        // Les 2 x haloZ premieres tranches sont les dernieres du slab precedent
+        if (prev != null && prev.n == slab && haloZ > 0 && prev.event[0] != null) {
+            final cl_event copied = new cl_event();
+            final int err = OpenCLBase.clEnqueueCopyImage(prev.input.getMem(), slot.input.getMem(),
+                    new long[]{0, 0, slab}, new long[]{0, 0, 0}, new long[]{src.getWidth(), src.getHeight(), 2 * haloZ},
+                    prev.event[0].length, prev.event[0], copied);
+            if (!OpenCLBase.checkError(err)) {
+                written.add(copied);
+                // Le slot precedent ne doit pas etre reecrit avant la fin de la copie
+                CL.clRetainEvent(copied);
+                prev.copyOut = copied;
+                first = 2 * haloZ;
+                copiedSlices += 2 * haloZ;
+            }
+        }
+        for (int i = first; i < slot.n + 2 * haloZ; i++) {
+            final int z = Math.min(src.getDepth() - 1, Math.max(0, slot.z0 - haloZ + i));
+            final cl_event evt = new cl_event();
+            if (OpenCLBase.checkError(src.writeSlice(z, slot.input, i, evt))) {
+                releaseAll(written);
+                return false;
+            }
+            written.add(evt);
+            uploadedSlices++;
+        }
+        final Object[] args = new Object[kernelArgs.length + 2];
+        args[0] = slot.input;
+        args[1] = slot.output;
+        System.arraycopy(kernelArgs, 0, args, 2, kernelArgs.length);
+        slot.event[0] = written.toArray(new cl_event[0]);
+        final boolean ok = OpenCLBase.runWithArgs(kernelName, 3, new long[]{0, 0, haloZ}, new long[]{src.getWidth(), src.getHeight(), slot.n}, null, slot.event, args);
+        // Les evenements des copies ne sont pas suivis par EventManager
+        releaseAll(written);
+        if (!ok) {
+            slot.event[0] = null;
+            return false;
+        }
+        for (int i = 0; i < slot.n; i++) {
+            final cl_event read = new cl_event();
+            if (OpenCLBase.checkError(dst.readSlice(slot.output, haloZ + i, slot.z0 + i, slot.event[0], read))) {
+                return false;
+            }
+            slot.reads.add(read);
+        }
+        return true;
+    }
+
+    private static void releaseAll(final List<cl_event> events) {
+        for (cl_event evt : events) {
+            release(evt);
+        }
+        events.clear();
+    }
+
+    private static void release(final cl_event evt) {
+        try {
+            CL.clReleaseEvent(evt);
+        } catch (CLException e) {
+            // Deja libere
+        }
+    }
+
+    public int getHaloZ() {
+        return haloZ;
+    }
+
+    /**
+     * @return nombre de tranches envoyees depuis le fichier
+     */
+    public long getUploadedSlices() {
+        return uploadedSlices;
+    }
+
+    /**
+     * @return nombre de tranches recopiees sur le device d'un slab au suivant
+     */
+    public long getCopiedSlices() {
+        return copiedSlices;
+    }
+}
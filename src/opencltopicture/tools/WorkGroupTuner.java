@@ -0,0 +1,473 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package opencltopicture.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_device_id;
+import org.jocl.cl_event;
+import org.jocl.cl_kernel;
+import org.jocl.cl_program;
+
+/**
+ * Choix de la taille des work-groups (local_sz) par mesure.
+ *
+ * En mode reglage (propriete systeme "opencltopicture.autotune" a true), le
+ * premier lancement d'un kernel pour un device et une classe de taille
+ * (dimensions globales arrondies a la puissance de 2) essaie plusieurs
+ * local_sz, compatibles avec CL_KERNEL_WORK_GROUP_SIZE et multiples de
+ * CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE, ainsi que le choix du pilote
+ * (null). Le kernel etant relance plusieurs fois, ce mode ne convient qu'aux
+ * kernels qui ne lisent pas leur propre sortie.
+ *
+ * Les resultats sont enregistres dans un fichier (propriete
+ * "opencltopicture.autotune.file", par defaut workgroups.properties a cote du
+ * cache des programmes) et appliques par runWithArgs meme hors mode reglage.
+ * La taille globale est alors arrondie au multiple de local_sz : les kernels
+ * sans test "if (x >= largeur) return;" sont detectes a la compilation et ne
+ * recoivent qu'une taille locale qui divise exactement la taille globale. Il
+ * en va de meme pour les lancements avec un decalage (global_offset) : les
+ * work-items ajoutes seraient encore dans l'image, hors du rectangle demande.
+ * Le test doit comparer une coordonnee tiree de get_global_id a une taille
+ * (il peut venir d'une macro, comme LIB_XY) ; un kernel protege autrement
+ * peut le declarer par un commentaire "@pad-safe" dans son corps.
+ *
+ * @author durands
+ */
+public class WorkGroupTuner {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkGroupTuner.class.getName());
+
+    private static final boolean TUNING = Boolean.getBoolean("opencltopicture.autotune");
+
+    private static final File FILE = new File(System.getProperty("opencltopicture.autotune.file",
+            System.getProperty("user.home") + File.separator + ".opencltopicture" + File.separator + "workgroups.properties"));
+
+    private static final int NB_RUNS = 5;
+    private static final long MAX_CANDIDATE_SIZE = 1024;
+
+    // Valeur enregistree quand le choix du pilote est le meilleur
+    private static final String DRIVER = "driver";
+
+    private static final Pattern KERNEL = Pattern.compile("__kernel\\s+void\\s+(\\w+)\\s*\\(");
+    // if (...) return;  ou  if (...) { return; }
+    private static final Pattern GUARD = Pattern.compile("if\\s*\\(([^;{}]*?)\\)\\s*\\{?\\s*return\\s*;");
+    // Une comparaison du test : gauche, operateur, droite
+    private static final Pattern COMPARISON = Pattern.compile("(.*?)(>=|<=|>|<)(.*)");
+    // Debut d'une affectation ou d'une initialisation (pas ==, <=, >=, !=)
+    private static final Pattern ASSIGNMENT = Pattern.compile("(\\w+)\\s*(?<![=<>!])=(?!=)");
+    private static final Pattern DEFINE = Pattern.compile("#\\s*define\\s+(\\w+)(\\([^)]*\\))?(.*)");
+    private static final Pattern COMMENTS = Pattern.compile("//[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+    // Declaration explicite d'un kernel qui supporte une taille globale arrondie
+    private static final String PAD_SAFE = "@pad-safe";
+
+    private static final Properties results = new Properties();
+    private static boolean loaded = false;
+    private static String deviceIdentity;
+
+    // Kernels qui testent leurs bornes, par programme (detectes dans les sources compilees)
+    private static final Map<cl_program, Map<String, Boolean>> guarded = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> warned = new ConcurrentHashMap<>();
+    // Resultat de isSafeToPad par nom de kernel, vide a chaque programme enregistre
+    private static final Map<String, Boolean> padSafe = new ConcurrentHashMap<>();
+
+    public static boolean isTuning() {
+        return TUNING;
+    }
+
+    /**
+     * Repere les kernels d'un source et s'ils testent leurs bornes
+     *
+     * @param source
+     * @return nom du kernel => true s'il supporte une taille globale arrondie
+     * (a passer a register() une fois le programme compile)
+     */
+    static Map<String, Boolean> scanSource(final String source) {
+        final String text = source.replace("\r\n", "\n");
+        // Les macros sont developpees (sans leurs parametres) et les
+        // commentaires retires, sauf pour chercher PAD_SAFE
+        final Map<String, String> macros = new HashMap<>();
+        final StringBuilder code = new StringBuilder();
+        for (String line : text.replace("\\\n", " ").split("\n")) {
+            final Matcher d = DEFINE.matcher(line.trim());
+            if (d.matches()) {
+                macros.put(d.group(1), COMMENTS.matcher(d.group(3)).replaceAll(" "));
+            } else if (!line.trim().startsWith("#")) {
+                code.append(line).append('\n');
+            }
+        }
+        final String src = code.toString();
+        final Matcher m = KERNEL.matcher(src);
+        final List<Integer> starts = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        while (m.find()) {
+            starts.add(m.start());
+            names.add(m.group(1));
+        }
+        final Map<String, Boolean> res = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            final String body = src.substring(starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : src.length());
+            res.put(names.get(i), body.contains(PAD_SAFE) || hasBoundsGuard(expand(COMMENTS.matcher(body).replaceAll(" "), macros)));
+        }
+        return res;
+    }
+
+    private static String expand(String body, final Map<String, String> macros) {
+        // Quelques passes pour les macros qui en utilisent d'autres
+        for (int pass = 0; pass < 4; pass++) {
+            String expanded = body;
+            for (Map.Entry<String, String> e : macros.entrySet()) {
+                expanded = expanded.replaceAll("\\b" + e.getKey() + "\\b(\\s*\\([^()]*\\))?", Matcher.quoteReplacement(e.getValue()));
+            }
+            if (expanded.equals(body)) {
+                break;
+            }
+            body = expanded;
+        }
+        return body;
+    }
+
+    /**
+     * Cherche un "if (...) return;" qui compare une coordonnee tiree de
+     * get_global_id (directement ou par une variable qui en depend) a une
+     * taille
+     */
+    private static boolean hasBoundsGuard(final String body) {
+        // Variables initialisees a partir de get_global_id, puis de ces variables
+        final List<String> coordinates = new ArrayList<>();
+        final Matcher a = ASSIGNMENT.matcher(body);
+        final List<String> vars = new ArrayList<>(), values = new ArrayList<>();
+        final List<Integer> starts = new ArrayList<>(), ends = new ArrayList<>();
+        while (a.find()) {
+            vars.add(a.group(1));
+            starts.add(a.start());
+            ends.add(a.end());
+        }
+        for (int i = 0; i < vars.size(); i++) {
+            // Valeur : jusqu'au ';' ou a l'affectation suivante (int x = .., y = ..;)
+            int end = body.indexOf(';', ends.get(i));
+            if (end < 0) {
+                end = body.length();
+            }
+            if (i + 1 < vars.size()) {
+                end = Math.min(end, starts.get(i + 1));
+            }
+            values.add(body.substring(ends.get(i), end));
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < vars.size(); i++) {
+                if (!coordinates.contains(vars.get(i)) && isCoordinate(values.get(i), coordinates)) {
+                    coordinates.add(vars.get(i));
+                    changed = true;
+                }
+            }
+        }
+        final Matcher g = GUARD.matcher(body);
+        while (g.find()) {
+            for (String clause : g.group(1).split("\\|\\||&&")) {
+                final Matcher c = COMPARISON.matcher(clause.trim());
+                if (!c.matches()) {
+                    continue;
+                }
+                final boolean left = isCoordinate(c.group(1), coordinates), right = isCoordinate(c.group(3), coordinates);
+                // Une coordonnee d'un cote, une taille (pas une constante) de l'autre
+                if (left != right && (left ? c.group(3) : c.group(1)).matches("(?s).*[A-Za-z_].*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCoordinate(final String expr, final List<String> coordinates) {
+        if (expr.contains("get_global_id")) {
+            return true;
+        }
+        for (String v : coordinates) {
+            if (Pattern.compile("\\b" + v + "\\b").matcher(expr).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Associe au programme compile le resultat de scanSource
+     *
+     * @param program
+     * @param guards
+     */
+    static void register(final cl_program program, final Map<String, Boolean> guards) {
+        if (program != null && guards != null) {
+            guarded.put(program, guards);
+            // Un kernel recompile peut changer de programme
+            padSafe.clear();
+        }
+    }
+
+    /**
+     * @param kernel
+     * @return false si le kernel ecrirait hors de l'image avec une taille
+     * globale arrondie
+     */
+    public static boolean isSafeToPad(final cl_kernel kernel) {
+        final cl_program program = new cl_program();
+        CL.clGetKernelInfo(kernel, CL.CL_KERNEL_PROGRAM, Sizeof.cl_program, Pointer.to(program), null);
+        final Map<String, Boolean> guards = guarded.get(program);
+        return guards != null && guards.getOrDefault(OpenCLBase.getKernelName(kernel), false);
+    }
+
+    /**
+     * isSafeToPad sans interroger le kernel a chaque lancement
+     */
+    private static boolean isSafeToPad(final String kernelName, final cl_kernel kernel) {
+        final Boolean known = padSafe.get(kernelName);
+        if (known != null) {
+            return known;
+        }
+        final boolean guard = isSafeToPad(kernel);
+        padSafe.put(kernelName, guard);
+        return guard;
+    }
+
+    /**
+     * Taille globale arrondie possible : pas de decalage et kernel qui teste
+     * ses bornes
+     */
+    private static boolean canPad(final String kernelName, final cl_kernel kernel, final long[] global_offset) {
+        return global_offset == null && isSafeToPad(kernelName, kernel);
+    }
+
+    static String sizeClass(final long[] global_sz) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < global_sz.length; i++) {
+            sb.append(i == 0 ? "" : "x").append(global_sz[i] <= 1 ? 1 : Long.highestOneBit(global_sz[i] - 1) << 1);
+        }
+        return sb.toString();
+    }
+
+    private static synchronized String deviceIdentity() {
+        if (deviceIdentity == null) {
+            deviceIdentity = OpenCLBase.getDeviceIdentity(OpenCLBase.getDeviceId());
+        }
+        return deviceIdentity;
+    }
+
+    private static String key(final String kernelName, final long[] global_sz) {
+        return kernelName + "|" + deviceIdentity() + "|" + sizeClass(global_sz);
+    }
+
+    /**
+     * Taille globale arrondie au multiple de la taille locale
+     */
+    public static long[] roundUp(final long[] global_sz, final long[] local_sz) {
+        final long[] res = new long[global_sz.length];
+        for (int i = 0; i < global_sz.length; i++) {
+            res[i] = (global_sz[i] + local_sz[i] - 1) / local_sz[i] * local_sz[i];
+        }
+        return res;
+    }
+
+    private static boolean divides(final long[] global_sz, final long[] local_sz) {
+        for (int i = 0; i < global_sz.length; i++) {
+            if (global_sz[i] % local_sz[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (FILE.isFile()) {
+            try (InputStream in = new FileInputStream(FILE)) {
+                results.load(in);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read {0}: {1}", new Object[]{FILE, e.getMessage()});
+            }
+        }
+    }
+
+    private static synchronized void store(final String key, final String value) {
+        results.setProperty(key, value);
+        FILE.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(FILE)) {
+            results.store(out, "opencltopicture work-group sizes: kernel|device|size class = local size");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot write {0}: {1}", new Object[]{FILE, e.getMessage()});
+        }
+    }
+
+    private static long[] parse(final String value) {
+        if (value == null || DRIVER.equals(value)) {
+            return null;
+        }
+        final String[] parts = value.split("x");
+        final long[] res = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            res[i] = Long.parseLong(parts[i]);
+        }
+        return res;
+    }
+
+    private static String format(final long[] local_sz) {
+        if (local_sz == null) {
+            return DRIVER;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < local_sz.length; i++) {
+            sb.append(i == 0 ? "" : "x").append(local_sz[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tailles locales candidates (puissances de 2)
+     */
+    static List<long[]> candidates(final int nbDim, final long maxWorkGroupSize, final long multiple) {
+        // Les CPU acceptent des groupes enormes qui n'apportent rien
+        final long maxSize = Math.min(maxWorkGroupSize, MAX_CANDIDATE_SIZE);
+        final List<long[]> res = new ArrayList<>();
+        for (long x = 1; x <= maxSize; x <<= 1) {
+            if (nbDim == 1) {
+                if (x % multiple == 0) {
+                    res.add(new long[]{x});
+                }
+                continue;
+            }
+            for (long y = 1; x * y <= maxSize; y <<= 1) {
+                // Des groupes trop petits n'occupent pas une unite de calcul
+                if ((x * y) % multiple == 0 && x * y >= Math.min(maxSize, 4 * multiple)) {
+                    res.add(nbDim == 2 ? new long[]{x, y} : new long[]{x, y, 1});
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Taille locale a utiliser pour ce lancement, apres reglage si besoin. Les
+     * arguments du kernel doivent deja etre affectes.
+     *
+     * @param kernelName
+     * @param kernel
+     * @param global_offset
+     * @param global_sz
+     * @param event evenements a attendre avant les lancements de reglage (peut
+     * etre null)
+     * @return null pour laisser le pilote choisir
+     */
+    static long[] getLocalSize(final String kernelName, final cl_kernel kernel, final long[] global_offset, final long[] global_sz, final cl_event[] event) {
+        load();
+        String value = null;
+        synchronized (WorkGroupTuner.class) {
+            if (results.isEmpty() && !TUNING) {
+                return null;
+            }
+        }
+        final String key = key(kernelName, global_sz);
+        synchronized (WorkGroupTuner.class) {
+            value = results.getProperty(key);
+        }
+        if (value == null && TUNING) {
+            value = format(tune(kernelName, kernel, global_offset, global_sz, event));
+            store(key, value);
+        }
+        final long[] local_sz = parse(value);
+        if (local_sz == null || local_sz.length != global_sz.length) {
+            return null;
+        }
+        if (!divides(global_sz, local_sz) && !canPad(kernelName, kernel, global_offset)) {
+            if (global_offset == null && warned.putIfAbsent(kernelName, Boolean.TRUE) == null) {
+                LOGGER.log(Level.WARNING, "Kernel {0} has no bounds guard: global size not padded, tuned work-group size ignored", kernelName);
+            }
+            return null;
+        }
+        return local_sz;
+    }
+
+    private static long[] tune(final String kernelName, final cl_kernel kernel, final long[] global_offset, final long[] global_sz, final cl_event[] event) {
+        // Les lancements de reglage lisent les entrees du kernel : elles doivent etre pretes
+        if (event != null && event.length > 0) {
+            CL.clWaitForEvents(event.length, event);
+        }
+        final cl_device_id device = OpenCLBase.getDeviceId();
+        final long[] value = {0};
+        CL.clGetKernelWorkGroupInfo(kernel, device, CL.CL_KERNEL_WORK_GROUP_SIZE, Sizeof.size_t, Pointer.to(value), null);
+        final long maxSize = value[0];
+        CL.clGetKernelWorkGroupInfo(kernel, device, CL.CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE, Sizeof.size_t, Pointer.to(value), null);
+        final long multiple = Math.max(1, value[0]);
+
+        final boolean safe = canPad(kernelName, kernel, global_offset);
+        final List<long[]> candidates = new ArrayList<>();
+        candidates.add(null);
+        for (long[] c : candidates(global_sz.length, maxSize, multiple)) {
+            if (safe || divides(global_sz, c)) {
+                candidates.add(c);
+            }
+        }
+        long[] best = null;
+        long bestNanos = Long.MAX_VALUE;
+        final StringBuilder report = new StringBuilder();
+        for (long[] c : candidates) {
+            final long nanos = measure(kernelName, kernel, global_offset, global_sz, c);
+            report.append(' ').append(format(c)).append('=').append(nanos / 1000).append("us");
+            if (nanos < bestNanos) {
+                bestNanos = nanos;
+                best = c;
+            }
+        }
+        LOGGER.log(Level.INFO, "Tuning {0} {1} (max {2}, multiple {3}):{4} => {5}",
+                new Object[]{kernelName, sizeClass(global_sz), maxSize, multiple, report, format(best)});
+        return best;
+    }
+
+    /**
+     * Meilleur temps sur NB_RUNS lancements
+     */
+    private static long measure(final String kernelName, final cl_kernel kernel, final long[] global_offset, final long[] global_sz, final long[] local_sz) {
+        final long[] gsz = local_sz == null ? global_sz : roundUp(global_sz, local_sz);
+        long best = Long.MAX_VALUE;
+        // Premier lancement pour la chauffe
+        for (int i = 0; i <= NB_RUNS; i++) {
+            final long t0 = System.nanoTime();
+            if (!OpenCLBase.run(kernelName, kernel, gsz.length, global_offset, gsz, local_sz, null)) {
+                OpenCLBase.finish();
+                return Long.MAX_VALUE;
+            }
+            OpenCLBase.finish();
+            if (i > 0) {
+                best = Math.min(best, System.nanoTime() - t0);
+            }
+        }
+        return best;
+    }
+
+    private WorkGroupTuner() {
+    }
+}
@@ -21,13 +21,20 @@ public class ocl_buffer {
     public final static int SINGLE_CHANNEL_TYPE = /*CL.CL_A;*/ CL.CL_LUMINANCE;
     
     public cl_mem mem;
+    // Nombre d'elements (float, int, octets... selon le constructeur)
     public int w;
+    // w est un nombre de float (voir KernelLibrary)
+    private boolean floats;
+    // Cle et taille dans MemoryPool si la memoire peut y etre recyclee
+    private String poolKey;
+    private long poolBytes;
 
     public ocl_buffer() {
     }
 
     public ocl_buffer(float[] data) {
         this.w = data.length;
+        this.floats = true;
         int[] err = {0};
         mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE | CL.CL_MEM_COPY_HOST_PTR, w * Sizeof.cl_float, Pointer.to(data), err);
         checkError(err[0]);
@@ -35,6 +42,7 @@ public class ocl_buffer {
 
     public ocl_buffer(float[] data, boolean readOnly) {
         this.w = data.length;
+        this.floats = true;
         int[] err = {0};
         mem = OpenCLBase.clCreateBuffer((readOnly ? CL.CL_MEM_READ_ONLY : CL.CL_MEM_READ_WRITE) | CL.CL_MEM_COPY_HOST_PTR, w * Sizeof.cl_float, Pointer.to(data), err);
         checkError(err[0]);
@@ -56,41 +64,51 @@ public class ocl_buffer {
 
     public ocl_buffer(int length, long flags) {
         this.w = length;
-        int[] err = {0};
-        mem = OpenCLBase.clCreateBuffer(flags, w * Sizeof.cl_float, null, err);
-        checkError(err[0]);
+        this.floats = true;
+        allocate(flags, w * Sizeof.cl_float);
+    }
+
+    /**
+     * Alloue un buffer sans donnees initiales, en le reprenant dans MemoryPool
+     * si possible
+     *
+     * @param flags
+     * @param size taille en octets
+     */
+    private void allocate(final long flags, final long size) {
+        final String key = MemoryPool.bufferKey(flags, size);
+        mem = MemoryPool.acquire(key);
+        if (mem == null) {
+            int[] err = {0};
+            mem = OpenCLBase.clCreateBuffer(flags, size, null, err);
+            checkError(err[0]);
+        }
+        poolKey = key;
+        poolBytes = size;
     }
     
     public ocl_buffer(int channel_order, int data_type, int w) {
         this.w = w;
-        int sz = 4;
-        if (data_type == CL.CL_UNSIGNED_INT8) {
-            if (channel_order == CL.CL_RGBA) {
-                sz = Sizeof.cl_uchar * 4;
-            } else {
-                sz = Sizeof.cl_uchar;
-            }
-        } else if (data_type == CL.CL_SIGNED_INT16) {
-            sz = Sizeof.cl_ushort;
-        } else if (data_type == CL.CL_SIGNED_INT32 && channel_order == CL.CL_RGBA) {
-            sz = Sizeof.cl_int * 4;
-        } else if (data_type == CL.CL_FLOAT && channel_order == CL.CL_RGBA) {
-            sz = Sizeof.cl_float * 4;
-        } else if (data_type == CL.CL_FLOAT && channel_order == SINGLE_CHANNEL_TYPE) {
-            sz = Sizeof.cl_float;
-        } else {
-            assert (false);
+        final int sz = Images2D.elementSizeOf(channel_order, data_type);
+        if (sz == 0) {
+            throw new IllegalArgumentException("Unsupported element format: " + CL.stringFor_cl_channel_order(channel_order)
+                    + " / " + CL.stringFor_cl_channel_type(data_type));
         }
-
-        int size = w * sz;
-        int[] err = {0};
-        mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE, size, null, err);
+        allocate(CL.CL_MEM_READ_WRITE, (long) w * sz);
+        this.floats = data_type == CL.CL_FLOAT && sz == Sizeof.cl_float;
     }
     
         
     public int getWidth() {
         return w;
     }
+
+    /**
+     * @return true si le buffer contient w float
+     */
+    public boolean isFloat() {
+        return floats;
+    }
     
     static public ocl_buffer create1DFloatInput(final float[] data) {
         return new ocl_buffer(data, true);
@@ -115,34 +133,58 @@ public class ocl_buffer {
     static public ocl_buffer create1DIntOutput(final int length) {
         final ocl_buffer buff = new ocl_buffer();
         buff.w = length;
-        int[] err = {0};
-        buff.mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_WRITE_ONLY, length * Sizeof.cl_int, null, err);
-        checkError(err[0]);
+        buff.allocate(CL.CL_MEM_WRITE_ONLY, length * Sizeof.cl_int);
         return buff;
     }
 
     static public ocl_buffer create1DInt4InputOutput(final int length) {
         final ocl_buffer buff = new ocl_buffer();
         buff.w = length;
-        int[] err = {0};
-        buff.mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE, length * Sizeof.cl_int4, null, err);
-        checkError(err[0]);
+        buff.allocate(CL.CL_MEM_READ_WRITE, length * Sizeof.cl_int4);
         return buff;
     }
 
     static public ocl_buffer create1DUShort4InputOutput(final int length) {
         final ocl_buffer buff = new ocl_buffer();
         buff.w = length;
+        buff.allocate(CL.CL_MEM_READ_WRITE, length * Sizeof.cl_ushort4);
+        return buff;
+    }
+
+    /**
+     * Buffer de half (CL_HALF_FLOAT, a lire avec vload_half), les valeurs sont
+     * converties sur l'hote. A relire avec OpenCLBase.query_half()
+     *
+     * @param data
+     * @param readOnly
+     * @return
+     */
+    static public ocl_buffer create1DHalfInput(final float[] data, final boolean readOnly) {
+        final ocl_buffer buff = new ocl_buffer();
+        buff.w = data.length;
         int[] err = {0};
-        buff.mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE, length * Sizeof.cl_ushort4, null, err);
+        buff.mem = OpenCLBase.clCreateBuffer((readOnly ? CL.CL_MEM_READ_ONLY : CL.CL_MEM_READ_WRITE) | CL.CL_MEM_COPY_HOST_PTR,
+                (long) data.length * Sizeof.cl_half, Pointer.to(HalfFloat.toHalf(data, null)), err);
         checkError(err[0]);
         return buff;
     }
 
+    static public ocl_buffer create1DHalfInputOutput(final int length) {
+        final ocl_buffer buff = new ocl_buffer();
+        buff.w = length;
+        buff.allocate(CL.CL_MEM_READ_WRITE, (long) length * Sizeof.cl_half);
+        return buff;
+    }
+
+    /**
+     * Buffer de float initialise avec l'image (1 ou 4 float par pixel, voir
+     * OpenCLBase.copy_to_buf)
+     */
     public ocl_buffer(final ocl_image img, final long flags) {
-        this.w = img.w;
+        this.w = img.w * img.h * KernelLibrary.bufferChannelsOf(img);
+        this.floats = true;
         int[] err = {0};
-        mem = OpenCLBase.clCreateBuffer(flags, w * Sizeof.cl_float, null, err);
+        mem = OpenCLBase.clCreateBuffer(flags, (long) w * Sizeof.cl_float, null, err);
         checkError(err[0]);
         OpenCLBase.copy_to_buf(img, this);
     }
@@ -163,9 +205,10 @@ public class ocl_buffer {
                 if (mem != null) {
                     release();
                 }
-                this.w = img.w;
+                this.w = img.w * img.h;
+                this.floats = true;
                 int[] err = {0};
-                mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE, w * Sizeof.cl_float, null, err);
+                mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_WRITE, (long) w * Sizeof.cl_float, null, err);
                 checkError(err[0]);
                 return OpenCLBase.copy_to_buf(img, this);
             }
@@ -189,6 +232,7 @@ public class ocl_buffer {
             // on va devoir le recreer car il n'est pas a la bonne dimension
             release();
             w = buff.length;
+            floats = true;
             int[] err = {0};
             mem = OpenCLBase.clCreateBuffer(CL.CL_MEM_READ_ONLY, w * Sizeof.cl_float, null, err);
             checkError(err[0]);
@@ -197,6 +241,11 @@ public class ocl_buffer {
     }
 
     public void release() {
+        if (mem != null && poolKey != null && MemoryPool.recycle(poolKey, mem, poolBytes)) {
+            // Rendu au pool au lieu d'etre libere
+            mem = null;
+        }
+        poolKey = null;
         if (mem != null) {
             try {
                 int result = CL.clReleaseMemObject(mem);
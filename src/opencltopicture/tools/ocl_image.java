@@ -5,13 +5,24 @@
  */
 package opencltopicture.tools;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
 import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import static opencltopicture.tools.OpenCLBase.SINGLE_CHANNEL_ORDER;
 import static opencltopicture.tools.OpenCLBase.checkError;
 import org.jocl.CL;
+import org.jocl.NativePointerObject;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_event;
@@ -25,10 +36,21 @@ import org.jocl.cl_mem;
  */
 public class ocl_image {
 
+    private static final Logger LOGGER = Logger.getLogger(ocl_image.class.getName());
+
     private final static Cleaner cleaner = Cleaner.create();
 
+    // Champs prives des Pointer de JOCL, pour les images sans device (voir readHostData)
+    private static final Field POINTER_BUFFER = pointerField("buffer");
+    private static final Field POINTER_OFFSET = pointerField("byteOffset");
+
     protected int w, h, z;
     protected cl_mem mem;
+    // Pixels ARGB quand il n'y a pas de device OpenCL (voir JavaKernels)
+    protected int[] hostPixels;
+    // Cle et taille dans MemoryPool si la memoire peut y etre recyclee
+    private String poolKey;
+    private long poolBytes;
     
     protected cl_image_desc image_desc = new cl_image_desc();
     public cl_image_format image_format = new cl_image_format();
@@ -45,11 +67,30 @@ public class ocl_image {
         w = img.getWidth();
         h = img.getHeight();
         z = 1;
+        if (!OpenCLBase.isDeviceAvailable()) {
+            // Copie comme le ferait CL_MEM_COPY_HOST_PTR
+            hostPixels = toHostPixels(img);
+            image_format.image_channel_order = CL.CL_RGBA;
+            image_format.image_channel_data_type = CL.CL_UNSIGNED_INT8;
+            return;
+        }
         image_format = Images2D.createImageFormatFrom(img);
         image_desc = Images2D.createImageDescFrom(img);
         createImage((readOnly ? CL.CL_MEM_READ_ONLY : CL.CL_MEM_READ_WRITE) | CL.CL_MEM_COPY_HOST_PTR, image_format, image_desc, Images2D.createRasterDataPointer(img));
     }
 
+    /**
+     * Image ARGB en memoire Java, pour les kernels de JavaKernels
+     */
+    protected ocl_image(int w, int h, int[] hostPixels) {
+        this.w = w;
+        this.h = h;
+        this.z = 1;
+        this.hostPixels = hostPixels;
+        image_format.image_channel_order = CL.CL_RGBA;
+        image_format.image_channel_data_type = CL.CL_UNSIGNED_INT8;
+    }
+
     private void init(float[] data, int... size) {
 
         image_format = new cl_image_format();
@@ -89,25 +130,10 @@ public class ocl_image {
         this.w = w1;
         this.h = h1;
         this.z = 1;
-        int sz = 4;
-
-        // TODO voir si pas deja dans Image2D
-        if (data_type == CL.CL_UNSIGNED_INT8) {
-            if (channel_order == CL.CL_RGBA) {
-                sz = Sizeof.cl_uint8 * 4;
-            } else {
-                sz = Sizeof.cl_uint8;
-            }
-        } else if (data_type == CL.CL_SIGNED_INT16) {
-            sz = Sizeof.cl_ushort;
-        } else if (data_type == CL.CL_SIGNED_INT32 && channel_order == CL.CL_RGBA) {
-            sz = Sizeof.cl_int * 4;
-        } else if (data_type == CL.CL_FLOAT && channel_order == CL.CL_RGBA) {
-            sz = Sizeof.cl_float * 4;
-        } else if (data_type == CL.CL_FLOAT && (channel_order == OpenCLBase.SINGLE_CHANNEL_ORDER || channel_order == CL.CL_INTENSITY)) {
-            sz = Sizeof.cl_float;
-        } else {
-            assert (false);
+        final int sz = Images2D.elementSizeOf(channel_order, data_type);
+        if (sz == 0) {
+            throw new IllegalArgumentException("Unsupported image format: " + CL.stringFor_cl_channel_order(channel_order)
+                    + " / " + CL.stringFor_cl_channel_type(data_type));
         }
 
         image_format.image_channel_data_type = data_type;
@@ -119,13 +145,126 @@ public class ocl_image {
         image_desc.image_row_pitch = ptr == null ? 0 : w1 * sz;
         image_desc.buffer = null;
 
+        if (!OpenCLBase.isDeviceAvailable()) {
+            // Seul le format des images ARGB est gere par les kernels Java
+            final boolean argb = data_type == CL.CL_UNSIGNED_INT8 && channel_order == CL.CL_RGBA;
+            if (argb) {
+                hostPixels = new int[w1 * h1];
+            }
+            if (ptr != null) {
+                // Copie comme le ferait CL_MEM_COPY_HOST_PTR (pixels ARGB dans l'ordre natif)
+                if (!argb || !readHostData(ptr, hostPixels)) {
+                    throw new IllegalArgumentException("Initial data without OpenCL device needs an ARGB image given as an int[], IntBuffer or ByteBuffer");
+                }
+            }
+            return;
+        }
+        if (ptr == null) {
+            // Pas de donnees initiales : la memoire peut venir du pool
+            final String key = MemoryPool.imageKey(memflag, channel_order, data_type, w1, h1, 1);
+            final cl_mem pooled = MemoryPool.acquire(key);
+            if (pooled != null) {
+                release();
+                mem = pooled;
+            } else {
+                createImage(memflag, image_format, image_desc, ptr);
+            }
+            if (mem != null) {
+                poolKey = key;
+                poolBytes = (long) w1 * h1 * sz;
+            }
+            return;
+        }
         createImage(memflag, image_format, image_desc, ptr);
     }
 
+    /**
+     * Copie les pixels ARGB designes par un Pointer de JOCL (tableau int[] ou
+     * buffer), sans modifier le buffer de l'appelant. JOCL ne donne pas acces
+     * au buffer d'un Pointer : il est lu par reflexion.
+     *
+     * @return false si le Pointer ne porte pas de donnees Java ou s'il n'y a
+     * pas assez de pixels
+     */
+    private static boolean readHostData(final Pointer ptr, final int[] dst) {
+        try {
+            final Buffer buffer = (Buffer) POINTER_BUFFER.get(ptr);
+            final long offset = POINTER_OFFSET.getLong(ptr);
+            if (buffer instanceof IntBuffer && offset % Sizeof.cl_int == 0) {
+                final IntBuffer data = ((IntBuffer) buffer).duplicate();
+                data.position(Math.addExact(data.position(), (int) (offset / Sizeof.cl_int)));
+                if (data.remaining() < dst.length) {
+                    return false;
+                }
+                data.get(dst);
+                return true;
+            }
+            if (buffer instanceof ByteBuffer) {
+                // duplicate() repasse en big endian : le device lirait l'ordre natif
+                final ByteBuffer data = ((ByteBuffer) buffer).duplicate().order(ByteOrder.nativeOrder());
+                data.position(Math.addExact(data.position(), Math.toIntExact(offset)));
+                if (data.remaining() < (long) dst.length * Sizeof.cl_int) {
+                    return false;
+                }
+                data.asIntBuffer().get(dst);
+                return true;
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Cannot read host pointer: {0}", e.toString());
+        }
+        return false;
+    }
+
+    private static Field pointerField(final String name) {
+        try {
+            final Field f = NativePointerObject.class.getDeclaredField(name);
+            f.setAccessible(true);
+            return f;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "JOCL Pointer.{0} not accessible: {1}", new Object[]{name, e.toString()});
+            return null;
+        }
+    }
+
+    /**
+     * Image 3D sans donnees initiales, a remplir tranche par tranche (voir
+     * MappedVolume)
+     *
+     * @param flags
+     * @param channel_order
+     * @param data_type
+     * @param w
+     * @param h
+     * @param d nombre de tranches
+     * @return null sans device OpenCL
+     */
+    public static ocl_image create3D(final long flags, final int channel_order, final int data_type, final int w, final int h, final int d) {
+        if (!OpenCLBase.isDeviceAvailable()) {
+            return null;
+        }
+        final int sz = Images2D.elementSizeOf(channel_order, data_type);
+        if (sz == 0) {
+            throw new IllegalArgumentException("Unsupported image format: " + CL.stringFor_cl_channel_order(channel_order)
+                    + " / " + CL.stringFor_cl_channel_type(data_type));
+        }
+        final ocl_image img = new ocl_image(w, h, null);
+        img.z = d;
+        img.image_format.image_channel_order = channel_order;
+        img.image_format.image_channel_data_type = data_type;
+        img.image_desc.image_type = CL.CL_MEM_OBJECT_IMAGE3D;
+        img.image_desc.image_width = w;
+        img.image_desc.image_height = h;
+        img.image_desc.image_depth = d;
+        img.image_desc.image_array_size = 1;
+        img.createImage(flags, img.image_format, img.image_desc, null);
+        return img;
+    }
+
     public cl_mem createImage(long flags, cl_image_format image_format, cl_image_desc image_desc, Pointer host_ptr) {
         if (mem != null) {
             release();
         }
+        poolKey = null;
         try {
             int[] err = {0};
             mem = OpenCLBase.clCreateImage(flags, image_format, image_desc, host_ptr, err);
@@ -140,6 +279,8 @@ public class ocl_image {
                 });
             }
         } catch (Exception e) {
+            // Typiquement une image plus grande que CL_DEVICE_IMAGE2D_MAX_WIDTH/HEIGHT : voir TiledProcessor
+            LOGGER.log(Level.WARNING, "clCreateImage {0}x{1} failed: {2}", new Object[]{image_desc.image_width, image_desc.image_height, e.getMessage()});
             mem = null;
         }
         return mem;
@@ -148,6 +289,15 @@ public class ocl_image {
     public cl_mem getMem() {
         return mem;
     }
+
+    /**
+     * Pixels ARGB de l'image quand elle n'est pas sur un device OpenCL
+     *
+     * @return null si l'image est sur le device
+     */
+    public int[] getHostPixels() {
+        return hostPixels;
+    }
     
     
     /**
@@ -178,8 +328,97 @@ public class ocl_image {
         return true;
     }
 
+    /**
+     * Met a jour une image CL_HALF_FLOAT a partir de valeurs float converties
+     * sur l'hote
+     *
+     * @param buff w x h x nombre de canaux valeurs
+     * @return false si l'image n'est pas en half ou pas de la bonne taille
+     */
+    public boolean updateHalf(final float[] buff) {
+        final int channels = Images2D.channelCountOf(image_format.image_channel_order);
+        if (image_format.image_channel_data_type != CL.CL_HALF_FLOAT || mem == null || buff.length != w * h * z * channels) {
+            return false;
+        }
+        final short[] halves = HalfFloat.toHalf(buff, null);
+        final int err = OpenCLBase.clEnqueueWriteImage(mem, true, new long[]{0, 0, 0}, new long[]{w, h, Math.max(1, z)},
+                (long) w * channels * Sizeof.cl_half, z > 1 ? (long) w * h * channels * Sizeof.cl_half : 0, Pointer.to(halves), 0, null, null);
+        return !checkError(err);
+    }
+
+    /**
+     * Envoie seulement les zones modifiees de l'image. Chaque rectangle est
+     * ecrit directement depuis le raster (origine et pas de ligne de l'image
+     * complete), sans copie intermediaire. Les ecritures sont bloquantes : un
+     * tableau Java ne reste pas en place apres l'appel JOCL.
+     *
+     * @param img image de meme taille, au format de creation
+     * @param dirty zones a envoyer
+     * @return false si le format de l'image n'est pas gere
+     */
+    public boolean update(final BufferedImage img, final DirtyRegion dirty) {
+        if (img.getWidth() != w || img.getHeight() != h) {
+            return false;
+        }
+        final List<Rectangle> rects = dirty.getRectangles();
+        if (hostPixels != null) {
+            for (Rectangle r : rects) {
+                img.getRGB(r.x, r.y, r.width, r.height, hostPixels, r.y * w + r.x, w);
+                dirty.countUpload((long) r.width * r.height * Sizeof.cl_uint, (long) w * h * Sizeof.cl_uint);
+            }
+            return true;
+        }
+        final Pointer data = Images2D.createRasterDataPointer(img);
+        if (mem == null || data == null) {
+            return false;
+        }
+        // Octets par pixel dans le raster (1 int ARGB, ou 4 octets ABGR...)
+        final int elementSize = Images2D.pitchSizeOf(img);
+        final int pixelSize = elementSize * img.getRaster().getSampleModel().getNumDataElements();
+        for (Rectangle r : rects) {
+            final int err = OpenCLBase.clEnqueueWriteImage(mem, true, new long[]{r.x, r.y, 0}, new long[]{r.width, r.height, 1},
+                    (long) w * pixelSize, 0, data.withByteOffset(((long) r.y * w + r.x) * pixelSize), 0, null, null);
+            if (checkError(err)) {
+                return false;
+            }
+            dirty.countUpload((long) r.width * r.height * pixelSize, (long) w * h * pixelSize);
+        }
+        return true;
+    }
+
+    /**
+     * Comme updateFloat(), mais seulement les zones modifiees (image 2D de
+     * meme taille)
+     *
+     * @param buff w x h valeurs
+     * @param dirty
+     * @return
+     */
+    public boolean updateFloat(final float[] buff, final DirtyRegion dirty) {
+        if (image_format.image_channel_order != CL.CL_INTENSITY || image_format.image_channel_data_type != CL.CL_FLOAT
+                || z != 1 || buff.length != w * h || mem == null) {
+            return false;
+        }
+        final Pointer data = Pointer.to(buff);
+        for (Rectangle r : dirty.getRectangles()) {
+            final int err = OpenCLBase.clEnqueueWriteImage(mem, true, new long[]{r.x, r.y, 0}, new long[]{r.width, r.height, 1},
+                    (long) w * Sizeof.cl_float, 0, data.withByteOffset(((long) r.y * w + r.x) * Sizeof.cl_float), 0, null, null);
+            if (checkError(err)) {
+                return false;
+            }
+            dirty.countUpload((long) r.width * r.height * Sizeof.cl_float, (long) w * h * Sizeof.cl_float);
+        }
+        return true;
+    }
+
     // libere la memoire sur le GPU
     public void release() {
+        hostPixels = null;
+        if (mem != null && poolKey != null && MemoryPool.recycle(poolKey, mem, poolBytes)) {
+            // Rendue au pool au lieu d'etre liberee
+            mem = null;
+        }
+        poolKey = null;
         if (mem != null) {
             try {
                 CL.clReleaseMemObject(mem);
@@ -189,6 +428,26 @@ public class ocl_image {
         }
     }
 
+    private static int[] toHostPixels(final BufferedImage img) {
+        final BufferedImage argb = Images2D.toBufferedImage(img, BufferedImage.TYPE_INT_ARGB);
+        return ((DataBufferInt) argb.getRaster().getDataBuffer()).getData().clone();
+    }
+
+    /**
+     * Image en memoire Java meme si un device OpenCL est disponible (pour
+     * comparer les kernels Java et OpenCL)
+     *
+     * @param img
+     * @return
+     */
+    public static ocl_image createHostPicture(final BufferedImage img) {
+        return new ocl_image(img.getWidth(), img.getHeight(), toHostPixels(img));
+    }
+
+    public static ocl_image createHostPicture(final int w, final int h) {
+        return new ocl_image(w, h, new int[w * h]);
+    }
+
     public static ocl_image create2DInputInt32(final int w, final int h) {
         return new ocl_image(CL.CL_MEM_WRITE_ONLY, CL.CL_UNSIGNED_INT32, CL.CL_INTENSITY, w, h, null);
     }
@@ -197,6 +456,25 @@ public class ocl_image {
         return new ocl_image(CL.CL_MEM_WRITE_ONLY, CL.CL_UNSIGNED_INT8, CL.CL_RGBA, w, h, null);
     }
 
+    /**
+     * Image intermediaire, ecrite par un kernel puis lue par un autre
+     */
+    public static ocl_image create2DPicture(final int w, final int h) {
+        return new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_UNSIGNED_INT8, CL.CL_RGBA, w, h, null);
+    }
+
+    /**
+     * Image de sortie en memoire accessible par l'hote, a relire sans copie
+     * avec OpenCLBase.map_picture()
+     *
+     * @param w
+     * @param h
+     * @return
+     */
+    public static ocl_image create2DMappedOutputPicture(final int w, final int h) {
+        return new ocl_image(CL.CL_MEM_WRITE_ONLY | CL.CL_MEM_ALLOC_HOST_PTR, CL.CL_UNSIGNED_INT8, CL.CL_RGBA, w, h, null);
+    }
+
     public static ocl_image create2DInputOutputPicure(final int w, final int h) {
         return new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_UNSIGNED_INT8, CL.CL_RGBA, w, h, null);
     }
@@ -205,6 +483,51 @@ public class ocl_image {
         return new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_FLOAT, CL.CL_INTENSITY, w, h, null);
     }
 
+    /**
+     * Image float sur 16 bits (CL_HALF_FLOAT) : moitie moins de memoire et de
+     * bande passante que create2DInputOutputFloat(), lue par read_imagef()
+     */
+    public static ocl_image create2DInputOutputHalf(final int w, final int h) {
+        return new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_HALF_FLOAT, SINGLE_CHANNEL_ORDER, w, h, null);
+    }
+
+    /**
+     * Image RGBA en CL_HALF_FLOAT (8 octets par pixel au lieu de 16)
+     */
+    public static ocl_image create2DInputOutputHalf4(final int w, final int h) {
+        return new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_HALF_FLOAT, CL.CL_RGBA, w, h, null);
+    }
+
+    /**
+     * Image RGBA en CL_UNORM_INT8 : 4 octets par pixel, lue en float entre 0
+     * et 1 par read_imagef()
+     */
+    public static ocl_image create2DInputOutputUnorm(final int w, final int h) {
+        return new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_UNORM_INT8, CL.CL_RGBA, w, h, null);
+    }
+
+    /**
+     * Copie de l'image en format normalise (CL_UNORM_INT8, ou CL_UNORM_INT16
+     * pour TYPE_USHORT_GRAY), voir Images2D.createNormalizedImageFormatFrom()
+     *
+     * @param img
+     * @return
+     */
+    public static ocl_image create2DInputNormalized(final BufferedImage img) {
+        if (!OpenCLBase.isDeviceAvailable()) {
+            return createHostPicture(img);
+        }
+        final cl_image_format format = Images2D.createNormalizedImageFormatFrom(img);
+        if (format == null) {
+            throw new IllegalArgumentException("Unsupported image type: " + img.getType());
+        }
+        final ocl_image res = new ocl_image(img.getWidth(), img.getHeight(), null);
+        res.image_format = format;
+        res.image_desc = Images2D.createImageDescFrom(img);
+        res.createImage(CL.CL_MEM_READ_ONLY | CL.CL_MEM_COPY_HOST_PTR, res.image_format, res.image_desc, Images2D.createRasterDataPointer(img));
+        return res;
+    }
+
     public static ocl_image create2DInputOutputPicure(final BufferedImage img) {
         return new ocl_image(img, false);
     }
@@ -221,19 +544,52 @@ public class ocl_image {
         return h;
     }
 
+    /**
+     * @return nombre de tranches (1 pour une image 2D)
+     */
+    public int getDepth() {
+        return z;
+    }
+
     public BufferedImage query_img() {
+        return query_img(false);
+    }
+
+    /**
+     * @param normalize pour les images float et half a un canal : ramene
+     * [min, max] (calcules sur le device par Reductions) a 0..255 au lieu de
+     * [0, 1]
+     * @return
+     */
+    public BufferedImage query_img(final boolean normalize) {
+        if (hostPixels != null) {
+            BufferedImage imgout = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            System.arraycopy(hostPixels, 0, ((DataBufferInt) imgout.getRaster().getDataBuffer()).getData(), 0, hostPixels.length);
+            return imgout;
+        }
+        final int channel_type = image_format.image_channel_data_type;
         if (image_format.image_channel_order == SINGLE_CHANNEL_ORDER) {
-            switch (image_format.image_channel_data_type) {
-                case CL.CL_FLOAT:{
-                    cl_event[][] event = {null};
-                    ocl_image img_out = new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_UNSIGNED_INT8, SINGLE_CHANNEL_ORDER, w, h, null);
-                    //query_float(ocl_image img, cl_event[] event)
-                    int res = convertToByte(mem, img_out.mem, w, h, 0.f, 1.f, event);
-                   /// img_out.release();
-                    BufferedImage result = img_out.query_img();
-                    img_out.release();
-                    return result;
+            switch (channel_type) {
+                case CL.CL_FLOAT:
+                case CL.CL_HALF_FLOAT: {
+                    // Conversion v -> (v + add) * mult entre 0 et 1
+                    float add = 0.f, mult = 1.f;
+                    if (normalize) {
+                        final Reductions.Stats stats = Reductions.stats(this, null);
+                        if (stats != null && stats.getMax() > stats.getMin()) {
+                            add = (float) -stats.getMin();
+                            mult = (float) (1. / (stats.getMax() - stats.getMin()));
+                        }
+                    }
+                    return queryConverted(SINGLE_CHANNEL_ORDER, add, mult);
+                }
+                case CL.CL_UNORM_INT16: {
+                    BufferedImage imgout = new BufferedImage(w, h, BufferedImage.TYPE_USHORT_GRAY);
+                    final short[] dataDst = ((DataBufferUShort) imgout.getRaster().getDataBuffer()).getData();
+                    OpenCLBase.clEnqueueReadImage(mem, true, new long[]{0, 0, 0}, new long[]{w, h, 1}, w * Sizeof.cl_ushort, 0, Pointer.to(dataDst), 0, null, null);
+                    return imgout;
                 }
+                case CL.CL_UNORM_INT8:
                 case CL.CL_UNSIGNED_INT8: {
                     BufferedImage imgout = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
                     DataBufferByte dataBufferDst = (DataBufferByte) imgout.getRaster().getDataBuffer();
@@ -252,6 +608,14 @@ public class ocl_image {
                     break;
             }
         } else {
+            if (channel_type != CL.CL_UNSIGNED_INT8 && channel_type != CL.CL_UNORM_INT8) {
+                if (!KernelLibrary.isSupported(this)) {
+                    LOGGER.log(Level.WARNING, "Cannot convert {0} image to 8 bits", CL.stringFor_cl_channel_type(channel_type));
+                    return null;
+                }
+                // 16 bits, half, float : ramenes a 8 bits sur le device, x, y, z, w => b, g, r, a
+                return queryConverted(CL.CL_RGBA, 0.f, 1.f);
+            }
             BufferedImage imgout = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
             DataBufferInt dataBufferDst = (DataBufferInt) imgout.getRaster().getDataBuffer();
             int dataDst[] = dataBufferDst.getData();
@@ -260,12 +624,36 @@ public class ocl_image {
         }
         return null;
     }
-    
-    private int convertToByte(cl_mem img_in, cl_mem img_out, int w, int h, float add, float mult, cl_event[][] event) {
-        if (!OpenCLBase.runWithArgs("convert_to_byte", new long[]{w, h}, null, event, img_in, img_out, add, mult)) {
-            return -1;
+
+    /**
+     * Convertit l'image en UNORM_INT8 sur le device (voir
+     * KernelLibrary.convert) et relit seulement ces octets
+     *
+     * @param channel_order SINGLE_CHANNEL_ORDER (image grise) ou CL_RGBA
+     * (image ARGB)
+     * @param add
+     * @param mult
+     * @return null en cas d'erreur
+     */
+    private BufferedImage queryConverted(final int channel_order, final float add, final float mult) {
+        final boolean gray = channel_order == SINGLE_CHANNEL_ORDER;
+        final ocl_image img_out = new ocl_image(CL.CL_MEM_READ_WRITE, CL.CL_UNORM_INT8, channel_order, w, h, null);
+        final cl_event[][] event = {null};
+        try {
+            if (!KernelLibrary.convert(this, img_out, add, mult, event)) {
+                LOGGER.log(Level.WARNING, "Conversion to 8 bits failed");
+                return null;
+            }
+            final BufferedImage imgout = new BufferedImage(w, h, gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_ARGB);
+            final Pointer dst = gray ? Pointer.to(((DataBufferByte) imgout.getRaster().getDataBuffer()).getData())
+                    : Pointer.to(((DataBufferInt) imgout.getRaster().getDataBuffer()).getData());
+            final int err = OpenCLBase.clEnqueueReadImage(img_out.mem, true, new long[]{0, 0, 0}, new long[]{w, h, 1}, gray ? w : w * Sizeof.cl_int, 0,
+                    dst, event[0] == null ? 0 : event[0].length, event[0], null);
+            return checkError(err) ? null : imgout;
+        } finally {
+            EventManager.release(event);
+            img_out.release();
         }
-        return CL.CL_SUCCESS;
     }
 
 }